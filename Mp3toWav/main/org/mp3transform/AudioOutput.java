@@ -0,0 +1,184 @@
+package org.mp3transform;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays decoded samples on a sound line. The decoder writes into a ring
+ * buffer, and a separate thread moves the data to the line. The line itself
+ * paces the output thread, and the full ring buffer paces the decoder.
+ */
+public class AudioOutput implements PcmOutput, Runnable {
+
+    public static final int DEFAULT_BUFFER_MILLIS = 500;
+    private static final int CHUNK_MILLIS = 20;
+
+    private final int bufferMillis;
+    private final BufferPool pool;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition resumed = lock.newCondition();
+    private SourceDataLine line;
+    private PcmRingBuffer ring;
+    private Thread thread;
+    private int chunkSize;
+    private int frequency, channels;
+    private boolean paused;
+    private volatile boolean stopped;
+
+    public AudioOutput() {
+        this(DEFAULT_BUFFER_MILLIS);
+    }
+
+    public AudioOutput(int bufferMillis) {
+        this(bufferMillis, BufferPool.getDefault());
+    }
+
+    public AudioOutput(int bufferMillis, BufferPool pool) {
+        this.bufferMillis = bufferMillis;
+        this.pool = pool;
+    }
+
+    public void open(int frequency, int channels) throws IOException {
+        this.frequency = frequency;
+        this.channels = channels;
+        int sampleSize = 16;
+        int frameSize = channels * (sampleSize / 8);
+        AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, frequency, sampleSize, channels,
+                frameSize, frequency, true);
+        SourceDataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        try {
+            line = (SourceDataLine) AudioSystem.getLine(info);
+            line.open(format);
+        } catch (LineUnavailableException e) {
+            throw new IOException("Could not open line: " + e.toString());
+        }
+        int bytesPerSecond = frequency * frameSize;
+        int capacity = Math.max((int) ((long) bytesPerSecond * bufferMillis / 1000), Decoder.BUFFER_SIZE * 2);
+        ring = new PcmRingBuffer(pool.acquire(capacity), capacity);
+        chunkSize = bytesPerSecond * CHUNK_MILLIS / 1000;
+        chunkSize -= chunkSize % frameSize;
+        lock.lock();
+        try {
+            if (!paused) {
+                line.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+        thread = new Thread(this);
+        thread.setName(getClass().getName());
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Whether this output is open and plays the given format.
+     */
+    public boolean matches(int frequency, int channels) {
+        return !stopped && line != null && this.frequency == frequency && this.channels == channels;
+    }
+
+    /**
+     * The number of times the output thread ran out of decoded data.
+     */
+    public int getUnderruns() {
+        return ring == null ? 0 : ring.getUnderruns();
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ring.write(data, offset, length);
+    }
+
+    /**
+     * Play the remaining data (unless stopped) and close the line.
+     */
+    public void close() throws IOException {
+        ring.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (!stopped) {
+            line.drain();
+        }
+        line.stop();
+        line.close();
+        pool.release(ring.getBuffer());
+        if (ring.getUnderruns() > 0) {
+            System.out.println("underruns: " + ring.getUnderruns());
+        }
+    }
+
+    /**
+     * Discard the buffered data. This also wakes up a blocked writer.
+     */
+    public void stop() {
+        stopped = true;
+        ring.cancel();
+        lock.lock();
+        try {
+            resumed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        line.stop();
+        line.flush();
+    }
+
+    public void setPaused(boolean paused) {
+        lock.lock();
+        try {
+            this.paused = paused;
+            if (line != null) {
+                if (paused) {
+                    line.stop();
+                } else {
+                    line.start();
+                }
+            }
+            resumed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean awaitResume() throws InterruptedException {
+        lock.lock();
+        try {
+            while (paused && !stopped) {
+                resumed.await();
+            }
+            return !stopped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void run() {
+        byte[] chunk = new byte[chunkSize];
+        try {
+            while (awaitResume()) {
+                int len = ring.read(chunk, 0, chunk.length);
+                if (len < 0) {
+                    break;
+                }
+                line.write(chunk, 0, len);
+            }
+        } catch (InterruptedException e) {
+            // stop
+        } catch (InterruptedIOException e) {
+            // stop
+        }
+    }
+
+}
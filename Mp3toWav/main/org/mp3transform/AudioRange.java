@@ -0,0 +1,256 @@
+package org.mp3transform;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * The position of the audio data within an mp3 file. The ID3v2 tags at the
+ * start, and the ID3v1, APEv2, Lyrics3 and appended ID3v2 tags at the end,
+ * are found up front using random access, so that they are skipped instead
+ * of read, and the frame sync can't be confused by them.
+ */
+public final class AudioRange {
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int ID3V1_SIZE = 128;
+    private static final int APE_FOOTER_SIZE = 32;
+    private static final int LYRICS3_FOOTER_SIZE = 15;
+    private static final int LYRICS3_V1_MAX_SIZE = 11 + 5100 + 9;
+
+    private final long start, end;
+
+    private AudioRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Find the audio data of a file.
+     *
+     * @param file the file
+     * @return the range
+     */
+    public static AudioRange scan(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            long length = f.length();
+            long start = 0;
+            byte[] head = new byte[ID3v2Header.SIZE];
+            while (start + head.length <= length && read(f, start, head, start + head.length)) {
+                ID3v2Header id3 = ID3v2Header.parseHeader(head, 0);
+                if (id3 == null) {
+                    break;
+                }
+                start += id3.getTagSize();
+            }
+            long end = length;
+            while (end > start) {
+                long tagStart = findTailTag(f, start, end);
+                if (tagStart < 0) {
+                    break;
+                }
+                end = tagStart;
+            }
+            return new AudioRange(Math.min(start, length), Math.max(start, end));
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Open the audio data of a file.
+     *
+     * @param file the file
+     * @return the buffered stream, positioned at the first frame
+     */
+    public static InputStream open(File file) throws IOException {
+        AudioRange range = scan(file);
+        return new BufferedInputStream(range.limit(new FileInputStream(file)), BUFFER_SIZE);
+    }
+
+    /**
+     * Limit a stream of the whole file to the audio data. The tags at the
+     * start are skipped (for a file stream, this is a seek).
+     *
+     * @param in the stream, positioned at the start of the file
+     * @return the stream that ends before the tags at the end
+     */
+    public InputStream limit(InputStream in) throws IOException {
+        long remaining = start;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return new LimitedInputStream(in, end - start);
+    }
+
+    /**
+     * The position of the first byte of audio data.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * The position after the last byte of audio data.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Find a tag that ends at the given position.
+     *
+     * @return the start of the tag, or -1 if there is none
+     */
+    private static long findTailTag(RandomAccessFile f, long min, long end) throws IOException {
+        byte[] buff = new byte[ID3V1_SIZE];
+        if (read(f, end - ID3V1_SIZE, buff, end) && startsWith(buff, 0, "TAG")) {
+            return end - ID3V1_SIZE;
+        }
+        if (read(f, end - APE_FOOTER_SIZE, buff, end) && startsWith(buff, 0, "APETAGEX")) {
+            // the size includes the footer, but not the header
+            long size = readIntLE(buff, 12);
+            boolean hasHeader = (readIntLE(buff, 20) & 0x80000000L) != 0;
+            long tagStart = end - size - (hasHeader ? APE_FOOTER_SIZE : 0);
+            return tagStart >= min ? tagStart : -1;
+        }
+        if (read(f, end - LYRICS3_FOOTER_SIZE, buff, end)) {
+            if (startsWith(buff, 6, "LYRICS200")) {
+                // the size doesn't include the footer
+                long size = parseDecimal(buff, 0, 6);
+                long tagStart = end - LYRICS3_FOOTER_SIZE - size;
+                if (size >= 0 && tagStart >= min) {
+                    return tagStart;
+                }
+            } else if (startsWith(buff, 6, "LYRICSEND")) {
+                return findLyrics3Start(f, min, end);
+            }
+        }
+        if (read(f, end - ID3v2Header.SIZE, buff, end)) {
+            // an ID3v2 tag with a footer
+            ID3v2Header id3 = ID3v2Header.parseFooter(buff, 0);
+            long tagStart = id3 == null ? -1 : end - id3.getTagSize();
+            return tagStart >= min ? tagStart : -1;
+        }
+        return -1;
+    }
+
+    private static long findLyrics3Start(RandomAccessFile f, long min, long end) throws IOException {
+        long pos = Math.max(min, end - LYRICS3_V1_MAX_SIZE);
+        byte[] buff = new byte[(int) (end - pos)];
+        if (!read(f, pos, buff, end)) {
+            return -1;
+        }
+        for (int i = buff.length - 11; i >= 0; i--) {
+            if (startsWith(buff, i, "LYRICSBEGIN")) {
+                return pos + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read the bytes from the given position up to the end.
+     *
+     * @return false if the position is before the start of the file
+     */
+    private static boolean read(RandomAccessFile f, long pos, byte[] buff, long end) throws IOException {
+        if (pos < 0 || end - pos > buff.length) {
+            return false;
+        }
+        f.seek(pos);
+        f.readFully(buff, 0, (int) (end - pos));
+        return true;
+    }
+
+    private static boolean startsWith(byte[] buff, int offset, String s) {
+        if (offset + s.length() > buff.length) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buff[offset + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readIntLE(byte[] buff, int offset) {
+        return (buff[offset] & 0xffL) | ((buff[offset + 1] & 0xffL) << 8) | ((buff[offset + 2] & 0xffL) << 16)
+                | ((buff[offset + 3] & 0xffL) << 24);
+    }
+
+    private static long parseDecimal(byte[] buff, int offset, int len) {
+        long x = 0;
+        for (int i = offset; i < offset + len; i++) {
+            int d = buff[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            x = x * 10 + d;
+        }
+        return x;
+    }
+
+    /**
+     * A stream that ends after the given number of bytes.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int x = in.read();
+            if (x >= 0) {
+                remaining--;
+            }
+            return x;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+}
@@ -11,7 +11,22 @@ public final class Bitstream {
 
     static final byte STRICT_SYNC = 1;
 
-    private static final int BUFFER_INT_SIZE = 433;
+    /**
+     * The size of the frame buffer in ints. Free format frames can be larger
+     * than the largest frame of a standard bitrate (1441 bytes).
+     */
+    private static final int BUFFER_INT_SIZE = 1024;
+
+    /**
+     * The largest free format frame: 640 kbit/s at 32 kHz, plus padding.
+     */
+    private static final int MAX_FREE_FORMAT_SIZE = 2881;
+
+    /**
+     * The number of bytes needed to see the two following headers of a free
+     * format frame of the maximum size.
+     */
+    private static final int LOOK_AHEAD = 2 * MAX_FREE_FORMAT_SIZE + 8;
 
     private final int[] frameBuffer = new int[BUFFER_INT_SIZE];
 
@@ -30,47 +45,77 @@ public final class Bitstream {
     private final PushbackInputStream source;
     private final Header header = new Header();
     private final byte[] syncBuffer = new byte[4];
-    private byte[] rawID3v2 = null;
+    private final byte[] lookAhead = new byte[LOOK_AHEAD];
+    private final byte[] tagBuffer = new byte[129];
     private boolean firstFrame = true;
+    private long skippedBytes;
+    private int crcFrames, crcErrors;
 
     public Bitstream(InputStream in) {
-        source = new PushbackInputStream(in, BUFFER_INT_SIZE * 4);
-        loadID3v2();
+        source = new PushbackInputStream(in, Math.max(LOOK_AHEAD, BUFFER_INT_SIZE * 4));
+        try {
+            skipTags();
+        } catch (IOException e) {
+            // ignore, reading the first frame will fail as well
+        }
         closeFrame();
     }
 
-    private void loadID3v2() {
-        int size = -1;
-        try {
-            source.mark(10);
-            size = readID3v2Header();
-        } catch (IOException e) {
-        } finally {
-            try {
-                source.reset();
-            } catch (IOException e) {
+    /**
+     * Skip the tags at the current position: any number of ID3v2 and APEv2
+     * tags (with a header), and an ID3v1 tag at the end of the stream. The
+     * tags are skipped without reading them into memory. This is needed at
+     * the start, and between frames when tags were appended to the stream.
+     */
+    private void skipTags() throws IOException {
+        while (true) {
+            int len = readBytes(tagBuffer, 0, tagBuffer.length);
+            source.unread(tagBuffer, 0, len);
+            long size = 0;
+            ID3v2Header id3 = len < ID3v2Header.SIZE ? null : ID3v2Header.parseHeader(tagBuffer, 0);
+            if (id3 != null) {
+                // the frames, including artwork, are seeked over
+                size = id3.getTagSize();
+            }
+            if (size <= 0 && len >= 32 && isTag(tagBuffer, "APETAGEX")) {
+                int flags = readIntLE(tagBuffer, 20);
+                // the size includes the footer, but not the header
+                size = (flags & (1 << 29)) != 0 ? readIntLE(tagBuffer, 12) + 32L : 32;
+            }
+            if (size <= 0 && len == 128 && isTag(tagBuffer, "TAG")) {
+                size = 128;
             }
+            if (size <= 0) {
+                return;
+            }
+            skip(size);
         }
-        try {
-            if (size > 0) {
-                rawID3v2 = new byte[size];
-                readBytes(rawID3v2, 0, rawID3v2.length);
+    }
+
+    private static boolean isTag(byte[] b, String id) {
+        for (int i = 0; i < id.length(); i++) {
+            if (b[i] != id.charAt(i)) {
+                return false;
             }
-        } catch (IOException e) {
         }
+        return true;
     }
 
+    private static int readIntLE(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+    }
 
-    private int readID3v2Header() throws IOException {
-        byte[] buff = new byte[4];
-        int size = -10;
-        readBytes(buff, 0, 3);
-        if (buff[0] == 'I' && buff[1] == 'D' && buff[2] == '3') {
-            readBytes(buff, 0, 3);
-            readBytes(buff, 0, 4);
-            size = (buff[0] << 21) + (buff[1] << 14) + (buff[2] << 7) + buff[3];
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            long skipped = source.skip(n);
+            if (skipped <= 0) {
+                if (source.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            n -= skipped;
         }
-        return size + 10;
     }
 
     public Header readFrame() throws IOException {
@@ -103,6 +148,114 @@ public final class Bitstream {
         if (wordPointer == -1 && bitIndex == -1 && frameSize > 0) {
             source.unread(frameBytes, 0, frameSize);
         }
+        // the header was not followed by another frame
+        skippedBytes += 4;
+    }
+
+    /**
+     * Verify the CRC of the current layer III frame, which covers the last
+     * two bytes of the header and the side information.
+     *
+     * @return false if the frame has a CRC, and it doesn't match
+     */
+    boolean checkCrc(Header h) {
+        return checkCrc(h, h.sideInfoSize() * 8);
+    }
+
+    /**
+     * Verify the CRC of the current frame, which covers the last two bytes of
+     * the header and the given number of bits after the CRC (the side
+     * information in layer III, and the bit allocation and scale factor
+     * selection in layer I and II).
+     *
+     * @param bits the number of protected bits after the CRC
+     * @return false if the frame has a CRC, and it doesn't match
+     */
+    boolean checkCrc(Header h, int bits) {
+        if (!h.hasCrc()) {
+            return true;
+        }
+        crcFrames++;
+        int len = bits >>> 3;
+        if (frameSize < 2 + ((bits + 7) >>> 3)) {
+            crcErrors++;
+            return false;
+        }
+        int headerBits = h.crcHeaderBits();
+        int crc = Crc16.update(Crc16.INIT, headerBits >>> 8);
+        crc = Crc16.update(crc, headerBits);
+        crc = Crc16.update(crc, frameBytes, 2, len);
+        if ((bits & 7) != 0) {
+            crc = Crc16.updateBits(crc, (frameBytes[2 + len] & 0xff) >> (8 - (bits & 7)), bits & 7);
+        }
+        int expected = ((frameBytes[0] & 0xff) << 8) | (frameBytes[1] & 0xff);
+        if (crc != expected) {
+            crcErrors++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The number of frames with a CRC that were checked.
+     */
+    public int getCrcFrames() {
+        return crcFrames;
+    }
+
+    /**
+     * The number of frames where the CRC didn't match.
+     */
+    public int getCrcErrors() {
+        return crcErrors;
+    }
+
+    /**
+     * Find the next frame header of a free format stream, without consuming
+     * any data. A header only counts if it is followed by another one at
+     * the same distance (plus or minus the padding byte), or if the data
+     * ends before that. A header that can't be confirmed is ignored.
+     *
+     * @param headerString the current header
+     * @param mask the bits that need to match
+     * @param minLength the minimum number of bytes to the next header
+     * @return the number of bytes until the next header, or -1
+     */
+    int findNextHeader(int headerString, int mask, int minLength) throws IOException {
+        byte[] buff = lookAhead;
+        int len = readBytes(buff, 0, buff.length);
+        source.unread(buff, 0, len);
+        int h = headerString & mask;
+        boolean end = len < buff.length;
+        for (int i = minLength; i + 4 <= len && i <= MAX_FREE_FORMAT_SIZE; i++) {
+            if ((readInt(buff, i) & mask) != h) {
+                continue;
+            }
+            int next = i + 4 + i;
+            if (next + 5 > len) {
+                if (end) {
+                    return i;
+                }
+                continue;
+            }
+            for (int j = next - 1; j <= next + 1; j++) {
+                if ((readInt(buff, j) & mask) == h) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+    }
+
+    /**
+     * The number of bytes that were skipped while searching for frames.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
     }
 
     public void closeFrame() {
@@ -122,7 +275,9 @@ public final class Bitstream {
         if (read == 0) {
             return true;
         } else if (read == 4) {
-            return isSyncMark(headerString, syncMode, syncWord);
+            // a frame may also be followed by a tag
+            return isSyncMark(headerString, syncMode, syncWord) || isTag(syncBuffer, "ID3")
+                    || isTag(syncBuffer, "APET") || isTag(syncBuffer, "TAG");
         } else {
             return false;
         }
@@ -131,12 +286,25 @@ public final class Bitstream {
     int syncHeader(byte syncMode) throws IOException {
         boolean sync;
         int headerString;
-        int bytesRead = readBytes(syncBuffer, 0, 3);
+        // usually the next frame follows directly; tags are only looked for
+        // if it doesn't
+        int bytesRead = readBytes(syncBuffer, 0, 4);
+        if (bytesRead == 4) {
+            headerString = readInt(syncBuffer, 0);
+            if (isSyncMark(headerString, syncMode, syncWord)) {
+                return headerString;
+            }
+        }
+        source.unread(syncBuffer, 0, bytesRead);
+        skipTags();
+        bytesRead = readBytes(syncBuffer, 0, 3);
         if (bytesRead != 3) {
             throw new EOFException();
         }
         headerString = ((syncBuffer[0] << 16) & 0x00FF0000) | ((syncBuffer[1] << 8) & 0x0000FF00) | ((syncBuffer[2] << 0) & 0x000000FF);
+        skippedBytes--;
         do {
+            skippedBytes++;
             headerString <<= 8;
             if (readBytes(syncBuffer, 3, 1) != 1) {
                 throw new EOFException();
@@ -152,7 +320,7 @@ public final class Bitstream {
         if (syncMode == INITIAL_SYNC) {
             sync = ((headerString & 0xFFE00000) == 0xFFE00000); // SZD: MPEG 2.5
         } else {
-            sync = ((headerString & 0xFFF80C00) == word) && (((headerString & 0x000000C0) == 0x000000C0) == singleChMode);
+            sync = ((headerString & 0xFFFE0C00) == word) && (((headerString & 0x000000C0) == 0x000000C0) == singleChMode);
         }
         if (sync) {
             sync = (((headerString >>> 10) & 3) != 3);
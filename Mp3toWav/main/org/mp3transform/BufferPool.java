@@ -0,0 +1,114 @@
+package org.mp3transform;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * A pool of direct (off-heap) buffers. Buffers are cut from larger slabs,
+ * and the sizes are rounded up to a power of two. A buffer must be released
+ * when it is no longer used, so that it can be reused; the memory of the
+ * slabs is never given back.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_SIZE = 1024;
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_SLAB_SIZE);
+
+    private final int slabSize;
+    private final ArrayList<ArrayList<ByteBuffer>> free = new ArrayList<ArrayList<ByteBuffer>>();
+    private long allocated, used;
+    private int acquired, reused;
+
+    public BufferPool(int slabSize) {
+        this.slabSize = slabSize;
+        for (int i = 0; i < 32; i++) {
+            free.add(new ArrayList<ByteBuffer>());
+        }
+    }
+
+    /**
+     * The pool that is shared by the decoders and outputs of this process.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get a cleared buffer of at least the given size. The capacity of the
+     * returned buffer is the size rounded up to a power of two, and the byte
+     * order is big endian.
+     *
+     * @param size the minimum size
+     * @return the buffer
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        int bits = sizeBits(size);
+        ArrayList<ByteBuffer> list = free.get(bits);
+        acquired++;
+        ByteBuffer buff;
+        if (list.isEmpty()) {
+            allocate(bits);
+        } else {
+            reused++;
+        }
+        buff = list.remove(list.size() - 1);
+        used += buff.capacity();
+        buff.clear();
+        buff.order(ByteOrder.BIG_ENDIAN);
+        return buff;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buff the buffer, or null
+     */
+    public synchronized void release(ByteBuffer buff) {
+        if (buff == null) {
+            return;
+        }
+        int bits = sizeBits(buff.capacity());
+        if (1 << bits != buff.capacity()) {
+            throw new IllegalArgumentException("Not a pooled buffer: " + buff);
+        }
+        used -= buff.capacity();
+        free.get(bits).add(buff);
+    }
+
+    private void allocate(int bits) {
+        int size = 1 << bits;
+        ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(size, slabSize));
+        allocated += slab.capacity();
+        ArrayList<ByteBuffer> list = free.get(bits);
+        for (int pos = 0; pos + size <= slab.capacity(); pos += size) {
+            slab.limit(pos + size).position(pos);
+            list.add(slab.slice());
+        }
+    }
+
+    private static int sizeBits(int size) {
+        size = Math.max(size, MIN_SIZE);
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * The off-heap memory allocated by this pool, in bytes.
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * The memory of the buffers that are currently acquired, in bytes.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized String toString() {
+        return "allocated: " + allocated + " used: " + used + " acquired: " + acquired + " reused: " + reused;
+    }
+
+}
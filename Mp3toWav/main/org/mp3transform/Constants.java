@@ -475,13 +475,31 @@ public class Constants {
             { 0, 2 }, { 0, 3 }, { 4, 1 }, { 2, 1 }, { 0, 4 }, { 0, 5 }, { 2, 1 }, { 0, 6 }, { 0, 7 }, { 8, 1 },
             { 4, 1 }, { 2, 1 }, { 0, 8 }, { 0, 9 }, { 2, 1 }, { 0, 10 }, { 0, 11 }, { 4, 1 }, { 2, 1 }, { 0, 12 },
             { 0, 13 }, { 2, 1 }, { 0, 14 }, { 0, 15 }, };
-    static final int[][] BITRATES = {
-            { 0 /* free format */, 8000, 16000, 24000, 32000, 40000, 48000, 56000, 64000, 80000, 96000, 112000,
-                    128000, 144000, 160000, 0 },
-            { 0 /* free format */, 32000, 40000, 48000, 56000, 64000, 80000, 96000, 112000, 128000, 160000, 192000,
-                    224000, 256000, 320000, 0 },
-            { 0 /* free format */, 8000, 16000, 24000, 32000, 40000, 48000, 56000, 64000, 80000, 96000, 112000,
-                    128000, 144000, 160000, 0 } };
+    /**
+     * The bitrates by layer (1 to 3), version and bitrate index.
+     */
+    static final int[][][] BITRATES = {
+            {
+                    { 0 /* free format */, 32000, 48000, 56000, 64000, 80000, 96000, 112000, 128000, 144000, 160000,
+                            176000, 192000, 224000, 256000, 0 },
+                    { 0 /* free format */, 32000, 64000, 96000, 128000, 160000, 192000, 224000, 256000, 288000,
+                            320000, 352000, 384000, 416000, 448000, 0 },
+                    { 0 /* free format */, 32000, 48000, 56000, 64000, 80000, 96000, 112000, 128000, 144000, 160000,
+                            176000, 192000, 224000, 256000, 0 } },
+            {
+                    { 0 /* free format */, 8000, 16000, 24000, 32000, 40000, 48000, 56000, 64000, 80000, 96000, 112000,
+                            128000, 144000, 160000, 0 },
+                    { 0 /* free format */, 32000, 48000, 56000, 64000, 80000, 96000, 112000, 128000, 160000,
+                            192000, 224000, 256000, 320000, 384000, 0 },
+                    { 0 /* free format */, 8000, 16000, 24000, 32000, 40000, 48000, 56000, 64000, 80000, 96000, 112000,
+                            128000, 144000, 160000, 0 } },
+            {
+                    { 0 /* free format */, 8000, 16000, 24000, 32000, 40000, 48000, 56000, 64000, 80000, 96000, 112000,
+                            128000, 144000, 160000, 0 },
+                    { 0 /* free format */, 32000, 40000, 48000, 56000, 64000, 80000, 96000, 112000, 128000,
+                            160000, 192000, 224000, 256000, 320000, 0 },
+                    { 0 /* free format */, 8000, 16000, 24000, 32000, 40000, 48000, 56000, 64000, 80000, 96000, 112000,
+                            128000, 144000, 160000, 0 } } };
     static final int[][] REORDER_TABLE;
 
     public static class SBI {
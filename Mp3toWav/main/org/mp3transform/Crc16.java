@@ -0,0 +1,69 @@
+package org.mp3transform;
+
+/**
+ * The CRC-16 of MPEG audio frames (polynomial 0x8005, initial value 0xffff,
+ * most significant bit first). A table is used so that each byte only
+ * needs one lookup.
+ */
+public final class Crc16 {
+
+    /**
+     * The initial value.
+     */
+    public static final int INIT = 0xffff;
+
+    private static final int POLYNOMIAL = 0x8005;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private Crc16() {
+        // utility class
+    }
+
+    /**
+     * Update the CRC with one byte.
+     */
+    public static int update(int crc, int b) {
+        return ((crc << 8) ^ TABLE[((crc >>> 8) ^ b) & 0xff]) & 0xffff;
+    }
+
+    /**
+     * Update the CRC with the lowest bits of a value, most significant bit
+     * first (for data that doesn't end at a byte boundary).
+     *
+     * @param crc the CRC
+     * @param value the bits
+     * @param count the number of bits (at most 16)
+     * @return the new CRC
+     */
+    public static int updateBits(int crc, int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            boolean bit = ((crc >> 15) & 1) != ((value >> i) & 1);
+            crc = (crc << 1) & 0xffff;
+            if (bit) {
+                crc ^= POLYNOMIAL;
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * Update the CRC with a range of bytes.
+     */
+    public static int update(int crc, byte[] data, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+}
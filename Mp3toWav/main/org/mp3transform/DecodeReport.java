@@ -0,0 +1,173 @@
+package org.mp3transform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The errors found while decoding a file in resilient mode. The counters
+ * cover the whole file; the individual errors are kept up to a limit.
+ */
+public class DecodeReport {
+
+    /**
+     * The side information of a frame is invalid.
+     */
+    public static final String BAD_SIDE_INFO = "badSideInfo";
+
+    /**
+     * The CRC of a frame doesn't match.
+     */
+    public static final String CRC_ERROR = "crcError";
+
+    /**
+     * The main data of a frame starts in data that was not received (for
+     * example after a gap in the stream).
+     */
+    public static final String MISSING_MAIN_DATA = "missingMainData";
+
+    /**
+     * The main data of a granule could not be decoded.
+     */
+    public static final String BAD_MAIN_DATA = "badMainData";
+
+    /**
+     * The frame could not be decoded at all.
+     */
+    public static final String FAILED = "failed";
+
+    private static final int MAX_ERRORS = 100;
+
+    private final String name;
+    private final ArrayList<FrameError> errors = new ArrayList<FrameError>();
+    private int frames, granules, concealed, errorCount;
+    private long skippedBytes;
+
+    public DecodeReport(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void addFrame() {
+        frames++;
+    }
+
+    void addGranules(int count) {
+        granules += count;
+    }
+
+    void addConcealed() {
+        concealed++;
+    }
+
+    void setSkippedBytes(long skippedBytes) {
+        this.skippedBytes = skippedBytes;
+    }
+
+    /**
+     * Add an error in the current frame.
+     *
+     * @param type the type (one of the constants)
+     * @param message the details
+     */
+    public void addError(String type, String message) {
+        errorCount++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(new FrameError(frames - 1, type, message));
+        }
+    }
+
+    /**
+     * The number of frames.
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * The number of granules (per channel).
+     */
+    public int getGranules() {
+        return granules;
+    }
+
+    /**
+     * The number of granules that were replaced by concealment.
+     */
+    public int getConcealed() {
+        return concealed;
+    }
+
+    /**
+     * The number of bytes that were skipped to find the next frame.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * The first errors (at most 100).
+     */
+    public List<FrameError> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Whether the file was decoded without errors.
+     */
+    public boolean isClean() {
+        return errorCount == 0 && concealed == 0;
+    }
+
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+        buff.append(name).append(": frames: ").append(frames).append(" errors: ").append(errorCount)
+                .append(" concealed granules: ").append(concealed).append(" skipped bytes: ")
+                .append(skippedBytes);
+        for (FrameError e : errors) {
+            buff.append("\n  ").append(e);
+        }
+        if (errorCount > errors.size()) {
+            buff.append("\n  ...");
+        }
+        return buff.toString();
+    }
+
+    /**
+     * An error in a frame.
+     */
+    public static class FrameError {
+        private final int frame;
+        private final String type, message;
+
+        FrameError(int frame, String type, String message) {
+            this.frame = frame;
+            this.type = type;
+            this.message = message;
+        }
+
+        public int getFrame() {
+            return frame;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String toString() {
+            return "frame " + frame + " " + type + ": " + message;
+        }
+    }
+
+}
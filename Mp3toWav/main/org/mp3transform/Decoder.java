@@ -2,27 +2,50 @@ package org.mp3transform;
 
 import java.io.IOException;
 import java.io.InputStream;
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
+import java.io.InterruptedIOException;
 import javax.sound.sampled.SourceDataLine;
 
 public class Decoder {
     public static final int BUFFER_SIZE = 2 * 1152;
     public static final int MAX_CHANNELS = 2;
+
+    /**
+     * Replace lost granules with silence.
+     */
+    public static final int CONCEAL_MUTE = 0;
+
+    /**
+     * Replace lost granules with the last good granule, fading out.
+     */
+    public static final int CONCEAL_REPEAT = 1;
+
     private static final boolean BENCHMARK = false;
     
     protected final int[] bufferPointer = new int[MAX_CHANNELS];
     protected int channels;
     private SynthesisFilter filter1;
     private SynthesisFilter filter2;
+    private Layer1Decoder l1decoder;
+    private Layer2Decoder l2decoder;
     private Layer3Decoder l3decoder;
     private boolean initialized;
+    private boolean mono;
+    private int downsampling = 1;
+    private int outputFrequency;
+    private SilenceDetector silenceDetector;
+    private boolean synthesis = true;
+    private DecodeReport report;
+    private int concealment;
+    private boolean checkCrc;
 
     private SourceDataLine line;
+    private PcmOutput output;
     private final byte[] buffer = new byte[BUFFER_SIZE * 2];
-    private boolean stop;
+    private volatile boolean stop;
     private volatile boolean pause;
+    private volatile AudioOutput audio;
+    private int bufferMillis = AudioOutput.DEFAULT_BUFFER_MILLIS;
+    private long skipBytes, remainingBytes = -1;
 
 
     public void decodeFrame(Header header, Bitstream stream) throws IOException {
@@ -30,17 +53,32 @@ public class Decoder {
             double scaleFactor = 32700.0f;
             int mode = header.mode();
             int channels = mode == Header.MODE_SINGLE_CHANNEL ? 1 : 2;
-            filter1 = new SynthesisFilter(0, scaleFactor);
-            if (channels == 2) {
-                filter2 = new SynthesisFilter(1, scaleFactor);
+            filter1 = new SynthesisFilter(0, scaleFactor, downsampling);
+            if (channels == 2 && !mono) {
+                filter2 = new SynthesisFilter(1, scaleFactor, downsampling);
             }
             initialized = true;
         }
-        if (l3decoder == null) {
-            l3decoder = new Layer3Decoder(stream, header, filter1, filter2,
-                    this);
+        switch (header.layer()) {
+        case 1:
+            if (l1decoder == null) {
+                l1decoder = new Layer1Decoder(stream, header, filter1, filter2, this);
+            }
+            l1decoder.decodeFrame();
+            break;
+        case 2:
+            if (l2decoder == null) {
+                l2decoder = new Layer2Decoder(stream, header, filter1, filter2, this);
+            }
+            l2decoder.decodeFrame();
+            break;
+        default:
+            if (l3decoder == null) {
+                l3decoder = new Layer3Decoder(stream, header, filter1, filter2,
+                        this);
+            }
+            l3decoder.decodeFrame();
         }
-        l3decoder.decodeFrame();
         writeBuffer();
     }
 
@@ -52,105 +90,291 @@ public class Decoder {
         }
     }
 
+    public void initOutput(PcmOutput output, int numberOfChannels) {
+        initOutputBuffer(null, numberOfChannels);
+        this.output = output;
+    }
+
+    /**
+     * Mix stereo input down to one channel. This needs to be set before the
+     * first frame is decoded. Only one inverse MDCT and synthesis filter is
+     * run per granule if possible, so this is faster than decoding both
+     * channels.
+     */
+    public void setMono(boolean mono) {
+        this.mono = mono;
+    }
+
+    public boolean isMono() {
+        return mono;
+    }
+
+    /**
+     * Decode at a lower sample rate, using only the lower subbands. This is
+     * much faster than decoding at the full rate and resampling. This needs
+     * to be set before the first frame is decoded.
+     *
+     * @param factor 1 (full rate), 2 (half rate) or 4 (quarter rate)
+     */
+    public void setDownsampling(int factor) {
+        if (factor != 1 && factor != 2 && factor != 4) {
+            throw new IllegalArgumentException("factor: " + factor);
+        }
+        downsampling = factor;
+    }
+
+    public int getDownsampling() {
+        return downsampling;
+    }
+
+    /**
+     * Play (or convert) all tracks at the given sample rate, converting the
+     * rate where needed.
+     *
+     * @param frequency the sample rate, or 0 to use the rate of each track
+     */
+    public void setOutputFrequency(int frequency) {
+        outputFrequency = frequency;
+    }
+
+    public int getOutputFrequency() {
+        return outputFrequency;
+    }
+
+    /**
+     * Measure the spectral energy of each granule while decoding. This needs
+     * to be set before the first frame is decoded.
+     */
+    public void setSilenceDetector(SilenceDetector detector) {
+        silenceDetector = detector;
+    }
+
+    SilenceDetector getSilenceDetector() {
+        return silenceDetector;
+    }
+
+    /**
+     * Decode in resilient mode: the side information is validated, and
+     * granules that can't be decoded are concealed instead of skipped, so
+     * that the timing is kept and no clicks are produced. The errors are
+     * added to the report. Layer I and II frames that can't be decoded are
+     * always muted. This needs to be set before the first frame is decoded.
+     *
+     * @param report the report
+     * @param concealment CONCEAL_MUTE or CONCEAL_REPEAT
+     */
+    public void setResilient(DecodeReport report, int concealment) {
+        this.report = report;
+        this.concealment = concealment;
+    }
+
+    /**
+     * Get the error report.
+     *
+     * @return the report, or null if the resilient mode is not used
+     */
+    public DecodeReport getReport() {
+        return report;
+    }
+
+    int getConcealment() {
+        return concealment;
+    }
+
+    /**
+     * Verify the CRC of frames that contain one. A frame with a wrong CRC is
+     * concealed in resilient mode, and otherwise causes an exception. This
+     * needs to be set before the first frame is decoded.
+     */
+    public void setCheckCrc(boolean checkCrc) {
+        this.checkCrc = checkCrc;
+    }
+
+    boolean isCheckCrc() {
+        return checkCrc;
+    }
+
+    /**
+     * Only decode the spectrum, without the synthesis (used by the silence
+     * detector).
+     */
+    void setSynthesis(boolean synthesis) {
+        this.synthesis = synthesis;
+    }
+
+    boolean isSynthesis() {
+        return synthesis;
+    }
+
     public void appendSamples(int channel, double[] f) {
         int p = bufferPointer[channel];
-        for (int i = 0; i < 32; i++) {
+        int step = channels + channels;
+        for (int i = 0; i < f.length; i++) {
             double sample = f[i];
             int s = (int) ((sample > 32767.0f) ? 32767 : ((sample < -32768.0f) ? -32768 : sample));
             buffer[p] = (byte) (s >> 8);
             buffer[p + 1] = (byte) (s & 0xff);
-            p += 4;
+            p += step;
         }
         bufferPointer[channel] = p;
     }
 
+    /**
+     * Drop samples at the start and the end of the output.
+     *
+     * @param skipSamples the number of samples (per channel) to skip
+     * @param totalSamples the number of samples to output after that, or -1
+     *            for all
+     */
+    void setTrim(long skipSamples, long totalSamples) {
+        int frameSize = channels * 2;
+        skipBytes = skipSamples * frameSize;
+        remainingBytes = totalSamples < 0 ? -1 : totalSamples * frameSize;
+    }
+
     protected void writeBuffer() throws IOException {
+        int start = 0, end = bufferPointer[0];
+        if (skipBytes > 0) {
+            start = (int) Math.min(skipBytes, end);
+            skipBytes -= start;
+        }
+        if (remainingBytes >= 0) {
+            end = start + (int) Math.min(end - start, remainingBytes);
+            remainingBytes -= end - start;
+        }
         if (line != null) {
-            line.write(buffer, 0, bufferPointer[0]);
+            line.write(buffer, start, end - start);
+        } else if (output != null) {
+            output.write(buffer, start, end - start);
         }
         for (int i = 0; i < channels; i++) {
             bufferPointer[i] = i + i;
         }
     }
 
+    /**
+     * Open a track for playing. This reads the first frame header.
+     */
+    public Track open(String name, InputStream in) throws IOException {
+        try {
+            return new Track(name, in, mono, downsampling);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a track of audio that was already decoded.
+     *
+     * @param pcm the signed 16 bit big endian interleaved samples
+     */
+    public Track open(String name, InputStream pcm, int frequency, int channels) {
+        return new Track(name, pcm, frequency, channels);
+    }
+
     public void play(String name, InputStream in) throws IOException {
+        play(open(name, in));
+        close();
+    }
+
+    /**
+     * Play the track. The audio line is kept open afterwards, so that the
+     * next track with the same format continues without a gap.
+     */
+    public void play(Track track) throws IOException {
         stop = false;
-        int frameCount = Integer.MAX_VALUE;
-
-        Decoder decoder = new Decoder();
-        Bitstream stream = new Bitstream(in);
-        SourceDataLine line = null;
-        int error = 0;
-        for (int frame = 0; !stop && frame < frameCount; frame++) {
-            if (pause) {
-                line.stop();
-                while (pause && !stop) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        // ignore
-                    }
-                }
-                line.flush();
-                line.start();
+        AudioOutput out = audio;
+        try {
+            if (track.isEmpty()) {
+                return;
             }
-            try {
-                Header header = stream.readFrame();
-                if (header == null) {
-                    break;
-                }
-                if (decoder.channels == 0) {
-                    int channels = (header.mode() == Header.MODE_SINGLE_CHANNEL) ? 1 : 2;
-                    float sampleRate = header.frequency();
-                    int sampleSize = 16;
-                    AudioFormat format = new AudioFormat(
-                            AudioFormat.Encoding.PCM_SIGNED, sampleRate,
-                            sampleSize, channels, channels * (sampleSize / 8),
-                            sampleRate, true);
-                    SourceDataLine.Info info = new DataLine.Info(
-                            SourceDataLine.class, format);
-                    line = (SourceDataLine) AudioSystem.getLine(info);
-                    if (BENCHMARK) {
-                        decoder.initOutputBuffer(null, channels);
-                    } else {
-                        decoder.initOutputBuffer(line, channels);
-                    }
-
-                    line.open(format);
-                    line.start();
-                }
-                while (line.available() < 100) {
-                    Thread.yield();
-                    Thread.sleep(200);
-                }
-                decoder.decodeFrame(header, stream);
-            } catch (Exception e) {
-                if (error++ > 1000) {
-                    break;
-                }
-                System.out.println("Error at: " + name + " Frame: " + frame + " Error: " + e.toString());
-            } finally {
-                stream.closeFrame();
+            int frequency = outputFrequency > 0 ? outputFrequency : track.getFrequency();
+            if (out != null && !out.matches(frequency, track.getChannels())) {
+                audio = null;
+                out.close();
+                out = null;
+            }
+            if (out == null) {
+                out = new AudioOutput(bufferMillis);
+                out.setPaused(pause);
+                out.open(frequency, track.getChannels());
+                audio = out;
+            }
+            PcmOutput target = out;
+            if (BENCHMARK) {
+                target = new NullOutput();
+            }
+            Resampler resampler = null;
+            if (frequency != track.getFrequency()) {
+                resampler = new Resampler(target, track.getFrequency(), frequency, track.getChannels());
+                target = resampler;
+            }
+            track.start(target);
+            while (!stop && track.decodeFrame()) {
+                // decode
+            }
+            if (resampler != null && !stop) {
+                resampler.flush();
+            }
+        } catch (InterruptedIOException e) {
+            // stopped
+        } finally {
+            track.close();
+            if (stop && out != null) {
+                audio = null;
+                out.stop();
+                out.close();
             }
         }
-        if (error > 0) {
-            System.out.println("errors: " + error);
-        }
-        in.close();
-        if (line != null) {
-            line.stop();
-            line.close();
-            line = null;
+    }
+
+    /**
+     * Play the remaining audio and close the audio line.
+     */
+    public void close() throws IOException {
+        AudioOutput out = audio;
+        audio = null;
+        if (out != null) {
+            out.close();
         }
     }
 
+    /**
+     * Set how far (in milliseconds) the decoder may run ahead of the audio
+     * output.
+     */
+    public void setBufferMillis(int bufferMillis) {
+        this.bufferMillis = bufferMillis;
+    }
+
     public void stop() {
         this.stop = true;
+        AudioOutput out = audio;
+        if (out != null) {
+            out.stop();
+        }
     }
     
     public boolean pause() {
         this.pause = !pause;
+        AudioOutput out = audio;
+        if (out != null) {
+            out.setPaused(pause);
+        }
         return pause;
     }
 
+    private static class NullOutput implements PcmOutput {
+
+        public void open(int frequency, int channels) {
+        }
+
+        public void write(byte[] data, int offset, int length) {
+        }
+
+        public void close() {
+        }
+    }
+
 }
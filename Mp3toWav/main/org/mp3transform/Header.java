@@ -10,22 +10,33 @@ public final class Header {
     static final int VERSION_MPEG1 = 1;
     static final int MODE_JOINT_STEREO = 1;
     public static final int MODE_SINGLE_CHANNEL = 3;
-    private static final int SAMPLE_FREQUENCY_FOURTYEIGHT = 1;
-    private static final int SAMPLE_FREQUENCY_THIRTYTWO = 2;
+
+    /**
+     * The header bits that are the same in each frame of a free format
+     * stream: sync word, version, layer, bitrate index and sampling
+     * frequency.
+     */
+    private static final int FREE_FORMAT_MASK = 0xfffefc00;
     private boolean protectionBit, paddingBit;
     private int bitrateIndex, modeExtension;
     private int version;
     private int mode;
     private int sampleFrequency;
-    private int numberOfSubbands, intensityStereoBound;
+    private int layer;
+    private int intensityStereoBound;
     private byte syncMode = Bitstream.INITIAL_SYNC;
     private int frameSize;
     private boolean vbr;
+    private boolean tagFrame;
+    private int frames = -1;
+    private int encoderDelay = -1, encoderPadding = -1;
     private int slots;
+    private int headerString;
+    private int freeFormatSize;
 
     boolean readHeader(Bitstream stream) throws IOException {
         while (true) {
-            int headerString = stream.syncHeader(syncMode);
+            headerString = stream.syncHeader(syncMode);
             if (syncMode == Bitstream.INITIAL_SYNC) {
                 version = ((headerString >>> 19) & 1);
                 if (((headerString >>> 20) & 1) == 0) {
@@ -41,10 +52,7 @@ public final class Header {
                             + sampleFrequency);
                 }
             }
-            int layer = 4 - (headerString >>> 17) & 3;
-            if (layer != 3) {
-                throw new IOException("Unsupported layer: " + layer);
-            }
+            layer = 4 - ((headerString >>> 17) & 3);
             protectionBit = ((headerString >>> 16) & 1) != 0;
             bitrateIndex = (headerString >>> 12) & 0xF;
             paddingBit = ((headerString >>> 9) & 1) != 0;
@@ -53,30 +61,15 @@ public final class Header {
             if (mode == MODE_JOINT_STEREO) {
                 intensityStereoBound = (modeExtension << 2) + 4;
             } else {
-                intensityStereoBound = 0; 
-            }
-            int channelBitrate = bitrateIndex;
-            if (mode != MODE_SINGLE_CHANNEL) {
-                if (channelBitrate == 4) {
-                    channelBitrate = 1;
-                } else {
-                    channelBitrate -= 4;
-                }
+                intensityStereoBound = 32;
             }
-            if (channelBitrate == 1 || channelBitrate == 2) {
-                if (sampleFrequency == SAMPLE_FREQUENCY_THIRTYTWO) {
-                    numberOfSubbands = 12;
-                } else {
-                    numberOfSubbands = 8;
+            if (bitrateIndex == 0 && freeFormatSize == 0) {
+                // free format: the frame size is measured once
+                int len = stream.findNextHeader(headerString, FREE_FORMAT_MASK, layer == 3 ? sideInfoSize() : 0);
+                if (len < 0) {
+                    continue;
                 }
-            } else if (sampleFrequency == SAMPLE_FREQUENCY_FOURTYEIGHT
-                    || (channelBitrate >= 3 && channelBitrate <= 5)) {
-                numberOfSubbands = 27;
-            } else {
-                numberOfSubbands = 30;
-            }
-            if (intensityStereoBound > numberOfSubbands) {
-                intensityStereoBound = numberOfSubbands;
+                freeFormatSize = len + 4 - (paddingBit ? paddingSize() : 0);
             }
             calculateFramesize();
             int frameSizeLoaded = stream.readFrameData(frameSize);
@@ -87,11 +80,15 @@ public final class Header {
             if (stream.isSyncCurrentPosition(syncMode)) {
                 if (syncMode == Bitstream.INITIAL_SYNC) {
                     syncMode = Bitstream.STRICT_SYNC;
-                    stream.setSyncWord(headerString & 0xFFF80CC0);
+                    stream.setSyncWord(headerString & 0xFFFE0CC0);
                 }
                 break;
             }
             stream.unreadFrame();
+            if (bitrateIndex == 0) {
+                // measure again
+                freeFormatSize = 0;
+            }
         }
         stream.parseFrame();
         if (!protectionBit) {
@@ -101,7 +98,9 @@ public final class Header {
     }
 
     void parseVBR(byte[] firstFrame) throws IOException {
-        byte[] tmp = new byte[4];
+        if (layer != 3) {
+            return;
+        }
         int offset;
         if (version == VERSION_MPEG1) {
             if (mode == MODE_SINGLE_CHANNEL) {
@@ -116,23 +115,131 @@ public final class Header {
                 offset = 21 - 4;
             }
         }
-        try {
-            System.arraycopy(firstFrame, offset, tmp, 0, 4);
-            if ("Xing".equals(new String(tmp))) {
-                vbr = true;
+        String tag = readTag(firstFrame, offset);
+        if ("Xing".equals(tag) || "Info".equals(tag)) {
+            vbr = "Xing".equals(tag);
+            tagFrame = true;
+            int flags = readInt(firstFrame, offset + 4);
+            offset += 8;
+            if ((flags & 1) != 0) {
+                frames = readInt(firstFrame, offset);
+                offset += 4;
             }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new IOException("Corrupt Xing VBR header");
+            if ((flags & 2) != 0) {
+                offset += 4;
+            }
+            if ((flags & 4) != 0) {
+                offset += 100;
+            }
+            if ((flags & 8) != 0) {
+                offset += 4;
+            }
+            parseLameTag(firstFrame, offset);
         }
         offset = 36 - 4;
-        try {
-            System.arraycopy(firstFrame, offset, tmp, 0, 4);
-            if ("VBRI".equals(new String(tmp))) {
-                vbr = true;
+        if ("VBRI".equals(readTag(firstFrame, offset))) {
+            vbr = true;
+            tagFrame = true;
+            frames = readInt(firstFrame, offset + 14);
+        }
+    }
+
+    private void parseLameTag(byte[] data, int offset) throws IOException {
+        String encoder = readTag(data, offset);
+        if ("LAME".equals(encoder) || "Lavf".equals(encoder) || "Lavc".equals(encoder)) {
+            if (offset + 24 > frameSize) {
+                throw new IOException("Corrupt LAME header");
+            }
+            int x = ((data[offset + 21] & 0xff) << 16) | ((data[offset + 22] & 0xff) << 8) | (data[offset + 23] & 0xff);
+            encoderDelay = x >>> 12;
+            encoderPadding = x & 0xfff;
+        }
+    }
+
+    private String readTag(byte[] data, int offset) {
+        if (offset + 4 > frameSize) {
+            return null;
+        }
+        return new String(data, offset, 4);
+    }
+
+    private int readInt(byte[] data, int offset) throws IOException {
+        if (offset + 4 > frameSize) {
+            throw new IOException("Corrupt VBR header");
+        }
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Whether the first frame only contains a Xing, Info or VBRI header, and
+     * no audio.
+     */
+    boolean tagFrame() {
+        return tagFrame;
+    }
+
+    /**
+     * The number of audio frames according to the VBR header, or -1.
+     */
+    int frames() {
+        return frames;
+    }
+
+    /**
+     * The number of samples the encoder added at the start, or -1.
+     */
+    int encoderDelay() {
+        return encoderDelay;
+    }
+
+    /**
+     * The number of samples the encoder added at the end, or -1.
+     */
+    int encoderPadding() {
+        return encoderPadding;
+    }
+
+    int samplesPerFrame() {
+        if (layer == 1) {
+            return 384;
+        } else if (layer == 2) {
+            return 1152;
+        }
+        return version == VERSION_MPEG1 ? 1152 : 576;
+    }
+
+    /**
+     * Estimate the duration of a stream that starts with this frame. The
+     * number of frames of the VBR header is used if there is one, otherwise
+     * the bitrate (for free format, the frame size).
+     *
+     * @param audioBytes the size of the audio data
+     * @return the duration in milliseconds
+     */
+    public long duration(long audioBytes) {
+        long frameCount = frames;
+        if (frameCount < 0) {
+            if (bitrate() > 0) {
+                return audioBytes * 8000 / bitrate();
             }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new IOException("Corrupt VBRI VBR header");
+            frameCount = audioBytes / (frameSize + 4);
         }
+        return frameCount * samplesPerFrame() * 1000 / frequency();
+    }
+
+    /**
+     * The layer (1, 2 or 3).
+     */
+    public int layer() {
+        return layer;
+    }
+
+    /**
+     * The bitrate in bits per second, or 0 for free format.
+     */
+    public int bitrate() {
+        return Constants.BITRATES[layer - 1][version][bitrateIndex];
     }
 
     int version() {
@@ -155,6 +262,30 @@ public final class Header {
         return slots;
     }
 
+    /**
+     * Whether the frame contains a CRC (after the header).
+     */
+    boolean hasCrc() {
+        return !protectionBit;
+    }
+
+    /**
+     * The last two bytes of the header, which are included in the CRC.
+     */
+    int crcHeaderBits() {
+        return headerString & 0xffff;
+    }
+
+    /**
+     * The size of the side information in bytes.
+     */
+    int sideInfoSize() {
+        if (version == VERSION_MPEG1) {
+            return (mode == MODE_SINGLE_CHANNEL) ? 17 : 32;
+        }
+        return (mode == MODE_SINGLE_CHANNEL) ? 9 : 17;
+    }
+
     boolean vbr() {
         return vbr;
     }
@@ -163,21 +294,38 @@ public final class Header {
         return modeExtension;
     }
 
+    /**
+     * The first subband that is coded as intensity stereo in layer I and II
+     * (32 if none is).
+     */
+    int intensityStereoBound() {
+        return intensityStereoBound;
+    }
+
+    /**
+     * The size of the padding in bytes (a layer I slot is 4 bytes).
+     */
+    private int paddingSize() {
+        return layer == 1 ? 4 : 1;
+    }
+
     private void calculateFramesize() {
-        frameSize = (144 * Constants.BITRATES[version][bitrateIndex])
-                / frequency();
-        if (version == VERSION_MPEG2_LSF || version == VERSION_MPEG25_LSF) {
-            frameSize >>= 1;
+        if (bitrateIndex == 0) {
+            frameSize = freeFormatSize;
+        } else {
+            if (layer == 1) {
+                frameSize = (12 * bitrate() / frequency()) * 4;
+            } else {
+                frameSize = (144 * bitrate()) / frequency();
+                if (layer == 3 && version != VERSION_MPEG1) {
+                    frameSize >>= 1;
+                }
+            }
         }
         if (paddingBit) {
-            frameSize++;
+            frameSize += paddingSize();
         }
         frameSize -= 4;
-        if (version == VERSION_MPEG1) {
-            slots = (mode == MODE_SINGLE_CHANNEL) ? 17 : 32;
-        } else {
-            slots = (mode == MODE_SINGLE_CHANNEL) ? 9 : 17;
-        }
-        slots = frameSize - slots - (protectionBit ? 0 : 2);
+        slots = frameSize - sideInfoSize() - (protectionBit ? 0 : 2);
     }
 }
@@ -0,0 +1,166 @@
+package org.mp3transform;
+
+/**
+ * The 10 byte header (or footer) of an ID3v2 tag. The size is syncsafe: 28
+ * bits in four bytes, the highest bit of each byte must be zero.
+ */
+public final class ID3v2Header {
+
+    /**
+     * The size of the header, and of the footer.
+     */
+    public static final int SIZE = 10;
+
+    private static final int FLAG_UNSYNCHRONISATION = 0x80;
+    private static final int FLAG_EXTENDED_HEADER = 0x40;
+    private static final int FLAG_FOOTER = 0x10;
+
+    private final int version;
+    private final int flags;
+    private final int bodySize;
+
+    private ID3v2Header(int version, int flags, int bodySize) {
+        this.version = version;
+        this.flags = flags;
+        this.bodySize = bodySize;
+    }
+
+    /**
+     * Parse the header at the start of a tag.
+     *
+     * @param b the buffer
+     * @param off the offset of the 10 bytes
+     * @return the header, or null if this is not an ID3v2 header
+     */
+    public static ID3v2Header parseHeader(byte[] b, int off) {
+        return parse(b, off, 'I', 'D', '3');
+    }
+
+    /**
+     * Parse the footer at the end of a tag. The footer is a copy of the
+     * header with the identifier "3DI".
+     *
+     * @param b the buffer
+     * @param off the offset of the 10 bytes
+     * @return the header, or null if this is not an ID3v2 footer
+     */
+    public static ID3v2Header parseFooter(byte[] b, int off) {
+        ID3v2Header h = parse(b, off, '3', 'D', 'I');
+        return h != null && h.hasFooter() ? h : null;
+    }
+
+    private static ID3v2Header parse(byte[] b, int off, char c0, char c1, char c2) {
+        if (off + SIZE > b.length || b[off] != c0 || b[off + 1] != c1 || b[off + 2] != c2) {
+            return null;
+        }
+        int version = b[off + 3] & 0xff;
+        if (version == 0xff || (b[off + 4] & 0xff) == 0xff) {
+            return null;
+        }
+        int size = readSyncsafe(b, off + 6);
+        if (size < 0) {
+            return null;
+        }
+        return new ID3v2Header(version, b[off + 5] & 0xff, size);
+    }
+
+    /**
+     * Read a 28 bit syncsafe integer.
+     *
+     * @return the value, or -1 if one of the bytes has the highest bit set
+     */
+    public static int readSyncsafe(byte[] b, int off) {
+        int x = 0;
+        for (int i = off; i < off + 4; i++) {
+            int v = b[i] & 0xff;
+            if (v >= 0x80) {
+                return -1;
+            }
+            x = (x << 7) | v;
+        }
+        return x;
+    }
+
+    /**
+     * Undo the unsynchronisation: each 0xff 0x00 is replaced with 0xff.
+     *
+     * @param b the buffer
+     * @param off the start
+     * @param len the number of bytes
+     * @return the new number of bytes
+     */
+    public static int resynchronize(byte[] b, int off, int len) {
+        int end = off + len, j = off;
+        for (int i = off; i < end; i++) {
+            byte x = b[i];
+            b[j++] = x;
+            if (x == (byte) 0xff && i + 1 < end && b[i + 1] == 0) {
+                i++;
+            }
+        }
+        return j - off;
+    }
+
+    /**
+     * The major version (2, 3 or 4).
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * The size of the tag without header and footer (the extended header,
+     * the frames and the padding).
+     */
+    public int getBodySize() {
+        return bodySize;
+    }
+
+    /**
+     * The size of the tag including header and footer.
+     */
+    public int getTagSize() {
+        return SIZE + bodySize + (hasFooter() ? SIZE : 0);
+    }
+
+    public boolean hasFooter() {
+        return version >= 4 && (flags & FLAG_FOOTER) != 0;
+    }
+
+    public boolean hasExtendedHeader() {
+        return version >= 3 && (flags & FLAG_EXTENDED_HEADER) != 0;
+    }
+
+    /**
+     * Whether the unsynchronisation scheme was applied. For version 2.4, this
+     * means each frame is unsynchronised, otherwise the whole body is.
+     */
+    public boolean isUnsynchronised() {
+        return (flags & FLAG_UNSYNCHRONISATION) != 0;
+    }
+
+    /**
+     * Get the position of the first frame within the body, after the
+     * extended header.
+     *
+     * @param b the start of the body (resynchronised if needed), at least 4
+     *            bytes if there is an extended header
+     * @param off the offset of the body
+     * @return the offset, or -1 if the extended header is corrupt
+     */
+    public int getFramesOffset(byte[] b, int off) {
+        if (!hasExtendedHeader()) {
+            return 0;
+        }
+        int offset;
+        if (version == 3) {
+            // the size excludes itself, and isn't syncsafe
+            offset = 4 + (((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8)
+                    | (b[off + 3] & 0xff));
+        } else {
+            offset = readSyncsafe(b, off);
+        }
+        return offset < 4 || offset > bodySize ? -1 : offset;
+    }
+
+}
@@ -0,0 +1,375 @@
+package org.mp3transform;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Iterates over the frames of an ID3v2.2, 2.3 or 2.4 tag. Only the frame
+ * headers are read while iterating; the data of a frame is read when it is
+ * requested, so that large pictures are skipped (or transferred to a file
+ * directly) instead of being loaded into memory. Only a tag of version 2.2 or
+ * 2.3 that is unsynchronised as a whole is read into memory.
+ */
+public final class ID3v2Reader {
+
+    private static final Charset[] CHARSETS = { Charset.forName("ISO-8859-1"), Charset.forName("UTF-16"),
+            Charset.forName("UTF-16BE"), Charset.forName("UTF-8") };
+
+    /**
+     * The number of bytes read to find the start of the picture data.
+     */
+    private static final int PICTURE_PREFIX = 256;
+
+    private static final int V3_COMPRESSION = 0x80, V3_ENCRYPTION = 0x40, V3_GROUPING = 0x20;
+    private static final int V4_GROUPING = 0x40, V4_COMPRESSION = 0x08, V4_ENCRYPTION = 0x04,
+            V4_UNSYNCHRONISATION = 0x02, V4_DATA_LENGTH = 0x01;
+
+    private final SeekableByteChannel channel;
+    private final ID3v2Header header;
+    private final long bodyPos;
+    private final int version;
+    private final byte[] frameHeader = new byte[ID3v2Header.SIZE];
+    private ByteBuffer memory;
+    private int pos;
+    private String id;
+    private int frameFlags;
+    private int dataOffset, dataSize;
+    private int pictureType;
+
+    private ID3v2Reader(SeekableByteChannel channel, ID3v2Header header, long bodyPos) {
+        this.channel = channel;
+        this.header = header;
+        this.bodyPos = bodyPos;
+        version = header.getVersion();
+    }
+
+    /**
+     * Open the tag at the given position.
+     *
+     * @param channel the file
+     * @param tagPos the position of the tag header
+     * @return the reader, or null if there is no valid ID3v2 tag
+     */
+    public static ID3v2Reader open(SeekableByteChannel channel, long tagPos) throws IOException {
+        byte[] buff = new byte[ID3v2Header.SIZE];
+        if (!readFully(channel, tagPos, ByteBuffer.wrap(buff))) {
+            return null;
+        }
+        ID3v2Header header = ID3v2Header.parseHeader(buff, 0);
+        if (header == null || header.getVersion() < 2 || header.getVersion() > 4) {
+            return null;
+        }
+        ID3v2Reader reader = new ID3v2Reader(channel, header, tagPos + ID3v2Header.SIZE);
+        int size = header.getBodySize();
+        if (header.isUnsynchronised() && header.getVersion() < 4) {
+            byte[] body = new byte[size];
+            if (!readFully(channel, reader.bodyPos, ByteBuffer.wrap(body))) {
+                return null;
+            }
+            size = ID3v2Header.resynchronize(body, 0, size);
+            reader.memory = ByteBuffer.wrap(body, 0, size);
+        }
+        if (header.hasExtendedHeader()) {
+            if (!reader.read(0, buff, 4)) {
+                return null;
+            }
+            reader.pos = header.getFramesOffset(buff, 0);
+            if (reader.pos < 0) {
+                return null;
+            }
+        }
+        return reader;
+    }
+
+    private static boolean readFully(SeekableByteChannel channel, long pos, ByteBuffer buff)
+            throws IOException {
+        channel.position(pos);
+        while (buff.hasRemaining()) {
+            if (channel.read(buff) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read from the body of the tag.
+     */
+    private boolean read(int offset, byte[] b, int len) throws IOException {
+        if (offset + len > getBodySize()) {
+            return false;
+        }
+        if (memory != null) {
+            System.arraycopy(memory.array(), offset, b, 0, len);
+            return true;
+        }
+        return readFully(channel, bodyPos + offset, ByteBuffer.wrap(b, 0, len));
+    }
+
+    private int getBodySize() {
+        return memory == null ? header.getBodySize() : memory.limit();
+    }
+
+    public ID3v2Header getHeader() {
+        return header;
+    }
+
+    /**
+     * Read the next frame header.
+     *
+     * @return false if there are no more frames (the padding or the end of
+     *         the tag was reached)
+     */
+    public boolean next() throws IOException {
+        id = null;
+        int headerSize = version == 2 ? 6 : 10;
+        int idLength = version == 2 ? 3 : 4;
+        if (!read(pos, frameHeader, headerSize)) {
+            return false;
+        }
+        for (int i = 0; i < idLength; i++) {
+            char c = (char) frameHeader[i];
+            if ((c < 'A' || c > 'Z') && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        int size;
+        if (version == 2) {
+            size = readInt(frameHeader, 3, 3);
+            frameFlags = 0;
+        } else {
+            size = version == 4 ? ID3v2Header.readSyncsafe(frameHeader, 4) : -1;
+            if (size < 0) {
+                // some writers don't use syncsafe sizes in version 2.4
+                size = readInt(frameHeader, 4, 4);
+            }
+            frameFlags = readInt(frameHeader, 8, 2);
+        }
+        int start = pos + headerSize;
+        if (size < 0 || size > getBodySize() - start) {
+            return false;
+        }
+        pos = start + size;
+        int skip = 0;
+        if (version == 3) {
+            skip = ((frameFlags & V3_COMPRESSION) != 0 ? 4 : 0) + ((frameFlags & V3_ENCRYPTION) != 0 ? 1 : 0)
+                    + ((frameFlags & V3_GROUPING) != 0 ? 1 : 0);
+        } else if (version == 4) {
+            skip = ((frameFlags & V4_GROUPING) != 0 ? 1 : 0) + ((frameFlags & V4_ENCRYPTION) != 0 ? 1 : 0)
+                    + ((frameFlags & V4_DATA_LENGTH) != 0 ? 4 : 0);
+        }
+        skip = Math.min(skip, size);
+        id = new String(frameHeader, 0, idLength, CHARSETS[0]);
+        dataOffset = start + skip;
+        dataSize = size - skip;
+        return true;
+    }
+
+    private static int readInt(byte[] b, int off, int len) {
+        int x = 0;
+        for (int i = off; i < off + len; i++) {
+            x = (x << 8) | (b[i] & 0xff);
+        }
+        return x;
+    }
+
+    /**
+     * The identifier of the current frame, for example "TIT2" (or "TT2" for
+     * version 2.2).
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The size of the data of the current frame, as stored.
+     */
+    public int getSize() {
+        return dataSize;
+    }
+
+    /**
+     * The position of the data of the current frame within the file.
+     *
+     * @return the position, or -1 if the data is not stored as is (because
+     *         it is unsynchronised)
+     */
+    public long getDataPosition() {
+        return memory != null || isFrameUnsynchronised() ? -1 : bodyPos + dataOffset;
+    }
+
+    /**
+     * Whether the data of the current frame is compressed or encrypted, so
+     * that it can't be interpreted.
+     */
+    public boolean isEncoded() {
+        if (version == 3) {
+            return (frameFlags & (V3_COMPRESSION | V3_ENCRYPTION)) != 0;
+        }
+        return version == 4 && (frameFlags & (V4_COMPRESSION | V4_ENCRYPTION)) != 0;
+    }
+
+    private boolean isFrameUnsynchronised() {
+        return version == 4 && (header.isUnsynchronised() || (frameFlags & V4_UNSYNCHRONISATION) != 0);
+    }
+
+    /**
+     * Read the data of the current frame.
+     *
+     * @return the data
+     */
+    public ByteBuffer getData() throws IOException {
+        return getData(dataSize);
+    }
+
+    /**
+     * Read the start of the data of the current frame.
+     *
+     * @param maxLength the maximum number of bytes
+     * @return the data (at most maxLength bytes)
+     */
+    public ByteBuffer getData(int maxLength) throws IOException {
+        if (memory != null) {
+            ByteBuffer buff = memory.duplicate();
+            buff.limit(dataOffset + Math.min(maxLength, dataSize)).position(dataOffset);
+            return buff.slice();
+        }
+        boolean unsync = isFrameUnsynchronised();
+        // at most every second byte is removed
+        int len = unsync ? (int) Math.min(dataSize, 2L * maxLength) : Math.min(maxLength, dataSize);
+        byte[] b = new byte[len];
+        if (!read(dataOffset, b, len)) {
+            throw new IOException("Truncated frame " + id);
+        }
+        if (unsync) {
+            len = Math.min(maxLength, ID3v2Header.resynchronize(b, 0, len));
+        }
+        return ByteBuffer.wrap(b, 0, len);
+    }
+
+    /**
+     * Copy the data of the current frame, starting at the given offset. If
+     * possible, the data is transferred without reading it.
+     *
+     * @param offset the offset within the data
+     * @param out the target
+     * @return the number of bytes written
+     */
+    public long transferData(int offset, WritableByteChannel out) throws IOException {
+        if (memory != null || isFrameUnsynchronised() || !(channel instanceof FileChannel)) {
+            ByteBuffer buff = getData();
+            buff.position(Math.min(offset, buff.limit()));
+            long len = buff.remaining();
+            while (buff.hasRemaining()) {
+                out.write(buff);
+            }
+            return len;
+        }
+        FileChannel file = (FileChannel) channel;
+        long pos = bodyPos + dataOffset + offset;
+        long remaining = Math.max(0, dataSize - offset);
+        long len = remaining;
+        while (remaining > 0) {
+            long n = file.transferTo(pos, remaining, out);
+            if (n <= 0) {
+                throw new IOException("Truncated frame " + id);
+            }
+            pos += n;
+            remaining -= n;
+        }
+        return len;
+    }
+
+    /**
+     * Get the text of the current frame, if it is a text information frame.
+     * Only the first value is returned if there are multiple.
+     *
+     * @return the text, or null if this is not a text frame
+     */
+    public String getText() throws IOException {
+        if (id == null || id.charAt(0) != 'T' || id.startsWith("TXX") || isEncoded() || dataSize < 1) {
+            return null;
+        }
+        ByteBuffer data = getData();
+        int encoding = data.get();
+        if (encoding < 0 || encoding >= CHARSETS.length) {
+            return null;
+        }
+        int start = data.position();
+        int end = findTerminator(data, start, encoding);
+        data.limit(end).position(start);
+        return CHARSETS[encoding].decode(data).toString();
+    }
+
+    /**
+     * Find the end of a null terminated string (two null bytes at an even
+     * position for UTF-16).
+     *
+     * @return the position of the terminator, or the limit
+     */
+    private static int findTerminator(ByteBuffer data, int start, int encoding) {
+        int limit = data.limit();
+        if (encoding == 1 || encoding == 2) {
+            for (int i = start; i + 1 < limit; i += 2) {
+                if (data.get(i) == 0 && data.get(i + 1) == 0) {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = start; i < limit; i++) {
+                if (data.get(i) == 0) {
+                    return i;
+                }
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Get the offset of the image data within the current frame, if it is an
+     * attached picture. Only the start of the frame is read. This also reads
+     * the picture type.
+     *
+     * @return the offset, or -1 if this is not a picture frame
+     */
+    public int getPictureOffset() throws IOException {
+        boolean v2 = version == 2;
+        if (id == null || !id.equals(v2 ? "PIC" : "APIC") || isEncoded()) {
+            return -1;
+        }
+        for (int prefix = PICTURE_PREFIX;; prefix *= 4) {
+            ByteBuffer data = getData(prefix);
+            int limit = data.limit();
+            if (limit < 1) {
+                return -1;
+            }
+            int encoding = data.get(0);
+            // the image format (3 characters) or the null terminated MIME
+            // type, followed by the picture type and the description
+            int i = v2 ? 5 : findTerminator(data, 1, 0) + 2;
+            if (i < limit && encoding >= 0 && encoding < CHARSETS.length) {
+                pictureType = data.get(i - 1) & 0xff;
+                int end = findTerminator(data, i, encoding);
+                if (end < limit) {
+                    return end + (encoding == 1 || encoding == 2 ? 2 : 1);
+                }
+            }
+            if (prefix >= dataSize) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * The picture type of the current frame, as read by getPictureOffset (3
+     * is the front cover).
+     */
+    public int getPictureType() {
+        return pictureType;
+    }
+
+}
@@ -0,0 +1,73 @@
+package org.mp3transform;
+
+import java.io.IOException;
+
+/**
+ * Decodes layer I frames: 12 samples per subband, with a 4 bit allocation
+ * and one scale factor per subband and channel.
+ */
+final class Layer1Decoder extends SubbandDecoder {
+
+    private final int[][] allocation = new int[2][SBLIMIT];
+    private final double[][] factor = new double[2][SBLIMIT];
+    private final int[][] offset = new int[2][SBLIMIT];
+    private final double[] samples1 = new double[SBLIMIT];
+    private final double[] samples2 = new double[SBLIMIT];
+
+    Layer1Decoder(Bitstream stream, Header header, SynthesisFilter filter1, SynthesisFilter filter2,
+            Decoder player) {
+        super(stream, header, BLOCK_ROWS, filter1, filter2, player);
+    }
+
+    protected void decodeAudio() throws IOException {
+        int bound = getBound(SBLIMIT);
+        for (int sb = 0; sb < bound; sb++) {
+            for (int ch = 0; ch < channels; ch++) {
+                allocation[ch][sb] = stream.getBits(4);
+            }
+        }
+        for (int sb = bound; sb < SBLIMIT; sb++) {
+            allocation[0][sb] = allocation[1][sb] = stream.getBits(4);
+        }
+        if (!checkCrc(4 * (bound * channels + SBLIMIT - bound))) {
+            return;
+        }
+        for (int sb = 0; sb < SBLIMIT; sb++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int a = allocation[ch][sb];
+                if (a == 15) {
+                    badAllocation("bit allocation: 15");
+                    return;
+                }
+                if (a != 0) {
+                    // the sample has a + 1 bits, and 2^(a+1) - 1 levels
+                    int levels = (2 << a) - 1;
+                    factor[ch][sb] = SCALE_FACTORS[stream.getBits(6)] / levels;
+                    offset[ch][sb] = 1 - levels;
+                }
+            }
+        }
+        for (int row = 0; row < BLOCK_ROWS; row++) {
+            for (int sb = 0; sb < SBLIMIT; sb++) {
+                if (sb < bound) {
+                    for (int ch = 0; ch < channels; ch++) {
+                        double[] s = ch == 0 ? samples1 : samples2;
+                        int a = allocation[ch][sb];
+                        s[sb] = a == 0 ? 0 : (2 * stream.getBits(a + 1) + offset[ch][sb]) * factor[ch][sb];
+                    }
+                } else {
+                    int a = allocation[0][sb];
+                    if (a == 0) {
+                        samples1[sb] = samples2[sb] = 0;
+                    } else {
+                        int x = 2 * stream.getBits(a + 1) + offset[0][sb];
+                        samples1[sb] = x * factor[0][sb];
+                        samples2[sb] = x * factor[1][sb];
+                    }
+                }
+            }
+            outputRow(samples1, samples2);
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+package org.mp3transform;
+
+import java.io.IOException;
+
+/**
+ * Decodes layer II frames: 36 samples per subband, in three parts of 12 that
+ * can each have their own scale factor. The possible quantizations of a
+ * subband depend on the allocation table, which is selected by the bitrate
+ * and the sampling frequency.
+ */
+final class Layer2Decoder extends SubbandDecoder {
+
+    /**
+     * The number of levels of each quantization class.
+     */
+    private static final int[] LEVELS = { 3, 5, 7, 9, 15, 31, 63, 127, 255, 511, 1023, 2047, 4095, 8191, 16383,
+            32767, 65535 };
+
+    /**
+     * The number of bits of each quantization class: for 3, 5 and 9 levels
+     * the bits of a group of three samples.
+     */
+    private static final int[] BITS = { 5, 7, 3, 10, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    /**
+     * The quantization classes that can be allocated to a subband, indexed
+     * by the allocation minus one. The number of allocation bits follows from
+     * the length.
+     */
+    private static final int[] CLASSES_A0 = { 0, 2, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+    private static final int[] CLASSES_A1 = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 16 };
+    private static final int[] CLASSES_A2 = { 0, 1, 2, 3, 4, 5, 16 };
+    private static final int[] CLASSES_A3 = { 0, 1, 16 };
+    private static final int[] CLASSES_C0 = { 0, 1, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 };
+    private static final int[] CLASSES_C1 = { 0, 1, 3, 4, 5, 6, 7 };
+    private static final int[] CLASSES_LSF0 = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14 };
+    private static final int[] CLASSES_LSF2 = { 0, 1, 3 };
+
+    /**
+     * ISO/IEC 11172-3 table B.2a (27 subbands).
+     */
+    private static final int[][] TABLE_A = createTable(new int[] { 3, 11, 23, 27 }, CLASSES_A0,
+            CLASSES_A1, CLASSES_A2, CLASSES_A3);
+
+    /**
+     * ISO/IEC 11172-3 table B.2b (30 subbands).
+     */
+    private static final int[][] TABLE_B = createTable(new int[] { 3, 11, 23, 30 }, CLASSES_A0,
+            CLASSES_A1, CLASSES_A2, CLASSES_A3);
+
+    /**
+     * ISO/IEC 11172-3 table B.2c (8 subbands, low bitrates).
+     */
+    private static final int[][] TABLE_C = createTable(new int[] { 2, 8 }, CLASSES_C0, CLASSES_C1);
+
+    /**
+     * ISO/IEC 11172-3 table B.2d (12 subbands, low bitrates at 32 kHz).
+     */
+    private static final int[][] TABLE_D = createTable(new int[] { 2, 12 }, CLASSES_C0, CLASSES_C1);
+
+    /**
+     * ISO/IEC 13818-3 table B.1 (lower sampling frequencies).
+     */
+    private static final int[][] TABLE_LSF = createTable(new int[] { 4, 11, 30 }, CLASSES_LSF0, CLASSES_C1,
+            CLASSES_LSF2);
+
+    private final int[][] table;
+    private final int limit;
+    private final int[][] quantClass = new int[2][SBLIMIT];
+    private final int[][] scfsi = new int[2][SBLIMIT];
+    private final double[][][] factor = new double[2][SBLIMIT][3];
+    private final double[][][] samples = new double[3][2][SBLIMIT];
+    private final int[] codes = new int[3];
+
+    Layer2Decoder(Bitstream stream, Header header, SynthesisFilter filter1, SynthesisFilter filter2,
+            Decoder player) {
+        super(stream, header, 3 * BLOCK_ROWS, filter1, filter2, player);
+        table = selectTable(header, channels);
+        limit = table.length;
+    }
+
+    /**
+     * Create an allocation table.
+     *
+     * @param ends the end of each range of subbands (the last one is the
+     *            number of subbands)
+     * @param classes the quantization classes of each range
+     * @return the classes of each subband
+     */
+    private static int[][] createTable(int[] ends, int[]... classes) {
+        int[][] table = new int[ends[ends.length - 1]][];
+        for (int i = 0, sb = 0; i < ends.length; i++) {
+            for (; sb < ends[i]; sb++) {
+                table[sb] = classes[i];
+            }
+        }
+        return table;
+    }
+
+    private static int[][] selectTable(Header header, int channels) {
+        if (header.version() != Header.VERSION_MPEG1) {
+            return TABLE_LSF;
+        }
+        int frequency = header.frequency();
+        int bitrate = header.bitrate() / channels;
+        if (bitrate == 0 || bitrate > 80000) {
+            // including free format
+            return frequency == 48000 ? TABLE_A : TABLE_B;
+        } else if (bitrate <= 48000) {
+            return frequency == 32000 ? TABLE_D : TABLE_C;
+        }
+        return TABLE_A;
+    }
+
+    /**
+     * The number of allocation bits of a subband.
+     */
+    private int allocationBits(int sb) {
+        int len = table[sb].length;
+        return len == 15 ? 4 : len == 7 ? 3 : 2;
+    }
+
+    private int readClass(int sb) {
+        int a = stream.getBits(allocationBits(sb));
+        return a == 0 ? -1 : table[sb][a - 1];
+    }
+
+    protected void decodeAudio() throws IOException {
+        int bound = getBound(limit);
+        int bits = 0;
+        for (int sb = 0; sb < bound; sb++) {
+            for (int ch = 0; ch < channels; ch++) {
+                quantClass[ch][sb] = readClass(sb);
+                bits += allocationBits(sb);
+            }
+        }
+        for (int sb = bound; sb < limit; sb++) {
+            quantClass[0][sb] = quantClass[1][sb] = readClass(sb);
+            bits += allocationBits(sb);
+        }
+        for (int sb = 0; sb < limit; sb++) {
+            for (int ch = 0; ch < channels; ch++) {
+                if (quantClass[ch][sb] >= 0) {
+                    scfsi[ch][sb] = stream.getBits(2);
+                    bits += 2;
+                }
+            }
+        }
+        if (!checkCrc(bits)) {
+            return;
+        }
+        for (int sb = 0; sb < limit; sb++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int c = quantClass[ch][sb];
+                if (c >= 0) {
+                    readScaleFactors(factor[ch][sb], scfsi[ch][sb], 1.0 / LEVELS[c]);
+                }
+            }
+        }
+        for (int part = 0; part < 3; part++) {
+            for (int gr = 0; gr < BLOCK_ROWS / 3; gr++) {
+                for (int sb = 0; sb < limit; sb++) {
+                    if (sb < bound) {
+                        for (int ch = 0; ch < channels; ch++) {
+                            int c = quantClass[ch][sb];
+                            if (c < 0) {
+                                samples[0][ch][sb] = samples[1][ch][sb] = samples[2][ch][sb] = 0;
+                            } else {
+                                readCodes(c);
+                                double f = factor[ch][sb][part];
+                                for (int i = 0; i < 3; i++) {
+                                    samples[i][ch][sb] = (2 * codes[i] + 1 - LEVELS[c]) * f;
+                                }
+                            }
+                        }
+                    } else {
+                        int c = quantClass[0][sb];
+                        if (c < 0) {
+                            for (int i = 0; i < 3; i++) {
+                                samples[i][0][sb] = samples[i][1][sb] = 0;
+                            }
+                        } else {
+                            readCodes(c);
+                            double f1 = factor[0][sb][part], f2 = factor[1][sb][part];
+                            for (int i = 0; i < 3; i++) {
+                                int x = 2 * codes[i] + 1 - LEVELS[c];
+                                samples[i][0][sb] = x * f1;
+                                samples[i][1][sb] = x * f2;
+                            }
+                        }
+                    }
+                }
+                for (int i = 0; i < 3; i++) {
+                    outputRow(samples[i][0], samples[i][1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the scale factors of the three parts.
+     *
+     * @param f the factors (scale factor divided by the number of levels)
+     * @param select the scale factor selection information
+     * @param scale the reciprocal of the number of levels
+     */
+    private void readScaleFactors(double[] f, int select, double scale) {
+        switch (select) {
+        case 0:
+            f[0] = SCALE_FACTORS[stream.getBits(6)] * scale;
+            f[1] = SCALE_FACTORS[stream.getBits(6)] * scale;
+            f[2] = SCALE_FACTORS[stream.getBits(6)] * scale;
+            break;
+        case 1:
+            f[0] = f[1] = SCALE_FACTORS[stream.getBits(6)] * scale;
+            f[2] = SCALE_FACTORS[stream.getBits(6)] * scale;
+            break;
+        case 2:
+            f[0] = f[1] = f[2] = SCALE_FACTORS[stream.getBits(6)] * scale;
+            break;
+        default:
+            f[0] = SCALE_FACTORS[stream.getBits(6)] * scale;
+            f[1] = f[2] = SCALE_FACTORS[stream.getBits(6)] * scale;
+        }
+    }
+
+    /**
+     * Read the codes of three consecutive samples of a subband.
+     */
+    private void readCodes(int c) {
+        int levels = LEVELS[c];
+        if (levels == 3 || levels == 5 || levels == 9) {
+            int code = stream.getBits(BITS[c]);
+            codes[0] = code % levels;
+            code /= levels;
+            codes[1] = code % levels;
+            codes[2] = code / levels;
+        } else {
+            codes[0] = stream.getBits(BITS[c]);
+            codes[1] = stream.getBits(BITS[c]);
+            codes[2] = stream.getBits(BITS[c]);
+        }
+    }
+
+}
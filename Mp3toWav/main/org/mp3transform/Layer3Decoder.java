@@ -48,6 +48,7 @@ final class Layer3Decoder {
     private final double[][] lr1 = new double[SBLIMIT][SSLIMIT];
     private final double[] out1d = new double[SBLIMIT * SSLIMIT];
     private final double[][] prevBlock = new double[2][SBLIMIT * SSLIMIT];
+    private final double[] mix = new double[SBLIMIT * SSLIMIT];
     private final double[] k0 = new double[SBLIMIT * SSLIMIT];
     private final double[] k1 = new double[SBLIMIT * SSLIMIT];
     private final int[] nonzero = new int[2];
@@ -64,6 +65,19 @@ final class Layer3Decoder {
     private int channels;
     private int firstChannel;
     private int lastChannel;
+    private final boolean downmix;
+    private final int subbandLimit;
+    private final SilenceDetector silenceDetector;
+    private final boolean synthesis;
+    private final DecodeReport report;
+    private final int concealment;
+    private final boolean checkCrc;
+    private final double[][][] lastSpectrum = new double[2][][];
+    private final int[] lastBlockType = new int[2];
+    private boolean lastSpectrumValid;
+    private int concealedCount;
+    private String sideInfoError;
+    private boolean mixedOverlap = true;
     private int sfreq;
     private final int[] isPos = new int[576];
     private final double[] isRatio = new double[576];
@@ -74,6 +88,12 @@ final class Layer3Decoder {
     private final int[] newSlen = new int[4];
     int x, y, v, w;
 
+    /**
+     * Create a decoder.
+     *
+     * @param filter2 the filter for the second channel, or null to mix
+     *            stereo input down to mono
+     */
     public Layer3Decoder(Bitstream stream, Header header, SynthesisFilter filter1, SynthesisFilter filter2,
             Decoder player) {
         this.stream = stream;
@@ -90,12 +110,32 @@ final class Layer3Decoder {
             firstChannel = 0;
             lastChannel = 1;
         }
+        downmix = channels == 2 && filter2 == null;
+        subbandLimit = SBLIMIT / player.getDownsampling();
+        silenceDetector = player.getSilenceDetector();
+        synthesis = player.isSynthesis();
+        report = player.getReport();
+        concealment = player.getConcealment();
+        checkCrc = player.isCheckCrc();
+        if (report != null) {
+            lastSpectrum[0] = new double[SBLIMIT][SSLIMIT];
+            lastSpectrum[1] = new double[SBLIMIT][SSLIMIT];
+        }
         nonzero[0] = nonzero[1] = 576;
     }
 
     public void decodeFrame() throws IOException {
         int slots = header.slots();
+        boolean crcError = checkCrc && !stream.checkCrc(header);
+        sideInfoError = null;
+        if (report != null) {
+            report.addFrame();
+            report.setSkippedBytes(stream.getSkippedBytes());
+        }
         getSideInfo();
+        if (report != null && sideInfoError == null) {
+            sideInfoError = validateSideInfo(slots);
+        }
         int flushMain = br.getBitCount() & 7;
         if (flushMain != 0) {
             br.getBits(8 - flushMain);
@@ -107,6 +147,10 @@ final class Layer3Decoder {
         int bytesToDiscard = frameStart - mainDataEnd - si.mainDataBegin;
         frameStart += slots;
         if (bytesToDiscard < 0) {
+            if (report != null) {
+                report.addError(DecodeReport.MISSING_MAIN_DATA, "main_data_begin: " + si.mainDataBegin);
+                conceal(0);
+            }
             return;
         }
         if (mainDataEnd > 4096) {
@@ -116,43 +160,266 @@ final class Layer3Decoder {
         for (; bytesToDiscard > 0; bytesToDiscard--) {
             br.getBits(8);
         }
+        if (crcError) {
+            if (report == null) {
+                throw new IOException("CRC error");
+            }
+            report.addError(DecodeReport.CRC_ERROR, "side info");
+            conceal(0);
+            return;
+        }
+        if (sideInfoError != null) {
+            report.addError(DecodeReport.BAD_SIDE_INFO, sideInfoError);
+            conceal(0);
+            return;
+        }
         for (int gr = 0; gr < maxGr; gr++) {
-            for (int ch = 0; ch < channels; ch++) {
-                part2Start = br.getBitCount();
-                if (header.version() == Header.VERSION_MPEG1) {
-                    getScaleFactors(ch, gr);
-                } else {
-                    getLsfScaleFactors(ch, gr);
+            if (report == null) {
+                if (decodeSpectrum(gr)) {
+                    transform(gr);
                 }
-                huffmanDecode(ch, gr);
-                dequantizeSample(ch == 0 ? ro0 : ro1, ch, gr);
+                continue;
             }
-            stereo(gr);
-            for (int ch = firstChannel; ch <= lastChannel; ch++) {
-                reorder(ch == 0 ? lr0 : lr1, ch, gr);
-                antialias(ch, gr);
-                hybrid(ch, gr);
-                for (int sb18 = 18; sb18 < 576; sb18 += 36) {
-                    for (int ss = 1; ss < SSLIMIT; ss += 2) {
-                        out1d[sb18 + ss] = -out1d[sb18 + ss];
-                    }
+            boolean transform;
+            try {
+                transform = decodeSpectrum(gr);
+            } catch (RuntimeException e) {
+                // the position in the main data is unknown now
+                report.addError(DecodeReport.BAD_MAIN_DATA, "granule " + gr + ": " + e.toString());
+                conceal(gr);
+                return;
+            }
+            keepSpectrum(gr);
+            if (transform) {
+                transform(gr);
+            }
+        }
+    }
+
+    /**
+     * Decode the spectrum of both channels of a granule.
+     *
+     * @return false if only the spectrum is needed
+     */
+    private boolean decodeSpectrum(int gr) {
+        double energy = 0;
+        for (int ch = 0; ch < channels; ch++) {
+            part2Start = br.getBitCount();
+            if (header.version() == Header.VERSION_MPEG1) {
+                getScaleFactors(ch, gr);
+            } else {
+                getLsfScaleFactors(ch, gr);
+            }
+            if (report != null && br.getBitCount() - part2Start > si.ch[ch].gr[gr].part23Length) {
+                throw new IllegalStateException("scale factors longer than part2_3_length");
+            }
+            huffmanDecode(ch, gr);
+            dequantizeSample(ch == 0 ? ro0 : ro1, ch, gr);
+            if (silenceDetector != null) {
+                energy += spectralEnergy(ch == 0 ? ro0 : ro1, ch);
+            }
+        }
+        if (silenceDetector != null) {
+            silenceDetector.addGranule(energy / channels, SBLIMIT * SSLIMIT / player.getDownsampling());
+            if (!synthesis) {
+                return false;
+            }
+        }
+        stereo(gr);
+        return true;
+    }
+
+    /**
+     * Check the side information of a frame.
+     *
+     * @return the error message, or null if the side information is valid
+     */
+    private String validateSideInfo(int slots) {
+        int bits = 0;
+        for (int gr = 0; gr < maxGr; gr++) {
+            for (int ch = 0; ch < channels; ch++) {
+                GrInfo gi = si.ch[ch].gr[gr];
+                if (gi.bigValues > 288) {
+                    return "big_values: " + gi.bigValues;
                 }
-                if (ch == 0) {
-                    for (int ss = 0; ss < SSLIMIT; ss++) {
-                        for (int sb18 = 0, sb = 0; sb18 < 576; sb18 += 18, sb++) {
-                            samples1[sb] = out1d[sb18 + ss];
-                        }
-                        filter1.calculatePcmSamples(samples1, player);
+                int regions = gi.windowSwitching ? 2 : 3;
+                for (int i = 0; i < regions; i++) {
+                    if (gi.tableSelect[i] == 4 || gi.tableSelect[i] == 14) {
+                        return "table_select: " + gi.tableSelect[i];
                     }
-                } else {
+                }
+                bits += gi.part23Length;
+            }
+        }
+        int available = (si.mainDataBegin + slots) * 8;
+        if (bits > available) {
+            return "part2_3_length: " + bits + " bits, available: " + available;
+        }
+        return null;
+    }
+
+    /**
+     * Keep the spectrum of a granule that was decoded correctly, so that it
+     * can be repeated if the next granule is lost. Short blocks are not
+     * kept, as they can't be repeated with a long window.
+     */
+    private void keepSpectrum(int gr) {
+        concealedCount = 0;
+        lastSpectrumValid = true;
+        for (int ch = 0; ch < channels; ch++) {
+            GrInfo gi = si.ch[ch].gr[gr];
+            lastBlockType[ch] = gi.windowSwitching ? gi.blockType : 0;
+            if (lastBlockType[ch] == 2) {
+                lastSpectrumValid = false;
+            }
+        }
+        if (lastSpectrumValid && concealment == Decoder.CONCEAL_REPEAT) {
+            for (int ch = 0; ch < channels; ch++) {
+                double[][] lr = ch == 0 ? lr0 : lr1;
+                for (int sb = 0; sb < SBLIMIT; sb++) {
+                    System.arraycopy(lr[sb], 0, lastSpectrum[ch][sb], 0, SSLIMIT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the granules of the frame, starting with the given granule.
+     * The replacement is the last good spectrum (with half the amplitude each
+     * time it is repeated), or silence. It goes through the inverse MDCT,
+     * so that the overlap of the previous granule is played and faded out;
+     * after a short block, a stop window is used.
+     */
+    private void conceal(int firstGr) {
+        for (int gr = firstGr; gr < maxGr; gr++) {
+            report.addConcealed();
+            double gain = 0;
+            if (concealment == Decoder.CONCEAL_REPEAT && lastSpectrumValid && concealedCount < 8) {
+                gain = 1.0 / (2 << concealedCount);
+            }
+            concealedCount++;
+            for (int ch = 0; ch < channels; ch++) {
+                GrInfo gi = si.ch[ch].gr[gr];
+                int last = lastBlockType[ch];
+                gi.blockType = (last == 1 || last == 2) ? 3 : 0;
+                gi.windowSwitching = gi.blockType != 0;
+                gi.mixedBlock = false;
+                lastBlockType[ch] = gi.blockType;
+                double[][] lr = ch == 0 ? lr0 : lr1;
+                for (int sb = 0; sb < SBLIMIT; sb++) {
+                    double[] x = lr[sb];
+                    double[] y = lastSpectrum[ch][sb];
                     for (int ss = 0; ss < SSLIMIT; ss++) {
-                        for (int sb18 = 0, sb = 0; sb18 < 576; sb18 += 18, sb++) {
-                            samples2[sb] = out1d[sb18 + ss];
-                        }
-                        filter2.calculatePcmSamples(samples2, player);
+                        x[ss] = y[ss] * gain;
                     }
                 }
             }
+            if (silenceDetector != null) {
+                silenceDetector.addGranule(0, SBLIMIT * SSLIMIT / player.getDownsampling());
+                if (!synthesis) {
+                    continue;
+                }
+            }
+            transform(gr);
+        }
+    }
+
+    /**
+     * Transform the spectrum of a granule to samples.
+     */
+    private void transform(int gr) {
+        if (downmix) {
+            downmix(gr);
+            return;
+        }
+        for (int ch = firstChannel; ch <= lastChannel; ch++) {
+            reorder(ch == 0 ? lr0 : lr1, ch, gr);
+            antialias(ch, gr);
+            hybrid(ch, gr);
+            if (ch == 0) {
+                synthesize(filter1, samples1);
+            } else {
+                synthesize(filter2, samples2);
+            }
+        }
+    }
+
+    /**
+     * Mix both channels of a granule to mono. If both channels use the same
+     * block type, the spectra are mixed, so that only one inverse MDCT is
+     * needed. Otherwise both channels are transformed and the results are
+     * mixed. The transform is linear, so the overlap of the previous granule
+     * can be mixed as well.
+     */
+    private void downmix(int gr) {
+        GrInfo g0 = si.ch[0].gr[gr], g1 = si.ch[1].gr[gr];
+        boolean sameBlocks = g0.windowSwitching == g1.windowSwitching
+                && (!g0.windowSwitching || (g0.blockType == g1.blockType && g0.mixedBlock == g1.mixedBlock));
+        double[] p0 = prevBlock[0], p1 = prevBlock[1];
+        if (sameBlocks) {
+            if (!mixedOverlap) {
+                for (int i = 0; i < p0.length; i++) {
+                    p0[i] = (p0[i] + p1[i]) * 0.5;
+                }
+                mixedOverlap = true;
+            }
+            for (int sb = 0; sb < SBLIMIT; sb++) {
+                double[] a = lr0[sb], b = lr1[sb];
+                for (int ss = 0; ss < SSLIMIT; ss++) {
+                    a[ss] = (a[ss] + b[ss]) * 0.5;
+                }
+            }
+            reorder(lr0, 0, gr);
+            antialias(0, gr);
+            hybrid(0, gr);
+        } else {
+            if (mixedOverlap) {
+                System.arraycopy(p0, 0, p1, 0, p0.length);
+                mixedOverlap = false;
+            }
+            reorder(lr0, 0, gr);
+            antialias(0, gr);
+            hybrid(0, gr);
+            System.arraycopy(out1d, 0, mix, 0, mix.length);
+            reorder(lr1, 1, gr);
+            antialias(1, gr);
+            hybrid(1, gr);
+            for (int i = 0; i < mix.length; i++) {
+                out1d[i] = (out1d[i] + mix[i]) * 0.5;
+            }
+        }
+        synthesize(filter1, samples1);
+    }
+
+    /**
+     * The sum of the squares of the dequantized spectral lines of a channel.
+     * Only the lines up to the last non-zero value are read. Mid/side stereo
+     * keeps the sum of both channels unchanged, so this can be calculated
+     * before the stereo processing.
+     */
+    private double spectralEnergy(double[][] xr, int ch) {
+        double sum = 0;
+        int len = nonzero[ch];
+        for (int sb = 0, i = 0; sb < SBLIMIT && i < len; sb++) {
+            double[] x = xr[sb];
+            for (int ss = 0; ss < SSLIMIT && i < len; ss++, i++) {
+                sum += x[ss] * x[ss];
+            }
+        }
+        return sum;
+    }
+
+    private void synthesize(SynthesisFilter filter, double[] samples) {
+        for (int sb18 = 18; sb18 < 576; sb18 += 36) {
+            for (int ss = 1; ss < SSLIMIT; ss += 2) {
+                out1d[sb18 + ss] = -out1d[sb18 + ss];
+            }
+        }
+        for (int ss = 0; ss < SSLIMIT; ss++) {
+            for (int sb18 = 0, sb = 0; sb18 < 576; sb18 += 18, sb++) {
+                samples[sb] = out1d[sb18 + ss];
+            }
+            filter.calculatePcmSamples(samples, player);
         }
     }
 
@@ -188,7 +455,7 @@ final class Layer3Decoder {
                         gi.subblockGain[1] = stream.getBits(3);
                         gi.subblockGain[2] = stream.getBits(3);
                         if (gi.blockType == 0) {
-                            throw new IOException("Side info bad: blockType == 0 in split block");
+                            badSideInfo("blockType == 0 in split block");
                         } else if (gi.blockType == 2 && !gi.mixedBlock) {
                             gi.region0Count = 8;
                         } else {
@@ -231,7 +498,7 @@ final class Layer3Decoder {
                     gi.subblockGain[1] = stream.getBits(3);
                     gi.subblockGain[2] = stream.getBits(3);
                     if (gi.blockType == 0) {
-                        throw new IOException("Side info bad: blockType == 0 in split block");
+                        badSideInfo("blockType == 0 in split block");
                     } else if (gi.blockType == 2 && !gi.mixedBlock) {
                         gi.region0Count = 8;
                     } else {
@@ -252,6 +519,15 @@ final class Layer3Decoder {
         }
     }
 
+    private void badSideInfo(String message) throws IOException {
+        if (report == null) {
+            throw new IOException("Side info bad: " + message);
+        }
+        if (sideInfoError == null) {
+            sideInfoError = message;
+        }
+    }
+
     private void getScaleFactors(int ch, int gr) {
         int sfb, window;
         GrInfo gi = si.ch[ch].gr[gr];
@@ -593,7 +869,7 @@ final class Layer3Decoder {
         int[] s = sbif.s;
         int[] l = sbif.l;
         int cbWidth = 0;
-        int len = nonzero[ch];
+        int len = Math.min(nonzero[ch], dequantizeLimit(gi));
         double globalGain = Constants.POW2[gi.globalGain];
         for (int i = 0, sb = 0; sb < SBLIMIT; sb++) {
             for (int ss = 0; ss < SSLIMIT; ss++, i++) {
@@ -672,6 +948,33 @@ final class Layer3Decoder {
         return;
     }
 
+    /**
+     * The number of spectral lines that are needed for the used subbands.
+     * Intensity stereo looks at the upper lines of the second channel, so
+     * in that case all lines are needed.
+     */
+    private int dequantizeLimit(GrInfo gi) {
+        if (subbandLimit == SBLIMIT) {
+            return 576;
+        }
+        if (header.mode() == Header.MODE_JOINT_STEREO && (header.modeExtension() & 1) != 0) {
+            return 576;
+        }
+        if (gi.windowSwitching && gi.blockType == 2) {
+            // short blocks are ordered by band and then by window
+            int[] s = Constants.SF_BAND_INDEX[sfreq].s;
+            int lines = subbandLimit * SSLIMIT / 3;
+            for (int sfb = 0; sfb < s.length; sfb++) {
+                if (s[sfb] >= lines) {
+                    return Math.max(36, s[sfb] * 3);
+                }
+            }
+            return 576;
+        }
+        // the alias reduction also uses the next subband
+        return (subbandLimit + 1) * SSLIMIT;
+    }
+
     private void reorder(double[][] xr, int ch, int gr) {
         GrInfo gi = si.ch[ch].gr[gr];
         if (gi.windowSwitching && gi.blockType == 2) {
@@ -983,6 +1286,7 @@ final class Layer3Decoder {
         } else {
             sb18lim = 558;
         }
+        sb18lim = Math.min(sb18lim, subbandLimit * 18);
         for (sb18 = 0; sb18 < sb18lim; sb18 += 18) {
             for (ss = 0; ss < 8; ss++) {
                 int srcIdx1 = sb18 + 17 - ss;
@@ -997,7 +1301,8 @@ final class Layer3Decoder {
 
     private void hybrid(int ch, int gr) {
         GrInfo gi = si.ch[ch].gr[gr];
-        for (int sb18 = 0; sb18 < 576; sb18 += 18) {
+        int end = subbandLimit * 18;
+        for (int sb18 = 0; sb18 < end; sb18 += 18) {
             int bt = (gi.windowSwitching && gi.mixedBlock && (sb18 < 36)) ? 0 : gi.blockType;
             double[] tsOut = out1d;
             double[] r = rawout;
@@ -0,0 +1,308 @@
+package org.mp3transform;
+
+/**
+ * Measures the loudness of decoded audio according to EBU R128 (ITU-R
+ * BS.1770): K-weighted mean square in 400 ms blocks with 75% overlap,
+ * gated at -70 LUFS and 10 LU below the ungated mean. The true peak is
+ * measured with 4 times oversampling. The ReplayGain 2.0 values are
+ * derived from this, with a reference level of -18 LUFS.
+ * <p>
+ * The oversampling filter costs about four times as much as the
+ * K-weighting (see TestLoudnessMeter), so the true peak measurement can be
+ * disabled; then only the sample peak is measured.
+ */
+public class LoudnessMeter implements PcmOutput {
+
+    public static final double REFERENCE_LOUDNESS = -18.0;
+    private static final double ABSOLUTE_GATE = -70.0, RELATIVE_GATE = -10.0;
+    private static final int OVERSAMPLING = 4, PEAK_TAPS = 12;
+    private static final double[][] PEAK_BANK = createPeakBank();
+
+    private int channels;
+    private double b0, b1, b2, a1, a2;
+    private double c1, c2;
+    private double[][] state;
+    private double[] blockSum;
+    private double[][] subBlocks;
+    private int subBlockSize, subBlockPos, subBlockCount;
+    private double[][] peakHistory;
+    private int peakPos;
+    private double samplePeak, truePeak;
+    private boolean measureTruePeak = true;
+    private final Blocks blocks = new Blocks();
+
+    public void open(int frequency, int channels) {
+        this.channels = channels;
+        // high shelf (head effects), from BS.1770
+        double k = Math.tan(Math.PI * 1681.974450955533 / frequency);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        b0 = (vh + vb * k / q + k * k) / a0;
+        b1 = 2 * (k * k - vh) / a0;
+        b2 = (vh - vb * k / q + k * k) / a0;
+        a1 = 2 * (k * k - 1) / a0;
+        a2 = (1 - k / q + k * k) / a0;
+        // high pass
+        k = Math.tan(Math.PI * 38.13547087602444 / frequency);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        c1 = 2 * (k * k - 1) / a0;
+        c2 = (1 - k / q + k * k) / a0;
+        state = new double[channels][4];
+        blockSum = new double[channels];
+        subBlocks = new double[4][channels];
+        subBlockSize = frequency / 10;
+        subBlockPos = 0;
+        subBlockCount = 0;
+        peakHistory = new double[channels][PEAK_TAPS * 2];
+        peakPos = 0;
+    }
+
+    /**
+     * Enable or disable the true peak measurement (enabled by default).
+     *
+     * @param truePeak false to only measure the sample peak
+     */
+    public void setTruePeak(boolean truePeak) {
+        this.measureTruePeak = truePeak;
+    }
+
+    public boolean isTruePeak() {
+        return measureTruePeak;
+    }
+
+    private static double[][] createPeakBank() {
+        double[][] bank = new double[OVERSAMPLING][PEAK_TAPS];
+        int len = OVERSAMPLING * PEAK_TAPS;
+        for (int i = 0; i < len; i++) {
+            double t = (i - (len - 1) / 2.0) / OVERSAMPLING;
+            double sinc = t == 0 ? 1 : Math.sin(Math.PI * t) / (Math.PI * t);
+            double window = 0.5 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / len);
+            bank[i % OVERSAMPLING][i / OVERSAMPLING] = sinc * window;
+        }
+        for (double[] f : bank) {
+            double sum = 0;
+            for (double x : f) {
+                sum += x;
+            }
+            for (int k = 0; k < f.length; k++) {
+                f[k] /= sum;
+            }
+        }
+        return bank;
+    }
+
+    /**
+     * Analyze signed 16 bit big endian interleaved samples.
+     */
+    public void write(byte[] data, int offset, int length) {
+        int samples = length / 2 / channels;
+        for (int i = 0, p = offset; i < samples; i++) {
+            for (int ch = 0; ch < channels; ch++, p += 2) {
+                analyze(ch, ((short) ((data[p] << 8) | (data[p + 1] & 0xff))) / 32768.0);
+            }
+            endSample();
+        }
+    }
+
+    /**
+     * Analyze interleaved samples that are scaled to -1..1, but not clipped,
+     * so that peaks above full scale are measured.
+     *
+     * @param data the samples
+     * @param offset the index of the first sample
+     * @param length the number of values (samples times channels)
+     */
+    public void write(double[] data, int offset, int length) {
+        int samples = length / channels;
+        for (int i = 0, p = offset; i < samples; i++) {
+            for (int ch = 0; ch < channels; ch++) {
+                analyze(ch, data[p++]);
+            }
+            endSample();
+        }
+    }
+
+    private void analyze(int ch, double x) {
+        double[] s = state[ch];
+        // direct form II, both filters in series
+        double w = x - a1 * s[0] - a2 * s[1];
+        double y = b0 * w + b1 * s[0] + b2 * s[1];
+        s[1] = s[0];
+        s[0] = w;
+        w = y - c1 * s[2] - c2 * s[3];
+        y = w - 2 * s[2] + s[3];
+        s[3] = s[2];
+        s[2] = w;
+        blockSum[ch] += y * y;
+        peak(ch, x);
+    }
+
+    private void endSample() {
+        peakPos = (peakPos + 1) % PEAK_TAPS;
+        if (++subBlockPos == subBlockSize) {
+            endSubBlock();
+        }
+    }
+
+    private void peak(int ch, double x) {
+        double a = Math.abs(x);
+        if (a > samplePeak) {
+            samplePeak = a;
+        }
+        if (!measureTruePeak) {
+            return;
+        }
+        // the history is stored twice, so that the filter doesn't wrap
+        double[] h = peakHistory[ch];
+        h[peakPos] = x;
+        h[peakPos + PEAK_TAPS] = x;
+        int last = peakPos + PEAK_TAPS;
+        for (int phase = 0; phase < OVERSAMPLING; phase++) {
+            double[] f = PEAK_BANK[phase];
+            double sum = 0;
+            for (int k = 0; k < PEAK_TAPS; k++) {
+                sum += f[k] * h[last - k];
+            }
+            a = Math.abs(sum);
+            if (a > truePeak) {
+                truePeak = a;
+            }
+        }
+    }
+
+    private void endSubBlock() {
+        double[] sub = subBlocks[subBlockCount & 3];
+        for (int ch = 0; ch < channels; ch++) {
+            sub[ch] = blockSum[ch];
+            blockSum[ch] = 0;
+        }
+        subBlockPos = 0;
+        subBlockCount++;
+        if (subBlockCount >= 4) {
+            double energy = 0;
+            for (int i = 0; i < 4; i++) {
+                for (int ch = 0; ch < channels; ch++) {
+                    energy += subBlocks[i][ch];
+                }
+            }
+            blocks.add(energy / (4.0 * subBlockSize));
+        }
+    }
+
+    public void close() {
+        // incomplete blocks are not counted
+    }
+
+    /**
+     * The gated (integrated) loudness in LUFS.
+     */
+    public double getIntegratedLoudness() {
+        return blocks.getIntegratedLoudness();
+    }
+
+    /**
+     * The true peak in dBTP, or the sample peak in dBFS if the true peak is
+     * not measured.
+     */
+    public double getTruePeak() {
+        return 20 * Math.log10(Math.max(truePeak, samplePeak));
+    }
+
+    /**
+     * The largest absolute sample value, where 1.0 is full scale.
+     */
+    public double getSamplePeak() {
+        return samplePeak;
+    }
+
+    /**
+     * The ReplayGain track gain in dB.
+     */
+    public double getTrackGain() {
+        return REFERENCE_LOUDNESS - getIntegratedLoudness();
+    }
+
+    /**
+     * The gating blocks, which can be combined to measure an album.
+     */
+    public Blocks getBlocks() {
+        return blocks;
+    }
+
+    static double loudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    /**
+     * The mean square values of the gating blocks of one or more tracks.
+     */
+    public static class Blocks {
+        private double[] energy = new double[1024];
+        private int count;
+        private double peak;
+
+        void add(double e) {
+            if (count == energy.length) {
+                double[] d = new double[count * 2];
+                System.arraycopy(energy, 0, d, 0, count);
+                energy = d;
+            }
+            energy[count++] = e;
+        }
+
+        /**
+         * Add the blocks and peak of a track to this album.
+         */
+        public void add(LoudnessMeter track) {
+            Blocks b = track.getBlocks();
+            for (int i = 0; i < b.count; i++) {
+                add(b.energy[i]);
+            }
+            peak = Math.max(peak, Math.max(track.truePeak, track.samplePeak));
+        }
+
+        public double getIntegratedLoudness() {
+            double threshold = Math.pow(10, (ABSOLUTE_GATE + 0.691) / 10);
+            double sum = 0;
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (energy[i] > threshold) {
+                    sum += energy[i];
+                    n++;
+                }
+            }
+            if (n == 0) {
+                return ABSOLUTE_GATE;
+            }
+            double relative = loudness(sum / n) + RELATIVE_GATE;
+            threshold = Math.max(threshold, Math.pow(10, (relative + 0.691) / 10));
+            sum = 0;
+            n = 0;
+            for (int i = 0; i < count; i++) {
+                if (energy[i] > threshold) {
+                    sum += energy[i];
+                    n++;
+                }
+            }
+            return n == 0 ? ABSOLUTE_GATE : loudness(sum / n);
+        }
+
+        /**
+         * The ReplayGain album gain in dB.
+         */
+        public double getGain() {
+            return REFERENCE_LOUDNESS - getIntegratedLoudness();
+        }
+
+        /**
+         * The largest true peak of the tracks, where 1.0 is full scale.
+         */
+        public double getPeak() {
+            return peak;
+        }
+    }
+
+}
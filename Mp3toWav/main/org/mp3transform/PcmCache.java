@@ -0,0 +1,360 @@
+package org.mp3transform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of decoded audio. Each entry is a spill file in the cache
+ * directory, named after the hash of the key. The key is the path, last
+ * modified time and size of the source file, or (optionally) the hash of its
+ * content. The least recently used entries are removed when the total size
+ * exceeds the limit. An entry can also keep the result of the silence
+ * detection, so that trimming a cached file doesn't need to read the source.
+ * Spill files of an older format, or that are shorter than the length in
+ * their header, are removed when they are read.
+ */
+public class PcmCache {
+
+    private static final int MAGIC = 0x50434d33; // "PCM3"
+    private static final int HEADER_SIZE = 44;
+    private static final int LENGTH_POS = 36;
+    private static final String SUFFIX = ".pcm";
+
+    private final File dir;
+    private final long maxSize;
+    private final boolean hashContent;
+    private final LinkedHashMap<String, File> entries = new LinkedHashMap<String, File>(16, 0.75f, true);
+    // the length when the file was added, which is subtracted on removal
+    private final HashMap<String, Long> lengths = new HashMap<String, Long>();
+    private long size;
+    private int hits, misses, evictions;
+
+    public PcmCache(File dir, long maxSize, boolean hashContent) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.hashContent = hashContent;
+        dir.mkdirs();
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+        // the last modified time of a spill file is its last use
+        Arrays.sort(list, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = a.lastModified(), y = b.lastModified();
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+        });
+        for (File f : list) {
+            String name = f.getName();
+            if (name.endsWith(SUFFIX)) {
+                put(name.substring(0, name.length() - SUFFIX.length()), f);
+            } else if (name.endsWith(SUFFIX + ".tmp")) {
+                f.delete();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Get the cached audio of the given source file.
+     *
+     * @return the entry, or null if the file is not cached
+     */
+    public Entry get(File source) throws IOException {
+        String key = getKey(source);
+        File file;
+        synchronized (this) {
+            file = entries.get(key);
+        }
+        Entry entry = null;
+        if (file != null) {
+            try {
+                entry = new Entry(file);
+            } catch (IOException e) {
+                // missing, truncated, or an older format
+            }
+        }
+        synchronized (this) {
+            if (entry == null) {
+                if (file != null) {
+                    remove(key);
+                }
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Create a writer for the decoded audio of the given source file. The
+     * entry is only added when the writer is committed.
+     */
+    public Writer create(File source) throws IOException {
+        return new Writer(getKey(source));
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized String toString() {
+        return "entries: " + entries.size() + " size: " + size + " hits: " + hits + " misses: " + misses
+                + " evictions: " + evictions;
+    }
+
+    private String getKey(File source) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        if (hashContent) {
+            InputStream in = new FileInputStream(source);
+            try {
+                byte[] buff = new byte[64 * 1024];
+                while (true) {
+                    int len = in.read(buff);
+                    if (len < 0) {
+                        break;
+                    }
+                    md.update(buff, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            String s = source.getCanonicalPath() + "|" + source.lastModified() + "|" + source.length();
+            md.update(s.getBytes("UTF-8"));
+        }
+        StringBuilder buff = new StringBuilder();
+        for (byte b : md.digest()) {
+            buff.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return buff.toString();
+    }
+
+    private void put(String key, File file) {
+        long length = file.length();
+        entries.put(key, file);
+        lengths.put(key, length);
+        size += length;
+    }
+
+    private void remove(String key) {
+        File file = entries.remove(key);
+        if (file != null) {
+            size -= lengths.remove(key);
+            file.delete();
+        }
+    }
+
+    private void evict() {
+        Iterator<String> it = new ArrayList<String>(entries.keySet()).iterator();
+        while (size > maxSize && it.hasNext()) {
+            remove(it.next());
+            evictions++;
+        }
+    }
+
+    synchronized void add(String key, File file) {
+        remove(key);
+        put(key, file);
+        evict();
+    }
+
+    /**
+     * A cached decoded file.
+     */
+    public static class Entry {
+        private final File file;
+        private final int frequency, channels;
+        private final double silenceThreshold;
+        private final long leadingSilence, trailingSilence;
+
+        Entry(File file) throws IOException {
+            this.file = file;
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a cache file: " + file);
+                }
+                frequency = in.readInt();
+                channels = in.readInt();
+                silenceThreshold = in.readDouble();
+                leadingSilence = in.readLong();
+                trailingSilence = in.readLong();
+                if (in.readLong() != file.length() - HEADER_SIZE) {
+                    throw new IOException("Truncated cache file: " + file);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        public int getFrequency() {
+            return frequency;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * The threshold of the silence detection (in dB), or NaN if the
+         * silence was not detected.
+         */
+        public double getSilenceThreshold() {
+            return silenceThreshold;
+        }
+
+        /**
+         * The number of silent samples (per channel) at the start.
+         */
+        public long getLeadingSilence() {
+            return leadingSilence;
+        }
+
+        /**
+         * The number of silent samples (per channel) at the end.
+         */
+        public long getTrailingSilence() {
+            return trailingSilence;
+        }
+
+        /**
+         * The number of bytes of audio data.
+         */
+        public long getLength() {
+            return file.length() - HEADER_SIZE;
+        }
+
+        /**
+         * Open the audio data (signed 16 bit big endian, interleaved).
+         */
+        public InputStream openData() throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            long skip = HEADER_SIZE;
+            while (skip > 0) {
+                skip -= in.skip(skip);
+            }
+            return in;
+        }
+    }
+
+    /**
+     * Writes the decoded audio into a temporary file, which is added to the
+     * cache on commit.
+     */
+    public class Writer implements PcmOutput {
+        private final String key;
+        private final File temp;
+        private DataOutputStream out;
+        private double silenceThreshold = Double.NaN;
+        private long leadingSilence, trailingSilence;
+
+        Writer(String key) {
+            this.key = key;
+            temp = new File(dir, key + SUFFIX + ".tmp");
+        }
+
+        /**
+         * Keep the result of the silence detection with the entry. This
+         * needs to be called before the writer is opened.
+         *
+         * @param thresholdDb the threshold that was used
+         * @param leading the number of silent samples at the start
+         * @param trailing the number of silent samples at the end
+         */
+        public void setSilence(double thresholdDb, long leading, long trailing) {
+            silenceThreshold = thresholdDb;
+            leadingSilence = leading;
+            trailingSilence = trailing;
+        }
+
+        public void open(int frequency, int channels) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(frequency);
+            out.writeInt(channels);
+            out.writeDouble(silenceThreshold);
+            out.writeLong(leadingSilence);
+            out.writeLong(trailingSilence);
+            // the length is set on commit
+            out.writeLong(-1);
+        }
+
+        public void write(byte[] data, int offset, int length) throws IOException {
+            out.write(data, offset, length);
+        }
+
+        /**
+         * Discard the data unless it was committed.
+         */
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+                temp.delete();
+            }
+        }
+
+        /**
+         * Add the data to the cache.
+         */
+        public void commit() throws IOException {
+            if (out == null) {
+                return;
+            }
+            out.close();
+            out = null;
+            RandomAccessFile f = new RandomAccessFile(temp, "rw");
+            try {
+                f.seek(LENGTH_POS);
+                f.writeLong(f.length() - HEADER_SIZE);
+            } finally {
+                f.close();
+            }
+            File file = new File(dir, key + SUFFIX);
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+            add(key, file);
+        }
+    }
+
+}
@@ -0,0 +1,16 @@
+package org.mp3transform;
+
+import java.io.IOException;
+
+/**
+ * Receives decoded audio as signed 16 bit big endian interleaved samples.
+ */
+public interface PcmOutput {
+
+    void open(int frequency, int channels) throws IOException;
+
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,192 @@
+package org.mp3transform;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded buffer of decoded samples between the decoder thread and the
+ * audio output thread. There must be only one writer thread and one reader
+ * thread. The positions are updated without locks; a side only parks while
+ * the buffer is full or empty, and is unparked by the other side. The
+ * storage is a power of two, but at most the requested capacity is filled,
+ * so that the capacity is also the latency. The data is usually kept in a
+ * direct buffer, so that long running players don't fill the heap.
+ */
+public class PcmRingBuffer {
+
+    // longs per cache line; the positions are kept on separate lines
+    private static final int PAD = 8;
+    private static final int READ = PAD, WRITE = 3 * PAD;
+
+    private final ByteBuffer buffer, readView, writeView;
+    private final int capacity, size, mask;
+    private final AtomicLongArray positions = new AtomicLongArray(4 * PAD);
+    private volatile Thread waitingReader, waitingWriter;
+    private volatile boolean closed, cancelled;
+    private volatile int underruns, writerWaits;
+
+    public PcmRingBuffer(int capacity) {
+        this(ByteBuffer.allocateDirect(Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1), capacity);
+    }
+
+    /**
+     * Create a ring buffer that uses all of the given storage.
+     *
+     * @param buffer the storage; the capacity must be a power of two
+     */
+    public PcmRingBuffer(ByteBuffer buffer) {
+        this(buffer, buffer.capacity());
+    }
+
+    /**
+     * Create a ring buffer that uses the given storage, but holds at most
+     * the given number of bytes.
+     *
+     * @param buffer the storage; the capacity must be a power of two
+     * @param capacity the maximum number of bytes in the buffer
+     */
+    public PcmRingBuffer(ByteBuffer buffer, int capacity) {
+        size = buffer.capacity();
+        if (Integer.bitCount(size) != 1 || capacity <= 0 || capacity > size) {
+            throw new IllegalArgumentException("capacity: " + capacity + " size: " + size);
+        }
+        this.capacity = capacity;
+        this.buffer = buffer;
+        readView = buffer.duplicate();
+        writeView = buffer.duplicate();
+        mask = size - 1;
+    }
+
+    /**
+     * The maximum number of bytes in the buffer.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * The storage of this ring buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int available() {
+        return (int) (positions.get(WRITE) - positions.get(READ));
+    }
+
+    /**
+     * The number of times the reader found the buffer empty before the end
+     * of the data.
+     */
+    public int getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * The number of times the writer had to wait because the buffer was
+     * full.
+     */
+    public int getWriterWaits() {
+        return writerWaits;
+    }
+
+    /**
+     * Append the data, waiting until there is enough space for all of it.
+     *
+     * @return false if the buffer was cancelled
+     */
+    public boolean write(byte[] data, int offset, int length) throws InterruptedIOException {
+        if (length > capacity) {
+            throw new IllegalArgumentException("length: " + length + " capacity: " + capacity);
+        }
+        long write = positions.get(WRITE);
+        if (capacity - (write - positions.get(READ)) < length) {
+            writerWaits++;
+            waitingWriter = Thread.currentThread();
+            try {
+                while (!cancelled && capacity - (write - positions.get(READ)) < length) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            } finally {
+                waitingWriter = null;
+            }
+        }
+        if (cancelled) {
+            return false;
+        }
+        int pos = (int) write & mask;
+        int first = Math.min(length, size - pos);
+        writeView.position(pos);
+        writeView.put(data, offset, first);
+        writeView.position(0);
+        writeView.put(data, offset + first, length - first);
+        positions.set(WRITE, write + length);
+        LockSupport.unpark(waitingReader);
+        return true;
+    }
+
+    /**
+     * Read at least one and at most length bytes, waiting until data is
+     * available.
+     *
+     * @return the number of bytes read, or -1 if the buffer was closed and
+     *         all data was read, or if the buffer was cancelled
+     */
+    public int read(byte[] data, int offset, int length) throws InterruptedIOException {
+        long read = positions.get(READ);
+        if (positions.get(WRITE) == read && !closed) {
+            if (!cancelled && read > 0) {
+                underruns++;
+            }
+            waitingReader = Thread.currentThread();
+            try {
+                while (!cancelled && !closed && positions.get(WRITE) == read) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            } finally {
+                waitingReader = null;
+            }
+        }
+        int available = (int) (positions.get(WRITE) - read);
+        if (cancelled || available == 0) {
+            return -1;
+        }
+        length = Math.min(length, available);
+        int pos = (int) read & mask;
+        int first = Math.min(length, size - pos);
+        readView.position(pos);
+        readView.get(data, offset, first);
+        readView.position(0);
+        readView.get(data, offset + first, length - first);
+        positions.set(READ, read + length);
+        LockSupport.unpark(waitingWriter);
+        return length;
+    }
+
+    /**
+     * Mark the end of the data. The reader gets the remaining data first.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(waitingReader);
+    }
+
+    /**
+     * Discard the data and wake up both sides.
+     */
+    public void cancel() {
+        cancelled = true;
+        LockSupport.unpark(waitingReader);
+        LockSupport.unpark(waitingWriter);
+    }
+
+}
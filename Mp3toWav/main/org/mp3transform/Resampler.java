@@ -0,0 +1,310 @@
+package org.mp3transform;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Converts the sample rate of decoded audio and passes it on to another
+ * output. The rate ratio is reduced to L/M (for example 160/147 for 44.1 to
+ * 48 kHz), and each output sample is calculated with one of L filter phases
+ * of a windowed sinc low-pass filter. The filter banks are calculated once
+ * per ratio and shared. Blocks of any size are processed without allocating
+ * memory, as long as they are not larger than the previous blocks. Samples
+ * can be passed as 16 bit data, or as doubles that are neither clipped nor
+ * quantized, for example to write 24 bit or float files.
+ */
+public class Resampler implements PcmOutput {
+
+    /**
+     * The number of input samples used for each output sample.
+     */
+    public static final int TAPS = 64;
+    private static final double KAISER_BETA = 8.0;
+    private static final double PASSBAND = 0.92;
+    private static final HashMap<String, double[][]> BANKS = new HashMap<String, double[][]>();
+
+    private final PcmOutput out;
+    private final SampleOutput sampleOut;
+    private final int sourceFrequency, targetFrequency, channels;
+    private final int up, down;
+    private final double[][] bank;
+    private double[][] history;
+    private int length, index, phase;
+    private double[] outSamples = new double[0];
+    private byte[] outBuffer = new byte[0];
+
+    /**
+     * Create a resampler.
+     *
+     * @param out the output, which receives the samples at the target rate
+     * @param sourceFrequency the sample rate of the input
+     * @param targetFrequency the sample rate of the output
+     * @param channels the number of channels
+     */
+    public Resampler(PcmOutput out, int sourceFrequency, int targetFrequency, int channels) {
+        this(out, null, sourceFrequency, targetFrequency, channels);
+    }
+
+    /**
+     * Create a resampler that writes doubles.
+     *
+     * @param out the output, which receives the samples at the target rate
+     * @param sourceFrequency the sample rate of the input
+     * @param targetFrequency the sample rate of the output
+     * @param channels the number of channels
+     */
+    public Resampler(SampleOutput out, int sourceFrequency, int targetFrequency, int channels) {
+        this(null, out, sourceFrequency, targetFrequency, channels);
+    }
+
+    private Resampler(PcmOutput out, SampleOutput sampleOut, int sourceFrequency, int targetFrequency,
+            int channels) {
+        this.out = out;
+        this.sampleOut = sampleOut;
+        this.sourceFrequency = sourceFrequency;
+        this.targetFrequency = targetFrequency;
+        this.channels = channels;
+        int gcd = gcd(sourceFrequency, targetFrequency);
+        up = targetFrequency / gcd;
+        down = sourceFrequency / gcd;
+        bank = getBank(up, down);
+        history = new double[channels][TAPS * 2];
+        reset();
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Get the filter bank for the given ratio. The bank has one row per
+     * phase, and each row sums up to one.
+     */
+    static synchronized double[][] getBank(int up, int down) {
+        String key = up + "/" + down;
+        double[][] bank = BANKS.get(key);
+        if (bank == null) {
+            bank = createBank(up, down);
+            BANKS.put(key, bank);
+        }
+        return bank;
+    }
+
+    private static double[][] createBank(int up, int down) {
+        // cutoff relative to the input sample rate, below the lower Nyquist
+        // frequency
+        double cutoff = 0.5 * Math.min(1.0, (double) up / down) * PASSBAND;
+        double[][] bank = new double[up][TAPS];
+        double half = TAPS / 2;
+        double i0 = besselI0(KAISER_BETA);
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            for (int k = 0; k < TAPS; k++) {
+                // distance from the output time to the input sample
+                double t = (double) p / up + (half - 1) - k;
+                double x = t / half;
+                double window = Math.abs(x) >= 1 ? 0 : besselI0(KAISER_BETA * Math.sqrt(1 - x * x)) / i0;
+                double sinc = t == 0 ? 1 : Math.sin(2 * Math.PI * cutoff * t) / (2 * Math.PI * cutoff * t);
+                bank[p][k] = sinc * window;
+                sum += bank[p][k];
+            }
+            for (int k = 0; k < TAPS; k++) {
+                bank[p][k] /= sum;
+            }
+        }
+        return bank;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1, term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private void reset() {
+        // the first output sample is at the first input sample
+        length = TAPS / 2 - 1;
+        for (int ch = 0; ch < channels; ch++) {
+            for (int i = 0; i < length; i++) {
+                history[ch][i] = 0;
+            }
+        }
+        index = 0;
+        phase = 0;
+    }
+
+    public int getSourceFrequency() {
+        return sourceFrequency;
+    }
+
+    public int getTargetFrequency() {
+        return targetFrequency;
+    }
+
+    public void open(int frequency, int channels) throws IOException {
+        if (out != null) {
+            out.open(targetFrequency, channels);
+        }
+    }
+
+    /**
+     * Resample signed 16 bit big endian interleaved samples.
+     */
+    public void write(byte[] data, int offset, int len) throws IOException {
+        int samples = len / 2 / channels;
+        ensureCapacity(length + samples);
+        for (int ch = 0; ch < channels; ch++) {
+            double[] h = history[ch];
+            for (int i = 0, p = offset + ch * 2; i < samples; i++, p += channels * 2) {
+                h[length + i] = (short) ((data[p] << 8) | (data[p + 1] & 0xff));
+            }
+        }
+        length += samples;
+        process();
+    }
+
+    /**
+     * Resample interleaved samples. The values are not clipped, so any scale
+     * can be used.
+     *
+     * @param data the samples
+     * @param offset the index of the first sample
+     * @param len the number of values (samples times channels)
+     */
+    public void write(double[] data, int offset, int len) throws IOException {
+        int samples = len / channels;
+        ensureCapacity(length + samples);
+        for (int ch = 0; ch < channels; ch++) {
+            double[] h = history[ch];
+            for (int i = 0, p = offset + ch; i < samples; i++, p += channels) {
+                h[length + i] = data[p];
+            }
+        }
+        length += samples;
+        process();
+    }
+
+    private void ensureCapacity(int len) {
+        if (len > history[0].length) {
+            for (int ch = 0; ch < channels; ch++) {
+                double[] h = new double[len + TAPS];
+                System.arraycopy(history[ch], 0, h, 0, length);
+                history[ch] = h;
+            }
+        }
+    }
+
+    private void process() throws IOException {
+        // each output sample needs TAPS input samples starting at index
+        int count = 0;
+        int last = length - TAPS;
+        if (index <= last) {
+            count = (int) (((long) (last - index) * up + up - 1 - phase) / down) + 1;
+        }
+        if (count == 0) {
+            return;
+        }
+        int values = count * channels;
+        if (outSamples.length < values) {
+            outSamples = new double[values];
+        }
+        double[] samples = outSamples;
+        int start = index, startPhase = phase;
+        for (int ch = 0; ch < channels; ch++) {
+            double[] h = history[ch];
+            int i = start, ph = startPhase;
+            for (int n = 0, p = ch; n < count; n++, p += channels) {
+                double[] f = bank[ph];
+                double sum = 0;
+                for (int k = 0; k < TAPS; k++) {
+                    sum += h[i + k] * f[k];
+                }
+                samples[p] = sum;
+                ph += down;
+                while (ph >= up) {
+                    ph -= up;
+                    i++;
+                }
+            }
+            if (ch == channels - 1) {
+                index = i;
+                phase = ph;
+            }
+        }
+        // keep the samples that are still needed
+        int keep = length - index;
+        for (int ch = 0; ch < channels; ch++) {
+            System.arraycopy(history[ch], index, history[ch], 0, keep);
+        }
+        length = keep;
+        index = 0;
+        if (sampleOut != null) {
+            sampleOut.write(samples, 0, values);
+            return;
+        }
+        int size = values * 2;
+        if (outBuffer.length < size) {
+            outBuffer = new byte[size];
+        }
+        byte[] buff = outBuffer;
+        for (int n = 0, p = 0; n < values; n++, p += 2) {
+            double sum = samples[n];
+            int s = (int) (sum < 0 ? sum - 0.5 : sum + 0.5);
+            s = s > 32767 ? 32767 : (s < -32768 ? -32768 : s);
+            buff[p] = (byte) (s >> 8);
+            buff[p + 1] = (byte) s;
+        }
+        out.write(buff, 0, size);
+    }
+
+    /**
+     * Write the samples that are delayed by the filter. Afterwards, the
+     * resampler starts again as if it was new.
+     */
+    public void flush() throws IOException {
+        int pad = TAPS / 2;
+        ensureCapacity(length + pad);
+        for (int ch = 0; ch < channels; ch++) {
+            for (int i = 0; i < pad; i++) {
+                history[ch][length + i] = 0;
+            }
+        }
+        length += pad;
+        process();
+        reset();
+    }
+
+    public void close() throws IOException {
+        flush();
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    /**
+     * Receives the resampled values, interleaved, in the scale of the input.
+     */
+    public interface SampleOutput {
+
+        /**
+         * Write samples.
+         *
+         * @param data the samples
+         * @param offset the index of the first sample
+         * @param length the number of values (samples times channels)
+         */
+        void write(double[] data, int offset, int length) throws IOException;
+    }
+
+}
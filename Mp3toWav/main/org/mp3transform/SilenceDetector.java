@@ -0,0 +1,145 @@
+package org.mp3transform;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Finds the silence at the start and the end of a track. Each granule is
+ * classified by the energy of its dequantized spectrum (or, in layer I and
+ * II, of its subband samples), so that no inverse MDCT and synthesis is
+ * needed. The energy of a granule only influences the
+ * output of this and the next granule (plus the delay of the synthesis
+ * filter), and the boundaries are rounded outwards accordingly, so that no
+ * sound is cut.
+ */
+public class SilenceDetector {
+
+    /**
+     * The default threshold, in dB relative to a full scale sine.
+     */
+    public static final double DEFAULT_THRESHOLD = -60.0;
+
+    /**
+     * The mean square of the spectrum of a full scale sine, per line. The
+     * sum of the squares of the spectral lines is about 285 times smaller
+     * than the sum of the squares of the output samples (measured).
+     */
+    private static final double FULL_SCALE = 0.5 / 285;
+    private static final int LINES = 576;
+
+    /**
+     * The sum of the squares of the layer I and II subband samples is about
+     * 8.9 times larger than the sum of the squares of the spectral lines of
+     * the same audio (the output is 32 times larger, measured).
+     */
+    private static final double SUBBAND_GAIN = 8.9;
+
+    private final double threshold;
+    private long sampleCount;
+    private long firstSound = -1, lastSound;
+    private int granuleSamples;
+
+    /**
+     * Create a detector.
+     *
+     * @param thresholdDb the level below which a granule is silent, in dB
+     *            relative to a full scale sine (for example -60)
+     */
+    public SilenceDetector(double thresholdDb) {
+        threshold = FULL_SCALE * Math.pow(10, thresholdDb / 10);
+    }
+
+    /**
+     * Detect the silence of a stream. Only the spectrum is decoded.
+     *
+     * @param in the mp3 stream
+     * @param thresholdDb the threshold
+     * @param downsampling the downsampling factor, so that the positions
+     *            match the output of a decoder with the same setting
+     * @return the detector
+     */
+    public static SilenceDetector detect(InputStream in, double thresholdDb, int downsampling)
+            throws IOException {
+        SilenceDetector detector = new SilenceDetector(thresholdDb);
+        Decoder decoder = new Decoder();
+        decoder.setDownsampling(downsampling);
+        decoder.setSilenceDetector(detector);
+        decoder.setSynthesis(false);
+        Bitstream stream = new Bitstream(in);
+        while (true) {
+            Header header = stream.readFrame();
+            if (header == null) {
+                break;
+            }
+            decoder.decodeFrame(header, stream);
+            stream.closeFrame();
+        }
+        return detector;
+    }
+
+    /**
+     * Add a granule.
+     *
+     * @param energy the sum of the squares of the spectral lines (the
+     *            average of all channels)
+     * @param samples the number of output samples of the granule (less than
+     *            the number of lines if downsampling is used)
+     */
+    void addGranule(double energy, int samples) {
+        granuleSamples = samples;
+        if (energy > threshold * LINES) {
+            if (firstSound < 0) {
+                firstSound = sampleCount;
+            }
+            lastSound = sampleCount;
+        }
+        sampleCount += samples;
+    }
+
+    /**
+     * Add a block of layer I or II subband samples.
+     *
+     * @param energy the sum of the squares of the subband samples (the
+     *            average of all channels)
+     * @param count the number of subband samples per channel
+     * @param samples the number of output samples of the block
+     */
+    void addSubbandSamples(double energy, int count, int samples) {
+        addGranule(energy / SUBBAND_GAIN * LINES / count, samples);
+    }
+
+    /**
+     * The number of samples (per channel) of the track.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Whether the whole track is silent.
+     */
+    public boolean isSilent() {
+        return firstSound < 0;
+    }
+
+    /**
+     * The number of silent samples at the start.
+     */
+    public long getLeadingSilence() {
+        return isSilent() ? sampleCount : firstSound;
+    }
+
+    /**
+     * The number of silent samples at the end.
+     */
+    public long getTrailingSilence() {
+        if (isSilent()) {
+            return 0;
+        }
+        // the overlap goes into the next granule, and the synthesis filter
+        // delays the output by less than one granule
+        long end = lastSound + 3 * granuleSamples;
+        return Math.max(0, sampleCount - end);
+    }
+
+}
@@ -0,0 +1,184 @@
+package org.mp3transform;
+
+import java.io.IOException;
+
+/**
+ * The common part of the layer I and layer II decoders. Both layers transmit
+ * the quantized subband samples directly, with a scale factor for each block
+ * of 12 samples, so there is no inverse MDCT: each row of 32 subband samples
+ * goes straight into the synthesis filter.
+ */
+abstract class SubbandDecoder {
+
+    static final int SBLIMIT = 32;
+
+    /**
+     * The number of rows (samples per subband) of a scale factor block.
+     */
+    static final int BLOCK_ROWS = 12;
+
+    /**
+     * The scale factors: 2.0 * 2^(-index / 3). Index 63 is not allowed.
+     */
+    static final double[] SCALE_FACTORS = new double[64];
+
+    static {
+        for (int i = 0; i < SCALE_FACTORS.length - 1; i++) {
+            SCALE_FACTORS[i] = 2.0 * Math.pow(2.0, -i / 3.0);
+        }
+    }
+
+    protected final Bitstream stream;
+    protected final Header header;
+    protected final int channels;
+    private final int rowsPerFrame;
+    private final SynthesisFilter filter1, filter2;
+    private final Decoder player;
+    private final boolean downmix;
+    private final SilenceDetector silenceDetector;
+    private final boolean synthesis;
+    private final DecodeReport report;
+    private final boolean checkCrc;
+    private final double[] zero = new double[SBLIMIT];
+    private int rows;
+    private double energy;
+
+    /**
+     * Create a decoder.
+     *
+     * @param rowsPerFrame the number of samples per subband of a frame
+     * @param filter2 the filter for the second channel, or null to mix
+     *            stereo input down to mono
+     */
+    SubbandDecoder(Bitstream stream, Header header, int rowsPerFrame, SynthesisFilter filter1,
+            SynthesisFilter filter2, Decoder player) {
+        this.stream = stream;
+        this.header = header;
+        this.rowsPerFrame = rowsPerFrame;
+        this.filter1 = filter1;
+        this.filter2 = filter2;
+        this.player = player;
+        channels = (header.mode() == Header.MODE_SINGLE_CHANNEL) ? 1 : 2;
+        downmix = channels == 2 && filter2 == null;
+        silenceDetector = player.getSilenceDetector();
+        synthesis = player.isSynthesis();
+        report = player.getReport();
+        checkCrc = player.isCheckCrc();
+    }
+
+    public void decodeFrame() throws IOException {
+        rows = 0;
+        if (report == null) {
+            decodeAudio();
+            return;
+        }
+        report.addFrame();
+        report.setSkippedBytes(stream.getSkippedBytes());
+        try {
+            decodeAudio();
+        } catch (RuntimeException e) {
+            report.addError(DecodeReport.BAD_MAIN_DATA, e.toString());
+            mute();
+        }
+    }
+
+    /**
+     * Read the audio data of the current frame, and output all rows using
+     * outputRow.
+     */
+    protected abstract void decodeAudio() throws IOException;
+
+    /**
+     * The first subband that is coded as intensity stereo.
+     *
+     * @param limit the number of subbands that are coded
+     * @return the bound
+     */
+    protected int getBound(int limit) {
+        return channels == 1 ? limit : Math.min(header.intensityStereoBound(), limit);
+    }
+
+    /**
+     * Verify the CRC, after the protected part of the audio data was read.
+     *
+     * @param bits the number of protected bits after the CRC
+     * @return false if the frame was muted
+     */
+    protected boolean checkCrc(int bits) throws IOException {
+        if (!checkCrc || stream.checkCrc(header, bits)) {
+            return true;
+        }
+        if (report == null) {
+            throw new IOException("CRC error");
+        }
+        report.addError(DecodeReport.CRC_ERROR, "bit allocation");
+        mute();
+        return false;
+    }
+
+    /**
+     * Handle an invalid bit allocation.
+     *
+     * @param message the error message
+     * @throws IOException if the resilient mode is not used
+     */
+    protected void badAllocation(String message) throws IOException {
+        if (report == null) {
+            throw new IOException(message);
+        }
+        report.addError(DecodeReport.BAD_SIDE_INFO, message);
+        mute();
+    }
+
+    /**
+     * Replace the rest of the frame with silence. The timing is kept, and as
+     * the synthesis filter is not reset, the output fades out without a
+     * click.
+     */
+    private void mute() {
+        report.addConcealed();
+        while (rows < rowsPerFrame) {
+            outputRow(zero, zero);
+        }
+    }
+
+    /**
+     * Output one row: one sample of each subband and channel.
+     *
+     * @param s1 the samples of the first channel
+     * @param s2 the samples of the second channel (not used for mono)
+     */
+    protected void outputRow(double[] s1, double[] s2) {
+        rows++;
+        if (silenceDetector != null) {
+            for (int sb = 0; sb < SBLIMIT; sb++) {
+                energy += s1[sb] * s1[sb];
+            }
+            if (channels == 2) {
+                for (int sb = 0; sb < SBLIMIT; sb++) {
+                    energy += s2[sb] * s2[sb];
+                }
+            }
+            if (rows % BLOCK_ROWS == 0) {
+                silenceDetector.addSubbandSamples(energy / channels, BLOCK_ROWS * SBLIMIT, BLOCK_ROWS * SBLIMIT
+                        / player.getDownsampling());
+                energy = 0;
+            }
+            if (!synthesis) {
+                return;
+            }
+        }
+        if (downmix) {
+            for (int sb = 0; sb < SBLIMIT; sb++) {
+                s1[sb] = (s1[sb] + s2[sb]) * 0.5;
+            }
+            filter1.calculatePcmSamples(s1, player);
+            return;
+        }
+        filter1.calculatePcmSamples(s1, player);
+        if (channels == 2) {
+            filter2.calculatePcmSamples(s2, player);
+        }
+    }
+
+}
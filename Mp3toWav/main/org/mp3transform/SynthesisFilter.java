@@ -8,7 +8,8 @@ final class SynthesisFilter {
     private double[] samples = new double[32]; 
     private int channel;
     private double scaleFactor;
-    private double[] tmpOutBuffer = new double[32];
+    private double[] tmpOutBuffer;
+    private final int step, subbands;
     private static final double MY_PI = 3.14159265358979323846;
     private static final double COS1_64 = divCos(MY_PI / 64.0);
     private static final double COS3_64 = divCos(MY_PI * 3.0 / 64.0);
@@ -45,8 +46,23 @@ final class SynthesisFilter {
 
 
     SynthesisFilter(int channelNumber, double factor) {
+        this(channelNumber, factor, 1);
+    }
+
+    /**
+     * Create a filter that only uses the lower subbands and outputs a lower
+     * sample rate. As the upper subbands are ignored, the full rate output
+     * has no content above the new Nyquist frequency and can be decimated
+     * directly; only every step-th sample is calculated.
+     *
+     * @param step 1 for the full rate, 2 for half, and 4 for quarter rate
+     */
+    SynthesisFilter(int channelNumber, double factor, int step) {
         channel = channelNumber;
         scaleFactor = factor;
+        this.step = step;
+        subbands = 32 / step;
+        tmpOutBuffer = new double[32 / step];
     }
 
     private static double divCos(double a) {
@@ -625,12 +641,34 @@ final class SynthesisFilter {
     }
 
 
+    private void computeDecimatedPcmSamples() {
+        final double[] vp = actualV;
+        final double[] tmpOut = tmpOutBuffer;
+        final int pos = actualWritePos;
+        for (int i = 0, j = 0; i < 32; i += step, j++) {
+            final double[] dp = D16[i];
+            final int dvp = i * 16;
+            double pcmSample = 0;
+            for (int k = 0; k < 16; k++) {
+                pcmSample += vp[dvp + ((pos - k) & 15)] * dp[k];
+            }
+            tmpOut[j] = pcmSample * scaleFactor;
+        }
+    }
+
     void calculatePcmSamples(double[] s, Decoder player) {
-        for (int i = 0; i < 32; i++) {
+        for (int i = 0; i < subbands; i++) {
             samples[i] = s[i];
         }
+        for (int i = subbands; i < 32; i++) {
+            samples[i] = 0;
+        }
         computeNewV();
-        computePcmSamples();
+        if (step == 1) {
+            computePcmSamples();
+        } else {
+            computeDecimatedPcmSamples();
+        }
         player.appendSamples(channel, tmpOutBuffer);
         actualWritePos = (actualWritePos + 1) & 0xf;
         actualV = (actualV == v1) ? v2 : v1;
@@ -0,0 +1,241 @@
+package org.mp3transform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A file that is opened for playing. The first frames can be decoded ahead
+ * of time (while the previous track is still playing), so that the next
+ * track starts without a gap.
+ */
+public final class Track {
+
+    /**
+     * The delay of the synthesis filter bank, in samples.
+     */
+    private static final int DECODER_DELAY = 529;
+    private static final int MAX_ERRORS = 1000;
+
+    private final String name;
+    private final InputStream in;
+    private final Output output = new Output();
+    private Bitstream stream;
+    private Decoder decoder;
+    private Header header;
+    private byte[] pcmBuffer;
+    private int frequency, channels;
+    private int frame, errors;
+    private boolean complete;
+    private DecodeReport report;
+
+    Track(String name, InputStream in, boolean mono, int downsampling) throws IOException {
+        this.name = name;
+        this.in = in;
+        stream = new Bitstream(in);
+        header = stream.readFrame();
+        if (header == null) {
+            return;
+        }
+        frequency = header.frequency() / downsampling;
+        channels = (mono || header.mode() == Header.MODE_SINGLE_CHANNEL) ? 1 : 2;
+        decoder = new Decoder();
+        decoder.setMono(mono);
+        decoder.setDownsampling(downsampling);
+        report = new DecodeReport(name);
+        decoder.setResilient(report, Decoder.CONCEAL_REPEAT);
+        decoder.setCheckCrc(true);
+        decoder.initOutput(output, channels);
+        int delay = header.encoderDelay();
+        if (delay >= 0) {
+            long total = -1;
+            if (header.frames() > 0) {
+                total = (long) header.frames() * header.samplesPerFrame() - delay - header.encoderPadding();
+            }
+            decoder.setTrim((delay + DECODER_DELAY) / downsampling, total < 0 ? -1 : total / downsampling);
+        }
+        if (header.tagFrame()) {
+            stream.closeFrame();
+            header = null;
+        }
+    }
+
+    /**
+     * Create a track from audio that was already decoded.
+     */
+    Track(String name, InputStream pcm, int frequency, int channels) {
+        this.name = name;
+        this.in = pcm;
+        this.frequency = frequency;
+        this.channels = channels;
+        pcmBuffer = new byte[Decoder.BUFFER_SIZE * channels];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int getFrequency() {
+        return frequency;
+    }
+
+    int getChannels() {
+        return channels;
+    }
+
+    boolean isEmpty() {
+        return channels == 0;
+    }
+
+    /**
+     * Whether the track was decoded until the end.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Get the errors found so far.
+     *
+     * @return the report, or null if the track is not decoded from mp3
+     */
+    public DecodeReport getReport() {
+        return report;
+    }
+
+    /**
+     * Also write the decoded audio to the cache. The entry is added when the
+     * track was decoded completely. This needs to be called before any frames
+     * are decoded.
+     */
+    public void cacheTo(PcmCache.Writer writer) throws IOException {
+        if (isEmpty()) {
+            return;
+        }
+        writer.open(frequency, channels);
+        output.copy = writer;
+    }
+
+    /**
+     * Decode the first frames and keep the samples until the track is
+     * played.
+     *
+     * @param frames the number of frames
+     */
+    public void prepare(int frames) throws IOException {
+        if (isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < frames && decodeFrame(); i++) {
+            // decode
+        }
+    }
+
+    void start(PcmOutput out) throws IOException {
+        out.write(output.pending, 0, output.length);
+        output.pending = null;
+        output.target = out;
+    }
+
+    /**
+     * Decode the next frame.
+     *
+     * @return false if the end of the track was reached
+     */
+    boolean decodeFrame() throws IOException {
+        if (pcmBuffer != null) {
+            return readPcm();
+        }
+        try {
+            if (header == null) {
+                header = stream.readFrame();
+                if (header == null) {
+                    complete = true;
+                    return false;
+                }
+            }
+            decoder.decodeFrame(header, stream);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (Exception e) {
+            if (errors++ > MAX_ERRORS) {
+                return false;
+            }
+            report.addError(DecodeReport.FAILED, "frame " + frame + ": " + e.toString());
+        } finally {
+            header = null;
+            stream.closeFrame();
+            frame++;
+        }
+        return true;
+    }
+
+    private boolean readPcm() throws IOException {
+        int len = 0;
+        while (len < pcmBuffer.length) {
+            int l = in.read(pcmBuffer, len, pcmBuffer.length - len);
+            if (l < 0) {
+                break;
+            }
+            len += l;
+        }
+        len -= len % (channels * 2);
+        if (len == 0) {
+            complete = true;
+            return false;
+        }
+        output.write(pcmBuffer, 0, len);
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (report != null && !report.isClean()) {
+            System.out.println(report);
+        }
+        in.close();
+        PcmCache.Writer copy = output.copy;
+        if (copy != null) {
+            output.copy = null;
+            if (complete && report.isClean()) {
+                copy.commit();
+            } else {
+                copy.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps the samples that are decoded before the track is played, and
+     * afterwards writes to the audio output and the copy.
+     */
+    private static class Output implements PcmOutput {
+        PcmOutput target;
+        PcmCache.Writer copy;
+        byte[] pending = new byte[Decoder.BUFFER_SIZE * 2 * 8];
+        int length;
+
+        public void open(int frequency, int channels) {
+        }
+
+        public void write(byte[] buff, int offset, int len) throws IOException {
+            if (copy != null) {
+                copy.write(buff, offset, len);
+            }
+            if (target != null) {
+                target.write(buff, offset, len);
+                return;
+            }
+            if (length + len > pending.length) {
+                byte[] d = new byte[Math.max(pending.length * 2, length + len)];
+                System.arraycopy(pending, 0, d, 0, length);
+                pending = d;
+            }
+            System.arraycopy(buff, offset, pending, length, len);
+            length += len;
+        }
+
+        public void close() {
+        }
+    }
+
+}
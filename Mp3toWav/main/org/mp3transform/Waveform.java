@@ -0,0 +1,276 @@
+package org.mp3transform;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A peak summary of a track, used to draw waveforms. Each level contains
+ * the minimum, maximum and RMS value of the samples of all channels per
+ * point. Level 0 has the highest resolution; each following level combines
+ * 4 points of the previous level. The values are stored as one byte each
+ * (the upper 8 bits of a 16 bit sample).
+ */
+public class Waveform {
+
+    private static final int MAGIC = 0x57465631; // "WFV1"
+    private static final int FACTOR = 4;
+
+    private int frequency, channels;
+    private long sampleCount;
+    private int[] samplesPerPoint;
+    private int[] pointCount;
+    private byte[][] data;
+
+    private Waveform() {
+    }
+
+    /**
+     * Read a waveform that was written with write.
+     */
+    public static Waveform read(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != MAGIC) {
+            throw new IOException("Not a waveform file");
+        }
+        Waveform w = new Waveform();
+        w.frequency = din.readInt();
+        w.channels = din.readInt();
+        w.sampleCount = din.readLong();
+        int levels = din.readInt();
+        w.samplesPerPoint = new int[levels];
+        w.pointCount = new int[levels];
+        w.data = new byte[levels][];
+        for (int i = 0; i < levels; i++) {
+            w.samplesPerPoint[i] = din.readInt();
+            w.pointCount[i] = din.readInt();
+            w.data[i] = new byte[w.pointCount[i] * 3];
+            din.readFully(w.data[i]);
+        }
+        return w;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(frequency);
+        dout.writeInt(channels);
+        dout.writeLong(sampleCount);
+        dout.writeInt(data.length);
+        for (int i = 0; i < data.length; i++) {
+            dout.writeInt(samplesPerPoint[i]);
+            dout.writeInt(pointCount[i]);
+            dout.write(data[i], 0, pointCount[i] * 3);
+        }
+        dout.flush();
+    }
+
+    public int getFrequency() {
+        return frequency;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * The number of samples (per channel) of the track.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getLevelCount() {
+        return data.length;
+    }
+
+    public int getSamplesPerPoint(int level) {
+        return samplesPerPoint[level];
+    }
+
+    public int getPointCount(int level) {
+        return pointCount[level];
+    }
+
+    /**
+     * Get the level with the lowest resolution that still has at least the
+     * given number of points (or level 0).
+     *
+     * @param width the number of points needed, for example the width in
+     *            pixels
+     */
+    public int getLevel(int width) {
+        for (int i = data.length - 1; i > 0; i--) {
+            if (pointCount[i] >= width) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The minimum value of a point (-128 to 127).
+     */
+    public int getMin(int level, int point) {
+        return data[level][point * 3];
+    }
+
+    /**
+     * The maximum value of a point (-128 to 127).
+     */
+    public int getMax(int level, int point) {
+        return data[level][point * 3 + 1];
+    }
+
+    /**
+     * The RMS value of a point (0 to 127).
+     */
+    public int getRms(int level, int point) {
+        return data[level][point * 3 + 2];
+    }
+
+    /**
+     * Builds a waveform while the audio is decoded. The audio is either
+     * written as 16 bit samples, or appended directly from the synthesis
+     * filter (one channel only).
+     */
+    public static class Builder implements PcmOutput {
+        private final Waveform w = new Waveform();
+        private final int levels;
+        private final int[] min, max, children;
+        private final double[] sum;
+        private final long[] samples;
+
+        /**
+         * Create a builder.
+         *
+         * @param samplesPerPoint the number of samples per point of level 0
+         * @param levels the number of levels
+         */
+        public Builder(int samplesPerPoint, int levels) {
+            this.levels = levels;
+            w.samplesPerPoint = new int[levels];
+            w.pointCount = new int[levels];
+            w.data = new byte[levels][];
+            min = new int[levels];
+            max = new int[levels];
+            children = new int[levels];
+            sum = new double[levels];
+            samples = new long[levels];
+            for (int i = 0; i < levels; i++) {
+                w.samplesPerPoint[i] = samplesPerPoint;
+                w.data[i] = new byte[64 * 3];
+                samplesPerPoint *= FACTOR;
+                reset(i);
+            }
+        }
+
+        private void reset(int level) {
+            min[level] = Integer.MAX_VALUE;
+            max[level] = Integer.MIN_VALUE;
+            sum[level] = 0;
+            samples[level] = 0;
+            children[level] = 0;
+        }
+
+        public void open(int frequency, int channels) {
+            w.frequency = frequency;
+            w.channels = channels;
+        }
+
+        /**
+         * Add signed 16 bit big endian interleaved samples.
+         */
+        public void write(byte[] data, int offset, int length) {
+            int channels = w.channels;
+            int count = length / 2 / channels;
+            for (int i = 0, p = offset; i < count; i++) {
+                int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+                double sq = 0;
+                for (int ch = 0; ch < channels; ch++, p += 2) {
+                    int x = (short) ((data[p] << 8) | (data[p + 1] & 0xff));
+                    lo = Math.min(lo, x);
+                    hi = Math.max(hi, x);
+                    sq += (double) x * x;
+                }
+                add(lo, hi, sq / channels);
+            }
+        }
+
+        /**
+         * Add samples of a single channel, as produced by the synthesis
+         * filter.
+         */
+        public void append(double[] f, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                double s = f[i];
+                int x = (int) ((s > 32767.0f) ? 32767 : ((s < -32768.0f) ? -32768 : s));
+                add(x, x, s * s);
+            }
+        }
+
+        private void add(int lo, int hi, double sq) {
+            if (lo < min[0]) {
+                min[0] = lo;
+            }
+            if (hi > max[0]) {
+                max[0] = hi;
+            }
+            sum[0] += sq;
+            w.sampleCount++;
+            if (++samples[0] == w.samplesPerPoint[0]) {
+                emit(0);
+            }
+        }
+
+        /**
+         * Store the current point of a level, and add it to the next level.
+         */
+        private void emit(int level) {
+            int n = w.pointCount[level];
+            byte[] d = w.data[level];
+            if (n * 3 == d.length) {
+                byte[] d2 = new byte[d.length * 2];
+                System.arraycopy(d, 0, d2, 0, d.length);
+                w.data[level] = d = d2;
+            }
+            double rms = Math.sqrt(sum[level] / samples[level]);
+            d[n * 3] = (byte) (min[level] >> 8);
+            d[n * 3 + 1] = (byte) (max[level] >> 8);
+            d[n * 3 + 2] = (byte) Math.min(127, (int) rms >> 8);
+            w.pointCount[level] = n + 1;
+            int next = level + 1;
+            if (next < levels) {
+                min[next] = Math.min(min[next], min[level]);
+                max[next] = Math.max(max[next], max[level]);
+                sum[next] += sum[level];
+                samples[next] += samples[level];
+                if (++children[next] == FACTOR) {
+                    emit(next);
+                }
+            }
+            reset(level);
+        }
+
+        /**
+         * Store the incomplete points at the end.
+         */
+        public void close() {
+            for (int i = 0; i < levels; i++) {
+                if (samples[i] > 0) {
+                    emit(i);
+                }
+            }
+        }
+
+        /**
+         * Get the waveform. This is only complete after close.
+         */
+        public Waveform getWaveform() {
+            return w;
+        }
+    }
+
+}
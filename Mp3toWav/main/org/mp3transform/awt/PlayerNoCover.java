@@ -31,9 +31,15 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.prefs.Preferences;
 
+import org.mp3transform.PcmCache;
+import org.mp3transform.catalog.Catalog;
+import org.mp3transform.catalog.CatalogEntry;
+
 public class PlayerNoCover implements ActionListener, MouseListener {
 
     private static final String PREF_DIR = "dir", PREF_LISTENER_PORT = "listenerPort";
+    private static final String PREF_CACHE_DIR = "cacheDir", PREF_CACHE_SIZE = "cacheSize";
+    private static final String PREF_LIBRARY_DIR = "libraryDir";
     private static final int FIRST_PORT = 11100;
     private static final String TITLE = "MP3 Player";
     private static final String MP3_SUFFIX = ".mp3";
@@ -51,6 +57,8 @@ public class PlayerNoCover implements ActionListener, MouseListener {
     private Frame frame;
     private Preferences prefs = Preferences.userNodeForPackage(getClass());
     private ServerSocket serverSocket;
+    private PcmCache cache;
+    private volatile Catalog catalog;
 
 
     public static void main(String[] args) throws Exception {
@@ -78,6 +86,7 @@ public class PlayerNoCover implements ActionListener, MouseListener {
                     icon = Toolkit.getDefaultToolkit().createImage(imageData);
                 }
                 useSystemTray = createTrayIcon();
+                openCatalog();
                 readDirectory();
                 createFrame();
                 open();
@@ -345,18 +354,23 @@ public class PlayerNoCover implements ActionListener, MouseListener {
     private void readFiles(File dir) {
         File[] f;
         boolean roots = dir == null;
+        boolean listed = false;
         if (roots) {
             f = File.listRoots();
         } else {
-            f = dir.listFiles();
+            f = listCatalog(dir);
+            listed = f != null;
+            if (!listed) {
+                f = dir.listFiles();
+            }
         }
-        if (f.length == 0) {
+        if (f == null || f.length == 0) {
             return;
         }
         ArrayList fileList = new ArrayList();
         for (int i = 0; i < f.length; i++) {
             File f2 = f[i];
-            if (roots || isMp3(f2) || f2.isDirectory()) {
+            if (roots || listed || isMp3(f2) || f2.isDirectory()) {
                 fileList.add(f2);
             }
         }
@@ -377,19 +391,56 @@ public class PlayerNoCover implements ActionListener, MouseListener {
         list.removeAll();
         for (int i = 0; i < files.length; i++) {
             File f2 = files[i];
-            if (roots || isMp3(f2) || f2.isDirectory()) {
-                String name = f2.getName().trim();
-                if (name.length() == 0) {
-                    name = f2.getAbsolutePath();
-                }
-                list.add(getTitle(name));
+            String name = f2.getName().trim();
+            if (name.length() == 0) {
+                name = f2.getAbsolutePath();
             }
+            list.add(getTitle(name));
         }
         list.setForeground(fg);
         list.setFocusable(true);
         list.requestFocus();
     }
     
+    /**
+     * Open the catalog of the library, if one is configured. The stored
+     * catalog is used for browsing right away, and updated in the background.
+     */
+    private void openCatalog() {
+        final String dir = prefs.get(PREF_LIBRARY_DIR, null);
+        if (dir == null) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                Catalog c = Catalog.open(new File(dir));
+                catalog = c;
+                c.update();
+                try {
+                    c.save();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * List a directory using the catalog.
+     *
+     * @return the files, or null if the directory is not in the catalog
+     */
+    private File[] listCatalog(File dir) {
+        Catalog c = catalog;
+        if (c == null || !c.contains(dir)) {
+            return null;
+        }
+        java.util.List<File> l = c.list(dir);
+        return l.isEmpty() ? null : l.toArray(new File[l.size()]);
+    }
+
     private void readDirectory() {
         String s = prefs.get(PREF_DIR, null);
         if (s != null) {
@@ -408,11 +459,11 @@ public class PlayerNoCover implements ActionListener, MouseListener {
             }
             thread = PlayerThread.startPlaying(this, f, null);
         } else if (f.isDirectory()) {
-            ArrayList files = new ArrayList();
+            ArrayList<File> files = new ArrayList<File>();
             addAll(files, f);
             if (files.size() > 0) {
                 for (int i = 0; i < files.size(); i++) {
-                    Object temp = files.get(i);
+                    File temp = files.get(i);
                     int x = (int) (Math.random() * files.size());
                     files.set(i, files.get(x));
                     files.set(x, temp);
@@ -426,7 +477,17 @@ public class PlayerNoCover implements ActionListener, MouseListener {
         }
     }
 
-    private void addAll(ArrayList arrayList, File file) {
+    private void addAll(ArrayList<File> arrayList, File file) {
+        Catalog c = catalog;
+        if (c != null && c.contains(file) && file.isDirectory()) {
+            int size = arrayList.size();
+            for (CatalogEntry e : c.getTracks(file)) {
+                arrayList.add(e.getFile());
+            }
+            if (arrayList.size() > size) {
+                return;
+            }
+        }
         if (file.isDirectory()) {
             File[] list = file.listFiles();
             for (int i = 0; i < list.length; i++) {
@@ -482,6 +543,22 @@ public class PlayerNoCover implements ActionListener, MouseListener {
         }
     }
 
+    /**
+     * Get the cache of decoded files, if one is configured.
+     *
+     * @return the cache or null
+     */
+    synchronized PcmCache getCache() {
+        if (cache == null) {
+            String dir = prefs.get(PREF_CACHE_DIR, null);
+            if (dir != null) {
+                long size = prefs.getLong(PREF_CACHE_SIZE, 256) * 1024 * 1024;
+                cache = new PcmCache(new File(dir), size, false);
+            }
+        }
+        return cache;
+    }
+
     public void setCurrentFile(File file) {
         String name = file == null ? "" : file.getName();
         playingText = getTitle(name);
@@ -1,21 +1,33 @@
 package org.mp3transform.awt;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+import org.mp3transform.AudioRange;
 import org.mp3transform.Decoder;
+import org.mp3transform.PcmCache;
+import org.mp3transform.Track;
+import org.mp3transform.io.Prefetcher;
 
 public class PlayerThread implements Runnable {
 
+    private static final int PREPARE_FRAMES = 16;
+    private static final int PREFETCH_FILES = 3;
+
     private Decoder decoder = new Decoder();
+    private Prefetcher prefetcher = new Prefetcher();
     private File currentFile;
     private ArrayList fileList;
     private Thread thread;
     private boolean stop;
     private PlayerNoCover player;
+    private File nextFile;
+    private FutureTask<Track> nextTrack;
 
     public void stopPlaying() {
         stop = true;
@@ -56,6 +68,9 @@ public class PlayerThread implements Runnable {
                 }
                 play(currentFile);
             }
+            closeNextTrack();
+            prefetcher.clear();
+            decoder.close();
             player.setCurrentFile(null);
         } catch (IOException e) {
             e.printStackTrace();
@@ -69,12 +84,106 @@ public class PlayerThread implements Runnable {
             return;
         }
         System.out.println("playing: " + file);
-        FileInputStream in = new FileInputStream(file);
-        BufferedInputStream bin = new BufferedInputStream(in, 128 * 1024);
-        decoder.play(file.getName(), bin);
+        Track track = takeNextTrack(file);
+        if (track == null) {
+            track = open(file);
+        }
+        prefetch();
+        prepareNextTrack();
+        decoder.play(track);
         currentFile = null;
     }
 
+    private Track open(File file) throws IOException {
+        PcmCache cache = player.getCache();
+        if (cache != null) {
+            PcmCache.Entry entry = cache.get(file);
+            if (entry != null) {
+                prefetcher.discard(file);
+                return decoder.open(file.getName(), entry.openData(), entry.getFrequency(), entry.getChannels());
+            }
+        }
+        AudioRange range = AudioRange.scan(file);
+        InputStream in = range.limit(prefetcher.open(file));
+        Track track = decoder.open(file.getName(), in);
+        if (cache != null) {
+            track.cacheTo(cache.create(file));
+        }
+        return track;
+    }
+
+    /**
+     * Start reading the next files of the list in the background.
+     */
+    private void prefetch() {
+        if (fileList == null) {
+            return;
+        }
+        for (int i = 0; i < PREFETCH_FILES && i < fileList.size(); i++) {
+            File file = (File) fileList.get(i);
+            if (file.getName().endsWith(".mp3")) {
+                prefetcher.prefetch(file);
+            }
+        }
+    }
+
+    /**
+     * Open the next file of the list, and decode the first frames, while the
+     * current file is playing.
+     */
+    private void prepareNextTrack() {
+        closeNextTrack();
+        if (fileList == null || fileList.size() == 0) {
+            return;
+        }
+        final File file = (File) fileList.get(0);
+        if (!file.getName().endsWith(".mp3")) {
+            return;
+        }
+        nextFile = file;
+        nextTrack = new FutureTask<Track>(new Callable<Track>() {
+            public Track call() throws IOException {
+                Track track = open(file);
+                track.prepare(PREPARE_FRAMES);
+                return track;
+            }
+        });
+        Thread t = new Thread(nextTrack);
+        t.setName(getClass().getName() + " prepare");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private Track takeNextTrack(File file) {
+        if (nextTrack == null || !file.equals(nextFile)) {
+            closeNextTrack();
+            return null;
+        }
+        FutureTask<Track> task = nextTrack;
+        nextTrack = null;
+        nextFile = null;
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private void closeNextTrack() {
+        FutureTask<Track> task = nextTrack;
+        nextTrack = null;
+        nextFile = null;
+        if (task != null) {
+            try {
+                task.get().close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
     public void playNext() {
         decoder.stop();
         currentFile = null;
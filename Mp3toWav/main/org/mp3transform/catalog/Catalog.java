@@ -0,0 +1,412 @@
+package org.mp3transform.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The metadata of all tracks of a music library. It is stored in a file in
+ * the root directory of the library, and kept in memory with an index by
+ * path (so that a directory can be listed without accessing the disk), by
+ * artist and by album. When the catalog is updated, only files that are new
+ * or changed (according to the modification time and size) are scanned.
+ */
+public final class Catalog {
+
+    /**
+     * The name of the catalog file, in the root directory.
+     */
+    public static final String FILE_NAME = ".catalog";
+
+    private static final int MAGIC = 0x4d504331;
+    private static final String MP3_SUFFIX = ".mp3";
+    private static final char MAX_CHAR = '\uffff';
+
+    private final File root;
+    private final TreeMap<String, CatalogEntry> byPath = new TreeMap<String, CatalogEntry>();
+    private final TreeMap<String, List<CatalogEntry>> byArtist = new TreeMap<String, List<CatalogEntry>>();
+    private final TreeMap<String, List<CatalogEntry>> byAlbum = new TreeMap<String, List<CatalogEntry>>();
+    private boolean modified;
+
+    private Catalog(File root) {
+        this.root = root.getAbsoluteFile();
+    }
+
+    /**
+     * Open the catalog of a library. If the catalog file doesn't exist (or
+     * is not readable), the catalog is empty.
+     *
+     * @param root the root directory of the library
+     * @return the catalog
+     */
+    public static Catalog open(File root) {
+        Catalog catalog = new Catalog(root);
+        File file = catalog.getFile();
+        if (file.exists()) {
+            try {
+                catalog.load(file);
+            } catch (IOException e) {
+                catalog.clear();
+            }
+        }
+        return catalog;
+    }
+
+    private void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                add(CatalogEntry.read(in));
+            }
+            modified = false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the catalog file, if the catalog was changed.
+     */
+    public synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        File file = getFile();
+        File temp = new File(file.getPath() + ".temp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(byPath.size());
+            for (CatalogEntry e : byPath.values()) {
+                e.write(out);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        modified = false;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public File getFile() {
+        return new File(root, FILE_NAME);
+    }
+
+    /**
+     * Update the catalog with the files of the library. New and changed
+     * files are scanned, and entries of files that no longer exist are
+     * removed. Reading the catalog is possible while it is updated.
+     *
+     * @return the number of entries that were added, changed or removed
+     */
+    public int update() {
+        return update(root, null);
+    }
+
+    /**
+     * Update the entries of a file, or of all files in a directory tree.
+     *
+     * @param file the file or directory (it may no longer exist)
+     * @param changedDirs if not null, the directories of the entries that
+     *            were added, changed or removed are added to this set
+     * @return the number of entries that were added, changed or removed
+     */
+    public int update(File file, Set<File> changedDirs) {
+        file = file.getAbsoluteFile();
+        Map<String, CatalogEntry> old = new HashMap<String, CatalogEntry>();
+        synchronized (this) {
+            CatalogEntry e = byPath.get(file.getPath());
+            if (e != null) {
+                old.put(e.getPath(), e);
+            }
+            for (CatalogEntry x : getTracks(file)) {
+                old.put(x.getPath(), x);
+            }
+        }
+        List<CatalogEntry> changed = new ArrayList<CatalogEntry>();
+        Set<String> found = new HashSet<String>();
+        if (file.isDirectory()) {
+            collect(file, old, found, changed);
+        } else if (file.isFile()) {
+            check(file, old, found, changed);
+        }
+        int count = changed.size();
+        synchronized (this) {
+            for (CatalogEntry e : changed) {
+                add(e);
+                if (changedDirs != null) {
+                    changedDirs.add(e.getFile().getParentFile());
+                }
+            }
+            for (String path : old.keySet()) {
+                if (!found.contains(path)) {
+                    remove(path);
+                    count++;
+                    if (changedDirs != null) {
+                        changedDirs.add(new File(path).getParentFile());
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void collect(File dir, Map<String, CatalogEntry> old, Set<String> found,
+            List<CatalogEntry> changed) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                collect(f, old, found, changed);
+            } else {
+                check(f, old, found, changed);
+            }
+        }
+    }
+
+    /**
+     * Scan a file if it is a track that is new or changed.
+     */
+    private static void check(File f, Map<String, CatalogEntry> old, Set<String> found,
+            List<CatalogEntry> changed) {
+        if (!isMp3(f)) {
+            return;
+        }
+        String path = f.getAbsolutePath();
+        found.add(path);
+        CatalogEntry e = old.get(path);
+        if (e == null || !e.isCurrent(f)) {
+            try {
+                changed.add(CatalogEntry.scan(f));
+            } catch (IOException ex) {
+                System.out.println("error: " + f + " " + ex.toString());
+            }
+        }
+    }
+
+    private static boolean isMp3(File f) {
+        return f.getName().toLowerCase().endsWith(MP3_SUFFIX);
+    }
+
+    private void add(CatalogEntry e) {
+        remove(e.getPath());
+        byPath.put(e.getPath(), e);
+        addToIndex(byArtist, getArtist(e), e);
+        addToIndex(byAlbum, getAlbum(e), e);
+        modified = true;
+    }
+
+    private CatalogEntry remove(String path) {
+        CatalogEntry e = byPath.remove(path);
+        if (e != null) {
+            removeFromIndex(byArtist, getArtist(e), e);
+            removeFromIndex(byAlbum, getAlbum(e), e);
+            modified = true;
+        }
+        return e;
+    }
+
+    private synchronized void clear() {
+        byPath.clear();
+        byArtist.clear();
+        byAlbum.clear();
+    }
+
+    private static void addToIndex(Map<String, List<CatalogEntry>> index, String key, CatalogEntry e) {
+        key = key.toLowerCase();
+        List<CatalogEntry> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<CatalogEntry>(1);
+            index.put(key, list);
+        }
+        list.add(e);
+    }
+
+    private static void removeFromIndex(Map<String, List<CatalogEntry>> index, String key, CatalogEntry e) {
+        key = key.toLowerCase();
+        List<CatalogEntry> list = index.get(key);
+        if (list != null) {
+            list.remove(e);
+            if (list.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Get the artist of a track: from the tag, or else the name of the
+     * parent directory of the album directory.
+     */
+    public static String getArtist(CatalogEntry e) {
+        if (e.getArtist() != null) {
+            return e.getArtist();
+        }
+        File album = e.getFile().getParentFile();
+        File artist = album == null ? null : album.getParentFile();
+        return artist == null ? "" : artist.getName();
+    }
+
+    /**
+     * Get the album of a track: from the tag, or else the name of the
+     * directory.
+     */
+    public static String getAlbum(CatalogEntry e) {
+        if (e.getAlbum() != null) {
+            return e.getAlbum();
+        }
+        File album = e.getFile().getParentFile();
+        return album == null ? "" : album.getName();
+    }
+
+    public synchronized int size() {
+        return byPath.size();
+    }
+
+    /**
+     * Get the entry of a file.
+     *
+     * @param path the absolute path
+     * @return the entry, or null
+     */
+    public synchronized CatalogEntry get(String path) {
+        return byPath.get(path);
+    }
+
+    /**
+     * Whether the directory is within the library.
+     */
+    public boolean contains(File dir) {
+        String path = dir.getAbsolutePath();
+        String rootPath = root.getPath();
+        return path.equals(rootPath) || path.startsWith(getPrefix(root));
+    }
+
+    private static String getPrefix(File dir) {
+        String path = dir.getAbsolutePath();
+        return path.endsWith(File.separator) ? path : path + File.separator;
+    }
+
+    /**
+     * Get all tracks within a directory (including subdirectories), sorted
+     * by path.
+     *
+     * @param dir the directory
+     * @return the tracks
+     */
+    public synchronized List<CatalogEntry> getTracks(File dir) {
+        String prefix = getPrefix(dir);
+        return new ArrayList<CatalogEntry>(byPath.subMap(prefix, prefix + MAX_CHAR).values());
+    }
+
+    /**
+     * List a directory: the subdirectories that contain tracks, followed by
+     * the tracks, each sorted by name.
+     *
+     * @param dir the directory
+     * @return the files
+     */
+    public synchronized List<File> list(File dir) {
+        String prefix = getPrefix(dir);
+        Set<File> dirs = new LinkedHashSet<File>();
+        List<File> files = new ArrayList<File>();
+        SortedMap<String, CatalogEntry> map = byPath.subMap(prefix, prefix + MAX_CHAR);
+        while (!map.isEmpty()) {
+            String path = map.firstKey();
+            int end = path.indexOf(File.separatorChar, prefix.length());
+            if (end < 0) {
+                files.add(new File(path));
+                map = map.tailMap(path + '\0');
+            } else {
+                String child = path.substring(0, end);
+                dirs.add(new File(child));
+                // skip the rest of the subdirectory
+                map = map.tailMap(child + (char) (File.separatorChar + 1));
+            }
+        }
+        List<File> list = new ArrayList<File>(dirs);
+        Collections.sort(list);
+        Collections.sort(files);
+        list.addAll(files);
+        return list;
+    }
+
+    /**
+     * Get the directories that directly contain tracks, sorted by path.
+     *
+     * @return the album directories
+     */
+    public synchronized List<File> getAlbumDirectories() {
+        // tracks of a directory can come before and after its subdirectories
+        TreeSet<File> dirs = new TreeSet<File>();
+        String last = null;
+        for (String path : byPath.keySet()) {
+            String parent = path.substring(0, Math.max(0, path.lastIndexOf(File.separatorChar)));
+            if (!parent.equals(last)) {
+                dirs.add(new File(parent));
+                last = parent;
+            }
+        }
+        return new ArrayList<File>(dirs);
+    }
+
+    /**
+     * Find the tracks of the artists that start with the given text (case
+     * insensitive).
+     *
+     * @param prefix the start of the artist name
+     * @return the tracks, sorted by artist
+     */
+    public synchronized List<CatalogEntry> findArtist(String prefix) {
+        return find(byArtist, prefix);
+    }
+
+    /**
+     * Find the tracks of the albums that start with the given text (case
+     * insensitive).
+     *
+     * @param prefix the start of the album name
+     * @return the tracks, sorted by album
+     */
+    public synchronized List<CatalogEntry> findAlbum(String prefix) {
+        return find(byAlbum, prefix);
+    }
+
+    private static List<CatalogEntry> find(TreeMap<String, List<CatalogEntry>> index, String prefix) {
+        prefix = prefix.toLowerCase();
+        List<CatalogEntry> list = new ArrayList<CatalogEntry>();
+        for (List<CatalogEntry> l : index.subMap(prefix, prefix + MAX_CHAR).values()) {
+            list.addAll(l);
+        }
+        return list;
+    }
+
+}
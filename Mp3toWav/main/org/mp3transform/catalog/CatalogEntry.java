@@ -0,0 +1,260 @@
+package org.mp3transform.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.mp3transform.AudioRange;
+import org.mp3transform.Bitstream;
+import org.mp3transform.Header;
+import org.mp3transform.ID3v2Reader;
+
+/**
+ * The metadata of one track of the catalog. It is read from the ID3v2 tags
+ * and the first frame only, the audio data is not read.
+ */
+public final class CatalogEntry {
+
+    private static final int PICTURE_FRONT_COVER = 3;
+
+    /**
+     * The longest text that is kept.
+     */
+    private static final int MAX_TEXT = 1000;
+
+    private final String path;
+    private final long lastModified, size;
+    private long duration;
+    private int bitrate, frequency;
+    private String title, artist, album, track, year, genre;
+    private long coverOffset = -1;
+    private int coverLength;
+
+    private CatalogEntry(String path, long lastModified, long size) {
+        this.path = path;
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+
+    /**
+     * Read the metadata of a file.
+     *
+     * @param file the file
+     * @return the entry
+     */
+    public static CatalogEntry scan(File file) throws IOException {
+        CatalogEntry e = new CatalogEntry(file.getAbsolutePath(), file.lastModified(), file.length());
+        AudioRange range = AudioRange.scan(file);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            for (long pos = 0; pos < range.getStart();) {
+                ID3v2Reader reader = ID3v2Reader.open(channel, pos);
+                if (reader == null) {
+                    break;
+                }
+                e.readTag(reader);
+                pos += reader.getHeader().getTagSize();
+            }
+        } finally {
+            channel.close();
+        }
+        InputStream in = new BufferedInputStream(range.limit(new FileInputStream(file)), 8 * 1024);
+        try {
+            Header header = new Bitstream(in).readFrame();
+            if (header != null) {
+                long audioBytes = range.getEnd() - range.getStart();
+                e.duration = header.duration(audioBytes);
+                e.frequency = header.frequency();
+                e.bitrate = e.duration <= 0 ? header.bitrate() : (int) (audioBytes * 8000 / e.duration);
+            }
+        } finally {
+            in.close();
+        }
+        return e;
+    }
+
+    private void readTag(ID3v2Reader reader) throws IOException {
+        boolean frontCover = false;
+        while (reader.next()) {
+            String id = reader.getId();
+            if (id.length() == 3) {
+                // version 2.2
+                id = id.equals("TYE") ? "TYER" : id.equals("TP1") ? "TPE1" : id.equals("TAL") ? "TALB"
+                        : id.equals("TRK") ? "TRCK" : id.equals("TCO") ? "TCON" : id.equals("TT2") ? "TIT2"
+                        : id.equals("PIC") ? "APIC" : id;
+            }
+            if (id.equals("APIC")) {
+                int offset = reader.getPictureOffset();
+                long pos = reader.getDataPosition();
+                if (offset >= 0 && pos >= 0 && !frontCover) {
+                    coverOffset = pos + offset;
+                    coverLength = reader.getSize() - offset;
+                    frontCover = reader.getPictureType() == PICTURE_FRONT_COVER;
+                }
+                continue;
+            }
+            String text = reader.getText();
+            if (text == null) {
+                continue;
+            }
+            if (text.length() > MAX_TEXT) {
+                text = text.substring(0, MAX_TEXT);
+            }
+            if (id.equals("TIT2")) {
+                title = text;
+            } else if (id.equals("TPE1")) {
+                artist = text;
+            } else if (id.equals("TALB")) {
+                album = text;
+            } else if (id.equals("TRCK")) {
+                track = text;
+            } else if (id.equals("TYER") || id.equals("TDRC")) {
+                year = text;
+            } else if (id.equals("TCON")) {
+                genre = text;
+            }
+        }
+    }
+
+    static CatalogEntry read(DataInputStream in) throws IOException {
+        CatalogEntry e = new CatalogEntry(in.readUTF(), in.readLong(), in.readLong());
+        e.duration = in.readLong();
+        e.bitrate = in.readInt();
+        e.frequency = in.readInt();
+        e.title = readString(in);
+        e.artist = readString(in);
+        e.album = readString(in);
+        e.track = readString(in);
+        e.year = readString(in);
+        e.genre = readString(in);
+        e.coverOffset = in.readLong();
+        e.coverLength = in.readInt();
+        return e;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeUTF(path);
+        out.writeLong(lastModified);
+        out.writeLong(size);
+        out.writeLong(duration);
+        out.writeInt(bitrate);
+        out.writeInt(frequency);
+        writeString(out, title);
+        writeString(out, artist);
+        writeString(out, album);
+        writeString(out, track);
+        writeString(out, year);
+        writeString(out, genre);
+        out.writeLong(coverOffset);
+        out.writeInt(coverLength);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        String s = in.readUTF();
+        return s.length() == 0 ? null : s;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeUTF(s == null ? "" : s);
+    }
+
+    /**
+     * Whether the file was not changed since it was scanned.
+     */
+    boolean isCurrent(File file) {
+        return file.lastModified() == lastModified && file.length() == size;
+    }
+
+    /**
+     * The absolute path of the file.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public File getFile() {
+        return new File(path);
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * The duration in milliseconds, or 0 if the file has no audio frames.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * The (average) bitrate in bits per second.
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * The title, or null if the tag has none.
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * The artist, or null if the tag has none.
+     */
+    public String getArtist() {
+        return artist;
+    }
+
+    /**
+     * The album, or null if the tag has none.
+     */
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getTrack() {
+        return track;
+    }
+
+    public String getYear() {
+        return year;
+    }
+
+    public String getGenre() {
+        return genre;
+    }
+
+    /**
+     * The position of the cover picture data in the file, or -1 if there is
+     * none (or it can't be read directly).
+     */
+    public long getCoverOffset() {
+        return coverOffset;
+    }
+
+    public int getCoverLength() {
+        return coverLength;
+    }
+
+    public String toString() {
+        return path;
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.mp3transform.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * An input stream over a file that keeps a number of asynchronous reads in
+ * flight ahead of the current position.
+ */
+public class PrefetchInputStream extends InputStream {
+
+    private final Prefetcher prefetcher;
+    private final AsynchronousFileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private final ByteBuffer[] buffers;
+    private final long[] positions;
+    private final Future<?>[] reads;
+    private int head;
+    private long nextPos;
+    private ByteBuffer current;
+    private boolean closed;
+
+    PrefetchInputStream(Prefetcher prefetcher, Path path, int chunkSize, int chunks) throws IOException {
+        this.prefetcher = prefetcher;
+        this.chunkSize = chunkSize;
+        channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        buffers = new ByteBuffer[chunks];
+        positions = new long[chunks];
+        reads = new Future<?>[chunks];
+        for (int i = 0; i < chunks; i++) {
+            buffers[i] = ByteBuffer.allocate(chunkSize);
+            schedule(i);
+        }
+    }
+
+    int getWindowSize() {
+        return buffers.length * chunkSize;
+    }
+
+    private void schedule(int slot) {
+        ByteBuffer buff = buffers[slot];
+        buff.clear();
+        positions[slot] = nextPos;
+        if (nextPos >= size) {
+            buff.limit(0);
+            reads[slot] = null;
+            return;
+        }
+        buff.limit((int) Math.min(chunkSize, size - nextPos));
+        reads[slot] = channel.read(buff, nextPos);
+        nextPos += buff.limit();
+    }
+
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Closed");
+        }
+        if (current != null) {
+            if (current.hasRemaining()) {
+                return true;
+            }
+            schedule(head);
+            head = (head + 1) % buffers.length;
+        }
+        ByteBuffer buff = buffers[head];
+        Future<?> read = reads[head];
+        if (read == null) {
+            current = buff;
+            return false;
+        }
+        try {
+            read.get();
+            // the read may be short; continue until the chunk is complete
+            while (buff.hasRemaining()) {
+                int len = channel.read(buff, positions[head] + buff.position()).get().intValue();
+                if (len < 0) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            IOException io = new IOException("Read failed: " + e.getCause());
+            io.initCause(e.getCause());
+            throw io;
+        }
+        reads[head] = null;
+        buff.flip();
+        current = buff;
+        return buff.hasRemaining();
+    }
+
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        len = Math.min(len, current.remaining());
+        current.get(b, off, len);
+        return len;
+    }
+
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int len = (int) Math.min(n - skipped, current.remaining());
+            current.position(current.position() + len);
+            skipped += len;
+        }
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        return current == null ? 0 : current.remaining();
+    }
+
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            channel.close();
+            prefetcher.closed(this);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.mp3transform.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Starts reading files before they are needed, for example the next entries
+ * of a playlist on slow (network) storage. The memory used by the read-ahead
+ * windows of the prefetched files is bounded: if there is not enough memory
+ * left, the files that were prefetched first (and not opened) are closed.
+ */
+public class Prefetcher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+    public static final int DEFAULT_CHUNKS = 4;
+    public static final long DEFAULT_MAX_MEMORY = 8 * 1024 * 1024;
+
+    private final int chunkSize, chunks;
+    private final long maxMemory;
+    private final LinkedHashMap<File, PrefetchInputStream> prefetched =
+            new LinkedHashMap<File, PrefetchInputStream>();
+    private final HashSet<PrefetchInputStream> open = new HashSet<PrefetchInputStream>();
+    private long usedMemory;
+
+    public Prefetcher() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS, DEFAULT_MAX_MEMORY);
+    }
+
+    public Prefetcher(int chunkSize, int chunks, long maxMemory) {
+        this.chunkSize = chunkSize;
+        this.chunks = chunks;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Start reading the file in the background. If there is not enough
+     * memory left, the oldest prefetched files are closed first. The file
+     * should later be opened using open, or discarded.
+     */
+    public synchronized void prefetch(File file) {
+        if (prefetched.containsKey(file)) {
+            return;
+        }
+        long windowSize = (long) chunkSize * chunks;
+        Iterator<PrefetchInputStream> it = prefetched.values().iterator();
+        while (usedMemory + windowSize > maxMemory && it.hasNext()) {
+            PrefetchInputStream in = it.next();
+            it.remove();
+            close(in);
+        }
+        if (usedMemory + windowSize > maxMemory) {
+            // the memory is used by files that are open
+            return;
+        }
+        try {
+            PrefetchInputStream in = create(file);
+            prefetched.put(file, in);
+        } catch (IOException e) {
+            // ignore, opening the file will fail as well
+        }
+    }
+
+    /**
+     * Open the file. If it was prefetched, the data that was already read is
+     * used.
+     */
+    public synchronized InputStream open(File file) throws IOException {
+        PrefetchInputStream in = prefetched.remove(file);
+        if (in == null) {
+            in = create(file);
+        }
+        return in;
+    }
+
+    /**
+     * Close the file if it was prefetched, because it will not be opened
+     * (for example because the decoded data is cached).
+     */
+    public void discard(File file) {
+        PrefetchInputStream in;
+        synchronized (this) {
+            in = prefetched.remove(file);
+        }
+        if (in != null) {
+            close(in);
+        }
+    }
+
+    /**
+     * Close all files that were prefetched but not opened.
+     */
+    public void clear() {
+        ArrayList<PrefetchInputStream> list;
+        synchronized (this) {
+            list = new ArrayList<PrefetchInputStream>(prefetched.values());
+            prefetched.clear();
+        }
+        for (PrefetchInputStream in : list) {
+            close(in);
+        }
+    }
+
+    private static void close(PrefetchInputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public synchronized long getUsedMemory() {
+        return usedMemory;
+    }
+
+    private PrefetchInputStream create(File file) throws IOException {
+        PrefetchInputStream in = new PrefetchInputStream(this, file.toPath(), chunkSize, chunks);
+        open.add(in);
+        usedMemory += in.getWindowSize();
+        return in;
+    }
+
+    synchronized void closed(PrefetchInputStream in) {
+        if (open.remove(in)) {
+            usedMemory -= in.getWindowSize();
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+package org.mp3transform.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mp3transform.Bitstream;
+import org.mp3transform.Decoder;
+import org.mp3transform.Header;
+import org.mp3transform.PcmOutput;
+
+/**
+ * Decodes many streams concurrently. Each stream is read on its own (virtual
+ * if available) thread, while the decoding itself runs on a shared pool
+ * with one thread per processor.
+ */
+public class DecodingService {
+
+    private static final int MAX_ERRORS = 1000;
+
+    private final ExecutorService streams;
+    private final ExecutorService decoders;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final boolean virtual;
+
+    public DecodingService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public DecodingService(int decodeThreads) {
+        ExecutorService s = newVirtualThreadExecutor();
+        virtual = s != null;
+        if (s == null) {
+            s = Executors.newCachedThreadPool(new NamedThreadFactory("Stream"));
+        }
+        streams = s;
+        decoders = Executors.newFixedThreadPool(decodeThreads, new NamedThreadFactory("Decoder"));
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    public Future<Integer> submit(final String name, final Socket socket, final PcmOutput out) {
+        return streams.submit(new Callable<Integer>() {
+            public Integer call() throws IOException {
+                try {
+                    InputStream in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                    return decode(name, in, out);
+                } finally {
+                    socket.close();
+                }
+            }
+        });
+    }
+
+    public Future<Integer> submit(final String name, final InputStream in, final PcmOutput out) {
+        return streams.submit(new Callable<Integer>() {
+            public Integer call() throws IOException {
+                try {
+                    return decode(name, in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    int decode(String name, InputStream in, PcmOutput out) throws IOException {
+        activeStreams.incrementAndGet();
+        try {
+            Bitstream stream = new Bitstream(in);
+            FrameTask task = new FrameTask(stream);
+            int frames = 0, errors = 0;
+            while (true) {
+                Header header = stream.readFrame();
+                if (header == null) {
+                    break;
+                }
+                try {
+                    if (frames == 0) {
+                        int channels = (header.mode() == Header.MODE_SINGLE_CHANNEL) ? 1 : 2;
+                        out.open(header.frequency(), channels);
+                        task.decoder.initOutput(task.frame, channels);
+                    }
+                    task.header = header;
+                    decoders.submit(task).get();
+                    out.write(task.frame.data, 0, task.frame.length);
+                    frames++;
+                } catch (ExecutionException e) {
+                    if (errors++ > MAX_ERRORS) {
+                        throw new IOException("Too many errors at: " + name + " Frame: " + frames, e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted at: " + name + " Frame: " + frames);
+                } finally {
+                    stream.closeFrame();
+                }
+            }
+            return frames;
+        } finally {
+            activeStreams.decrementAndGet();
+            out.close();
+        }
+    }
+
+    public void shutdown() {
+        streams.shutdown();
+        decoders.shutdown();
+    }
+
+    /**
+     * Decodes the current frame of a stream. The stream is only ever used by
+     * one task at a time, so no further synchronization is required.
+     */
+    private static class FrameTask implements Callable<Void> {
+        final Bitstream stream;
+        final Decoder decoder = new Decoder();
+        final FrameBuffer frame = new FrameBuffer();
+        Header header;
+
+        FrameTask(Bitstream stream) {
+            this.stream = stream;
+        }
+
+        public Void call() throws IOException {
+            frame.length = 0;
+            decoder.decodeFrame(header, stream);
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the samples of one frame, so that writing them (which may block)
+     * happens on the stream thread and not on a decoder thread.
+     */
+    private static class FrameBuffer implements PcmOutput {
+        final byte[] data = new byte[Decoder.BUFFER_SIZE * 2];
+        int length;
+
+        public void open(int frequency, int channels) {
+        }
+
+        public void write(byte[] buff, int offset, int len) {
+            System.arraycopy(buff, offset, data, length, len);
+            length += len;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setName(DecodingService.class.getSimpleName() + "-" + prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
@@ -2,10 +2,15 @@ package org.mp3transform.tools;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.mp3transform.catalog.Catalog;
 
 public class CreateIndex {
 
@@ -14,15 +19,34 @@ public class CreateIndex {
     }
 
     private void runTool(String[] args) throws IOException {
+        String dir = args.length > 0 ? args[0] : "/Users/thomasm/Music/iTunes/iTunes Music";
+        Catalog catalog = Catalog.open(new File(dir));
+        catalog.update();
+        catalog.save();
+        write(catalog);
+    }
 
-        String dir = "/Users/thomasm/Music/iTunes/iTunes Music";
-	PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(dir + "/index.html")));
-        index(writer, new File(dir));
-        writer.close();
+    /**
+     * Write the index.html file of a library.
+     *
+     * @param catalog the catalog of the library
+     */
+    public static void write(Catalog catalog) throws IOException {
+        File file = new File(catalog.getRoot(), "index.html");
+        File temp = new File(catalog.getRoot(), "index.html.temp");
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                "UTF-8")));
+        try {
+            index(writer, catalog);
+        } finally {
+            writer.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
     }
 
-    private void index(PrintWriter writer, File dir) throws IOException {
-        InputStream in = getClass().getResource("index.html").openStream();
+    private static void index(PrintWriter writer, Catalog catalog) throws IOException {
+        InputStream in = CreateIndex.class.getResource("index.html").openStream();
         StringBuilder buff = new StringBuilder();
         while (true) {
             int x = in.read();
@@ -33,40 +57,32 @@ public class CreateIndex {
         }
         in.close();
         String html = buff.toString();
-        buff = new StringBuilder();
-        int count = 0, max = Integer.MAX_VALUE;
-        for (File artist : dir.listFiles()) {
-            if (artist.isFile()) {
+        int split = html.indexOf("%list%");
+        writer.print(html.substring(0, split));
+        String root = catalog.getRoot().getPath();
+        // the rows are written directly, in the order of the path
+        for (File album : catalog.getAlbumDirectories()) {
+            File artist = album.getParentFile();
+            if (artist == null || !root.equals(artist.getParent())) {
+                // only root/artist/album/*.mp3
                 continue;
-            } else if (count > max) {
-                break;
             }
-            for (File album : artist.listFiles()) {
-                if (album.isFile()) {
-                    continue;
-                } else if (count > max) {
-                    break;
-                }
-                String albumName = artist.getName() + "/" + album.getName();
-                albumName = escape(albumName);
-                buff.append("<tr onclick=\"play(this, '" + albumName + "', [");
-                int i=0;
-                for (File song : album.listFiles()) {
-                    if (song.getName().endsWith(".mp3")) {
-                        if (i++ > 0) {
-                            buff.append(',');
-                        }
-                        buff.append('\'').append(escape(song.getName())).append('\'');
+            String albumName = escape(artist.getName() + "/" + album.getName());
+            writer.print("<tr onclick=\"play(this, '" + albumName + "', [");
+            int i = 0;
+            for (File song : catalog.list(album)) {
+                if (song.getParentFile().equals(album) && song.getName().endsWith(".mp3")) {
+                    if (i++ > 0) {
+                        writer.print(',');
                     }
+                    writer.print('\'' + escape(song.getName()) + '\'');
                 }
-                buff.append("])\" onmouseover=\"show(this, '"+albumName+"')\" onmouseout=\"hide(this)\">");
-                buff.append("<td>" + artist.getName() + "</td>");
-                buff.append("<td>"+album.getName()+"</td></tr>\n");
-                count++;
             }
+            writer.print("])\" onmouseover=\"show(this, '" + albumName + "')\" onmouseout=\"hide(this)\">");
+            writer.print("<td>" + artist.getName() + "</td>");
+            writer.print("<td>" + album.getName() + "</td></tr>\n");
         }
-        html = replaceAll(html, "%list%", buff.toString());
-        writer.println(html);
+        writer.println(html.substring(split + "%list%".length()));
     }
 
     private static String escape(String s) {
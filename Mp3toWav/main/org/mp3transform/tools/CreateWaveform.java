@@ -0,0 +1,133 @@
+package org.mp3transform.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.mp3transform.AudioRange;
+import org.mp3transform.Bitstream;
+import org.mp3transform.Decoder;
+import org.mp3transform.Header;
+import org.mp3transform.Waveform;
+
+/**
+ * Creates a waveform file (.wfm) next to each mp3 file of a directory. The
+ * audio is decoded in mono and (by default) at a quarter of the sample rate,
+ * which is enough for the peak summary and much faster than a full decode.
+ * Files that already have an up-to-date waveform are skipped.
+ */
+public class CreateWaveform {
+
+    private static final String SUFFIX = ".wfm";
+
+    private int downsampling = 4;
+    private int samplesPerPoint = 256;
+    private int levels = 5;
+
+    public static void main(String... args) throws IOException {
+        new CreateWaveform().runTool(args);
+    }
+
+    private void runTool(String[] args) throws IOException {
+        String dir = "/Users/thomasm/Music/iTunes/iTunes Music";
+        for (int i = 0; i < args.length; i++) {
+            if ("-dir".equals(args[i])) {
+                dir = args[++i];
+            } else if ("-downsample".equals(args[i])) {
+                downsampling = Integer.parseInt(args[++i]);
+            } else if ("-samples".equals(args[i])) {
+                samplesPerPoint = Integer.parseInt(args[++i]);
+            } else if ("-levels".equals(args[i])) {
+                levels = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("Options: -dir <directory or file> [-downsample 1|2|4] "
+                        + "[-samples <samples per point>] [-levels <levels>]");
+                return;
+            }
+        }
+        create(new File(dir));
+    }
+
+    private void create(File file) throws IOException {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles()) {
+                create(f);
+            }
+            return;
+        } else if (!file.getName().toLowerCase().endsWith(".mp3")) {
+            return;
+        }
+        File target = new File(file.getPath() + SUFFIX);
+        if (target.exists() && target.lastModified() >= file.lastModified()) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        Waveform w;
+        try {
+            w = createWaveform(file, downsampling, samplesPerPoint, levels);
+        } catch (Exception e) {
+            System.out.println("error: " + file + " " + e.toString());
+            return;
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+        try {
+            w.write(out);
+        } finally {
+            out.close();
+        }
+        time = System.currentTimeMillis() - time;
+        System.out.println(file + ": " + w.getSampleCount() + " samples, " + time + " ms");
+    }
+
+    /**
+     * Decode an mp3 file and build its waveform.
+     *
+     * @param file the file
+     * @param downsampling the decoding rate divisor (1, 2 or 4)
+     * @param samplesPerPoint the number of samples per point of level 0, at
+     *            the original sample rate
+     * @param levels the number of levels
+     * @return the waveform
+     */
+    public static Waveform createWaveform(File file, int downsampling, int samplesPerPoint, int levels)
+            throws IOException {
+        final Waveform.Builder builder = new Waveform.Builder(Math.max(1, samplesPerPoint / downsampling),
+                levels);
+        Decoder decoder = new Decoder() {
+            public void appendSamples(int channel, double[] f) {
+                builder.append(f, 0, f.length);
+            }
+
+            protected void writeBuffer() {
+                // the samples are not needed
+            }
+        };
+        decoder.setMono(true);
+        decoder.setDownsampling(downsampling);
+        InputStream in = AudioRange.open(file);
+        try {
+            Bitstream stream = new Bitstream(in);
+            boolean first = true;
+            while (true) {
+                Header header = stream.readFrame();
+                if (header == null) {
+                    break;
+                }
+                if (first) {
+                    builder.open(header.frequency() / downsampling, 1);
+                    first = false;
+                }
+                decoder.decodeFrame(header, stream);
+                stream.closeFrame();
+            }
+        } finally {
+            in.close();
+        }
+        builder.close();
+        return builder.getWaveform();
+    }
+
+}
@@ -1,171 +1,427 @@
 package org.mp3transform.tools;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PushbackInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.mp3transform.ID3v2Reader;
+
+/**
+ * Extracts the cover picture of each album directory of a music library to
+ * cover.jpg. The directory tree is processed by a fork/join pool; the picture
+ * of an album is taken from the first track that has one, preferring the
+ * front cover. A progress index in the root directory keeps a fingerprint of
+ * the tracks (names, sizes and modification times) and the hash of the
+ * picture of each album, so that a later run (also after an interruption)
+ * only reads the albums that changed, and an unchanged picture is not
+ * written again. Changes are appended to the index; it is compacted after a
+ * run over all albums, or when most of its lines are outdated.
+ */
 public class ExtractMeta {
 
-    private String fileName;
-    private PushbackInputStream source;
-    private byte[] rawID3v2;
+    /**
+     * The name of the progress index, in the root directory.
+     */
+    public static final String INDEX_FILE = ".covers";
+
+    private static final String COVER_FILE = "cover.jpg";
+    private static final int PICTURE_FRONT_COVER = 3;
+
+    /**
+     * The hash of a cover file that already existed.
+     */
+    private static final String EXTERNAL = "external";
+
+    private final Map<String, String> index = new ConcurrentHashMap<String, String>();
+    private final Set<String> pictures = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger albums = new AtomicInteger();
+    private final AtomicInteger changed = new AtomicInteger();
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger indexLines = new AtomicInteger();
+    private final int threads;
+    private boolean indexRead;
+    private PrintWriter progress;
 
     public static void main(String... args) throws IOException {
-        new ExtractMeta().runTool(args);
+        String dir = args.length > 0 ? args[0] : "/Volumes/WD/music/az";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4 * Runtime.getRuntime().availableProcessors();
+        ExtractMeta tool = new ExtractMeta(threads);
+        tool.extract(new File(dir));
+        System.out.println("albums: " + tool.getAlbums() + " changed: " + tool.getChanged() + " written: "
+                + tool.getWritten() + " distinct pictures: " + tool.pictures.size());
     }
 
-    ExtractMeta(String fileName) throws FileNotFoundException {
-        this.fileName = fileName;
-        source = new PushbackInputStream(new FileInputStream(fileName));
+    /**
+     * Create a new extractor.
+     *
+     * @param threads the number of threads (reading is mostly waiting for the
+     *            disk, so this can be larger than the number of processors)
+     */
+    public ExtractMeta(int threads) {
+        this.threads = threads;
     }
 
-    private void runTool(String[] args) throws IOException {
-        String dir = "/Volumes/WD/music/az";
-        // String dir = "/Users/thomasm/Music/iTunes/iTunes Music";
-        extract(new File(dir));
+    /**
+     * Extract the covers of all albums in the directory tree.
+     *
+     * @param root the root directory
+     */
+    public void extract(File root) throws IOException {
+        extract(root, null);
     }
 
-    private void extract(File file) throws IOException {
-        if (file.isDirectory()) {
-            for(File f : file.listFiles()) {
-                extract(f);
+    /**
+     * Extract the covers of the given album directories only (the
+     * subdirectories are not processed). The index is only read the first
+     * time, so that an extractor that is kept only processes the changes of
+     * each call.
+     *
+     * @param root the root directory, where the index is stored
+     * @param dirs the album directories, or null for all directories
+     */
+    public void extract(File root, Collection<File> dirs) throws IOException {
+        File indexFile = new File(root, INDEX_FILE);
+        if (!indexRead) {
+            readIndex(indexFile);
+            indexRead = true;
+        }
+        // the progress is appended while the albums are processed
+        progress = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile,
+                true), "UTF-8")));
+        final List<DirectoryTask> tasks = new ArrayList<DirectoryTask>();
+        if (dirs == null) {
+            tasks.add(new DirectoryTask(root, true));
+        } else {
+            for (File dir : dirs) {
+                tasks.add(new DirectoryTask(dir, false));
             }
-            return;
-        } else if (!file.getName().toLowerCase().endsWith(".mp3")) {
-            return;
         }
-        if (new File(file.getParent(), "cover.jpg").exists()) {
-            return;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+            progress.close();
+        }
+        if (dirs == null || indexLines.get() > 2 * index.size()) {
+            writeIndex(root, indexFile);
         }
-        new ExtractMeta(file.getAbsolutePath()).extract();
     }
 
-    public ExtractMeta() {
+    public int getAlbums() {
+        return albums.get();
+    }
+
+    /**
+     * The number of albums that were read, because they are new or changed.
+     */
+    public int getChanged() {
+        return changed.get();
     }
 
-    private void extract() throws IOException {
+    /**
+     * The number of cover files that were written.
+     */
+    public int getWritten() {
+        return written.get();
+    }
+
+    private void readIndex(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
         try {
-            while (loadID3v2()) {
-                printMeta(false);
-            }
-        } catch (Exception e) {
-            System.out.println("error: " + fileName + " " + e.toString());
-        }
-    }
-
-    private void printMeta(boolean print) throws IOException {
-        if (print) System.out.println(fileName);
-        ByteArrayInputStream bin = new ByteArrayInputStream(rawID3v2);
-        if (print) System.out.println("  len: " + rawID3v2.length);
-        boolean hasPicture = false;
-        while (true) {
-            DataInputStream din = new DataInputStream(bin);
-            byte[] id = new byte[4];
-            int l = bin.read(id);
-            if (l < 0) {
-                break;
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                // fingerprint, picture hash, path; later lines win, and
+                // removed albums have neither fingerprint nor hash
+                int sep = line.indexOf('\t', line.indexOf('\t') + 1);
+                if (sep == 1) {
+                    index.remove(line.substring(sep + 1));
+                } else if (sep > 0) {
+                    index.put(line.substring(sep + 1), line.substring(0, sep));
+                }
+                indexLines.incrementAndGet();
             }
-            if (id[0] == 0) {
-                break;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write the index without the older entries of the same album, and
+     * without albums that no longer exist.
+     */
+    private void writeIndex(File root, File file) throws IOException {
+        File temp = new File(root, INDEX_FILE + ".temp");
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                "UTF-8")));
+        try {
+            for (Map.Entry<String, String> e : index.entrySet()) {
+                if (new File(e.getKey()).isDirectory()) {
+                    writer.println(e.getValue() + "\t" + e.getKey());
+                } else {
+                    index.remove(e.getKey());
+                }
             }
-            int len = din.readInt();
-            if (id[3] == 0 && len > 0) {
-                len = (len >> 16) - 2;
-            } else {
-                len += 2;
+        } finally {
+            writer.close();
+        }
+        indexLines.set(index.size());
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Processes a directory: the subdirectories are forked, and the tracks
+     * of the directory (if any) are processed as one album.
+     */
+    private class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final File dir;
+        private final boolean recursive;
+
+        DirectoryTask(File dir, boolean recursive) {
+            this.dir = dir;
+            this.recursive = recursive;
+        }
+
+        protected void compute() {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                removeAlbum(dir);
+                return;
             }
-            if ("APIC".equals(new String(id))) {
-                hasPicture = true;
-                din.read();
-                din.read();
-                din.read();
-                len -= 3;
-                StringBuilder buff = new StringBuilder();
-                while (true) {
-                    int x = din.read();
-                    len--;
-                    if (x == 0) {
-                        break;
+            List<DirectoryTask> tasks = new ArrayList<DirectoryTask>();
+            List<File> songs = new ArrayList<File>();
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    if (recursive) {
+                        tasks.add(new DirectoryTask(f, true));
                     }
-                    buff.append((char)x);
+                } else if (f.getName().toLowerCase().endsWith(".mp3")) {
+                    songs.add(f);
                 }
-                buff.toString();
-                din.read();
-                len--;
-                while (din.read() != 0) {
-                    len--;
+            }
+            for (DirectoryTask t : tasks) {
+                t.fork();
+            }
+            if (!songs.isEmpty()) {
+                try {
+                    processAlbum(dir, songs);
+                } catch (IOException e) {
+                    System.out.println("error: " + dir + " " + e.toString());
                 }
-                len--;
-                byte[] pic = new byte[len];
-                din.readFully(pic);
-                len = 0;
-                FileOutputStream out = new FileOutputStream(new File(fileName).getParent() + "/cover.jpg");
-                out.write(pic);
-                out.close();
+            } else {
+                removeAlbum(dir);
             }
-            if (print)  System.out.println("  " + new String(id) + ": " + len);
-            for (int i=0; i<len; i++) {
-                din.read();
+            for (DirectoryTask t : tasks) {
+                t.join();
             }
         }
-        if (!hasPicture) {
-            System.out.println("no picture: " + fileName + " " + rawID3v2.length);
+    }
 
+    private void processAlbum(File dir, List<File> songs) throws IOException {
+        albums.incrementAndGet();
+        Collections.sort(songs);
+        String path = dir.getAbsolutePath();
+        String fingerprint = fingerprint(songs);
+        String old = index.get(path);
+        String oldHash = old == null ? null : old.substring(old.indexOf('\t') + 1);
+        File cover = new File(dir, COVER_FILE);
+        String hash;
+        if ((old == null || EXTERNAL.equals(oldHash)) && cover.exists()) {
+            // a cover that was not extracted by this tool is kept
+            hash = EXTERNAL;
+        } else if (old != null && old.startsWith(fingerprint + "\t") && (oldHash.length() == 0 || cover.exists())) {
+            if (oldHash.length() > 0) {
+                pictures.add(oldHash);
+            }
+            return;
+        } else {
+            changed.incrementAndGet();
+            hash = "";
+            for (File song : songs) {
+                String h = extractCover(song, cover, oldHash);
+                if (h != null) {
+                    hash = h;
+                    pictures.add(hash);
+                    break;
+                }
+            }
+            if (hash.length() == 0) {
+                System.out.println("no picture: " + path);
+            }
         }
+        String entry = fingerprint + "\t" + hash;
+        if (entry.equals(old)) {
+            return;
+        }
+        index.put(path, entry);
+        appendIndex(entry, path);
     }
 
-    private boolean loadID3v2() {
-        int size = -1;
-        try {
-            source.mark(10);
-            size = readID3v2Header();
-        } catch (IOException e) {
-        } finally {
-            try {
-                source.reset();
-            } catch (IOException e) {
-            }
+    private void removeAlbum(File dir) {
+        String path = dir.getAbsolutePath();
+        if (index.remove(path) != null) {
+            appendIndex("\t", path);
+        }
+    }
+
+    private void appendIndex(String entry, String path) {
+        synchronized (progress) {
+            progress.println(entry + "\t" + path);
+            progress.flush();
         }
+        indexLines.incrementAndGet();
+    }
+
+    /**
+     * Extract the picture of a track to the cover file, unless the cover
+     * file already has this picture.
+     *
+     * @param song the track
+     * @param cover the cover file
+     * @param oldHash the hash of the existing cover file, or null
+     * @return the hash of the picture, or null if the track has none
+     */
+    private String extractCover(File song, File cover, String oldHash) throws IOException {
+        File temp = new File(cover.getParentFile(), COVER_FILE + ".temp");
+        FileChannel in = FileChannel.open(song.toPath(), StandardOpenOption.READ);
+        String hash = null;
         try {
-            if (size > 0) {
-                rawID3v2 = new byte[size];
-                readBytes(rawID3v2, 0, rawID3v2.length);
-                return true;
+            long pos = 0;
+            while (hash == null) {
+                ID3v2Reader reader = ID3v2Reader.open(in, pos);
+                if (reader == null) {
+                    break;
+                }
+                while (reader.next()) {
+                    int offset = reader.getPictureOffset();
+                    if (offset < 0 || (hash != null && reader.getPictureType() != PICTURE_FRONT_COVER)) {
+                        continue;
+                    }
+                    DigestChannel out = new DigestChannel(temp.toPath());
+                    try {
+                        reader.transferData(offset, out);
+                    } finally {
+                        out.close();
+                    }
+                    hash = out.getHash();
+                    if (reader.getPictureType() == PICTURE_FRONT_COVER) {
+                        break;
+                    }
+                }
+                pos += reader.getHeader().getTagSize();
             }
         } catch (IOException e) {
+            System.out.println("error: " + song + " " + e.toString());
+        } finally {
+            in.close();
+        }
+        if (hash == null) {
+            temp.delete();
+        } else if (hash.equals(oldHash) && cover.exists()) {
+            // the same picture
+            temp.delete();
+        } else {
+            Files.move(temp.toPath(), cover.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            written.incrementAndGet();
         }
-        return false;
+        return hash;
     }
 
-    private int readID3v2Header() throws IOException {
-        byte[] buff = new byte[4];
-        int size = -10;
-        readBytes(buff, 0, 3);
-        if (buff[0] == 'I' && buff[1] == 'D' && buff[2] == '3') {
-            readBytes(buff, 0, 3);
-            readBytes(buff, 0, 4);
-            size = (buff[0] << 21) + (buff[1] << 14) + (buff[2] << 7) + buff[3];
+    /**
+     * Get the fingerprint of the tracks of an album. It changes if a track is
+     * added, removed, renamed, or modified.
+     */
+    private static String fingerprint(List<File> songs) {
+        long hash = songs.size();
+        for (File f : songs) {
+            hash = hash * 31 + f.getName().hashCode();
+            hash = hash * 31 + f.length();
+            hash = hash * 31 + f.lastModified();
         }
-        return size + 10;
+        return Long.toHexString(hash);
     }
 
-    private int readBytes(byte[] b, int offs, int len) throws IOException {
-        int totalBytesRead = 0;
-        while (len > 0) {
-            int bytesRead = source.read(b, offs, len);
-            if (bytesRead == -1) {
-                break;
+    /**
+     * Writes to a file and computes the hash of the data.
+     */
+    private static class DigestChannel implements WritableByteChannel {
+
+        private final FileChannel file;
+        private final MessageDigest digest;
+
+        DigestChannel(Path path) throws IOException {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
             }
-            totalBytesRead += bytesRead;
-            offs += bytesRead;
-            len -= bytesRead;
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer copy = src.duplicate();
+            int len = file.write(src);
+            copy.limit(copy.position() + len);
+            digest.update(copy);
+            return len;
+        }
+
+        String getHash() {
+            StringBuilder buff = new StringBuilder();
+            for (byte b : digest.digest()) {
+                buff.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return buff.toString();
+        }
+
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        public void close() throws IOException {
+            file.close();
         }
-        return totalBytesRead;
     }
 
 }
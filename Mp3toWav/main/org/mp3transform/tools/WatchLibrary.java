@@ -0,0 +1,180 @@
+package org.mp3transform.tools;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.mp3transform.catalog.Catalog;
+
+/**
+ * Keeps the catalog, the album covers and the index.html file of a music
+ * library up to date. At startup, the files are compared with the stored
+ * catalog (modification time and size), so that only the changes since the
+ * last run are processed. After that, the directories are watched, and only
+ * the changed paths are processed. Changes are collected until there were
+ * none for a while, so that copying an album is processed at once.
+ */
+public class WatchLibrary {
+
+    private static final long QUIET_MILLIS = 2000;
+
+    private final File root;
+    private final Catalog catalog;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    private final ExtractMeta covers = new ExtractMeta(Runtime.getRuntime().availableProcessors());
+    private boolean registerFailed;
+
+    public static void main(String... args) throws Exception {
+        String dir = args.length > 0 ? args[0] : "/Users/thomasm/Music/iTunes/iTunes Music";
+        WatchLibrary library = new WatchLibrary(new File(dir));
+        System.out.println("changed albums: " + library.start());
+        while (true) {
+            int count = library.poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (count > 0) {
+                System.out.println("changed albums: " + count);
+            }
+        }
+    }
+
+    public WatchLibrary(File root) throws IOException {
+        this.root = root.getAbsoluteFile();
+        catalog = Catalog.open(root);
+        watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Start watching, and process the changes since the last run.
+     *
+     * @return the number of albums that changed
+     */
+    public int start() throws IOException {
+        register(root.toPath());
+        Set<File> dirs = new HashSet<File>();
+        catalog.update(root, dirs);
+        int count = dirs.size();
+        if (!new File(root, "index.html").exists()) {
+            // also create the index if nothing changed
+            dirs.add(root);
+        }
+        process(dirs);
+        return count;
+    }
+
+    /**
+     * Wait for changes, and process them.
+     *
+     * @param timeout the maximum time to wait for the first change
+     * @param unit the unit of the timeout
+     * @return the number of albums that changed
+     */
+    public int poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        WatchKey key = watcher.poll(timeout, unit);
+        Set<Path> paths = new HashSet<Path>();
+        boolean overflow = false;
+        while (key != null) {
+            overflow |= collect(key, paths);
+            key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        Set<File> dirs = new HashSet<File>();
+        if (overflow) {
+            // events were lost
+            register(root.toPath());
+            catalog.update(root, dirs);
+        } else {
+            for (Path p : paths) {
+                if (p.toFile().isDirectory()) {
+                    register(p);
+                }
+                catalog.update(p.toFile(), dirs);
+            }
+        }
+        process(dirs);
+        return dirs.size();
+    }
+
+    /**
+     * Collect the changed paths of a key.
+     *
+     * @return true if events were lost
+     */
+    private boolean collect(WatchKey key, Set<Path> paths) {
+        Path dir = keys.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+            } else if (dir != null) {
+                paths.add(dir.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+        return overflow;
+    }
+
+    /**
+     * Register a directory and its subdirectories.
+     */
+    private void register(Path dir) {
+        try {
+            WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            keys.put(key, dir);
+        } catch (IOException e) {
+            if (!registerFailed) {
+                // for example, the limit of watches was reached: changes in
+                // this directory are only found at the next start
+                System.out.println("can not watch: " + dir + " " + e.toString());
+                registerFailed = true;
+            }
+            return;
+        }
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    register(f.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the catalog, and update the covers of the changed albums and the
+     * index.
+     */
+    private void process(Set<File> dirs) throws IOException {
+        if (dirs.isEmpty()) {
+            return;
+        }
+        catalog.save();
+        Set<File> albums = new HashSet<File>(dirs);
+        albums.remove(root);
+        covers.extract(root, albums);
+        CreateIndex.write(catalog);
+    }
+
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+}
@@ -0,0 +1,68 @@
+package org.mp3transform.wav;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an AIFF file with big endian integer samples. The sizes are
+ * patched at close, so the output needs to be a file.
+ */
+public class AiffFileWriter extends PcmFileWriter {
+
+    private static final int FRAMES_POS = 22, SSND_SIZE_POS = 42;
+
+    private final int blockAlign;
+    private final int headerSize;
+
+    AiffFileWriter(FileChannel file, int samplingRate, short bitsPerSample,
+            short channels) throws IOException {
+        super(file, ByteOrder.BIG_ENDIAN);
+        blockAlign = channels * bitsPerSample / 8;
+        putFourCC("FORM");
+        buffer.putInt(0);
+        putFourCC("AIFF");
+        putFourCC("COMM");
+        buffer.putInt(18);
+        buffer.putShort(channels);
+        buffer.putInt(0);
+        buffer.putShort(bitsPerSample);
+        putExtended(samplingRate);
+        putFourCC("SSND");
+        buffer.putInt(0);
+        // offset and block size
+        buffer.putInt(0);
+        buffer.putInt(0);
+        headerSize = buffer.position();
+    }
+
+    /**
+     * Write the sample rate as an 80 bit IEEE 754 extended precision number.
+     */
+    private void putExtended(int x) {
+        int shift = Long.numberOfLeadingZeros(x);
+        buffer.putShort((short) (16383 + 63 - shift));
+        buffer.putLong((long) x << shift);
+    }
+
+    boolean isPadded() {
+        return true;
+    }
+
+    void patchHeader() throws IOException {
+        long formSize = headerSize - 8 + dataSize + (dataSize & 1);
+        if (formSize > Integer.MAX_VALUE) {
+            throw new IOException("File too large for AIFF: " + formSize);
+        }
+        patchInt(4, (int) formSize);
+        patchInt(FRAMES_POS, (int) (dataSize / blockAlign));
+        patchInt(SSND_SIZE_POS, (int) (dataSize + 8));
+    }
+
+    private void patchInt(int pos, int x) throws IOException {
+        buffer.clear();
+        buffer.putInt(x).flip();
+        writeFully(buffer, pos);
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.mp3transform.wav;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The container and sample format of a converted file.
+ */
+public class OutputFormat {
+
+    public static final int WAV = 0, AIFF = 1, RAW = 2;
+    public static final OutputFormat WAV_16 = new OutputFormat(WAV, 16, false, false);
+
+    final int container;
+    final int bitsPerSample;
+    final boolean floating;
+    final boolean bigEndian;
+
+    public OutputFormat(int container, int bitsPerSample, boolean floating, boolean bigEndian) {
+        this.container = container;
+        this.bitsPerSample = bitsPerSample;
+        this.floating = floating;
+        this.bigEndian = bigEndian;
+    }
+
+    /**
+     * Parse the format from the command line options.
+     *
+     * @param type wav, aiff, raw (little endian) or rawbe (big endian)
+     * @param bits 16, 24, or 32f (floating point)
+     * @return the format
+     */
+    public static OutputFormat parse(String type, String bits) throws IOException {
+        boolean floating = bits.endsWith("f");
+        int b = Integer.parseInt(floating ? bits.substring(0, bits.length() - 1) : bits);
+        if (floating ? b != 32 : b != 16 && b != 24) {
+            throw new IOException("Unsupported bits: " + bits);
+        }
+        if ("wav".equals(type)) {
+            return new OutputFormat(WAV, b, floating, false);
+        } else if ("aiff".equals(type)) {
+            if (floating) {
+                throw new IOException("Floating point samples are not supported in AIFF");
+            }
+            return new OutputFormat(AIFF, b, false, true);
+        } else if ("raw".equals(type)) {
+            return new OutputFormat(RAW, b, floating, false);
+        } else if ("rawbe".equals(type)) {
+            return new OutputFormat(RAW, b, floating, true);
+        }
+        throw new IOException("Unsupported format: " + type);
+    }
+
+    String getExtension() {
+        switch (container) {
+        case AIFF:
+            return ".aiff";
+        case RAW:
+            return ".pcm";
+        default:
+            return ".wav";
+        }
+    }
+
+    int getBytesPerSample() {
+        return bitsPerSample / 8;
+    }
+
+    ByteOrder getByteOrder() {
+        return bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     * Open the output file. The file name "-" means standard output.
+     */
+    PcmFileWriter open(String fileName, int freq, int channels) throws IOException {
+        WritableByteChannel out;
+        if ("-".equals(fileName)) {
+            if (container == AIFF) {
+                throw new IOException("AIFF can only be written to a file");
+            }
+            out = Channels.newChannel(System.out);
+        } else {
+            out = PcmFileWriter.openFile(fileName);
+        }
+        switch (container) {
+        case AIFF:
+            return new AiffFileWriter((FileChannel) out, freq, (short) bitsPerSample, (short) channels);
+        case RAW:
+            return new RawFileWriter(out, getByteOrder());
+        default:
+            return new WaveFileWriter(out, freq, (short) bitsPerSample, (short) channels, floating);
+        }
+    }
+
+    public String toString() {
+        String[] names = { "wav", "aiff", bigEndian ? "rawbe" : "raw" };
+        return names[container] + " " + bitsPerSample + (floating ? "f" : "");
+    }
+
+}
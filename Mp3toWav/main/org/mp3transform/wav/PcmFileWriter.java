@@ -0,0 +1,130 @@
+package org.mp3transform.wav;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.mp3transform.BufferPool;
+
+/**
+ * Writes audio samples to a file or stream. The samples are collected in a
+ * large direct buffer; a block that is at least as large as the buffer is
+ * written together with the buffered data in one gathering write. Headers
+ * that contain the data size are patched at close, if the output is a file.
+ */
+public abstract class PcmFileWriter {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    protected final FileChannel file;
+    protected final BufferPool pool = BufferPool.getDefault();
+    protected ByteBuffer buffer;
+    protected long dataSize;
+    private final WritableByteChannel channel;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    PcmFileWriter(WritableByteChannel channel, ByteOrder order) {
+        this.channel = channel;
+        file = channel instanceof FileChannel ? (FileChannel) channel : null;
+        buffer = pool.acquire(BUFFER_SIZE);
+        buffer.order(order);
+    }
+
+    static FileChannel openFile(String fileName) throws IOException {
+        return FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    void putFourCC(String chunkName) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) chunkName.charAt(i));
+        }
+    }
+
+    /**
+     * Write the remaining bytes of the buffer. The samples must already be
+     * in the format of the file.
+     */
+    void writeData(ByteBuffer data) throws IOException {
+        int numBytes = data.remaining();
+        dataSize += numBytes;
+        if (numBytes <= buffer.remaining()) {
+            buffer.put(data);
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+        } else if (numBytes < buffer.capacity()) {
+            flush();
+            buffer.put(data);
+        } else {
+            buffer.flip();
+            if (channel instanceof GatheringByteChannel) {
+                gather[0] = buffer;
+                gather[1] = data;
+                GatheringByteChannel g = (GatheringByteChannel) channel;
+                while (data.hasRemaining()) {
+                    g.write(gather);
+                }
+                gather[1] = null;
+            } else {
+                writeFully(buffer);
+                writeFully(data);
+            }
+            buffer.clear();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buff) throws IOException {
+        while (buff.hasRemaining()) {
+            channel.write(buff);
+        }
+    }
+
+    /**
+     * Write the buffer at the given position of the file.
+     */
+    void writeFully(ByteBuffer buff, long pos) throws IOException {
+        while (buff.hasRemaining()) {
+            pos += file.write(buff, pos);
+        }
+    }
+
+    /**
+     * Whether the data chunk needs to be padded to an even length.
+     */
+    abstract boolean isPadded();
+
+    /**
+     * Update the sizes in the header. This is only called if the output is a
+     * file. The buffer is empty and may be used.
+     */
+    abstract void patchHeader() throws IOException;
+
+    void close() throws IOException {
+        try {
+            if (isPadded() && dataSize % 2 != 0) {
+                buffer.put((byte) 0);
+            }
+            flush();
+            if (file != null) {
+                patchHeader();
+            }
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+            channel.close();
+        }
+    }
+
+}
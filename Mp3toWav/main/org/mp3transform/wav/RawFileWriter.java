@@ -0,0 +1,23 @@
+package org.mp3transform.wav;
+
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the samples without a header.
+ */
+public class RawFileWriter extends PcmFileWriter {
+
+    RawFileWriter(WritableByteChannel channel, ByteOrder order) {
+        super(channel, order);
+    }
+
+    boolean isPadded() {
+        return false;
+    }
+
+    void patchHeader() {
+        // no header
+    }
+
+}
@@ -1,98 +1,535 @@
 package org.mp3transform.wav;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Properties;
 
+import org.mp3transform.AudioRange;
 import org.mp3transform.Bitstream;
+import org.mp3transform.BufferPool;
+import org.mp3transform.DecodeReport;
 import org.mp3transform.Decoder;
 import org.mp3transform.Header;
+import org.mp3transform.LoudnessMeter;
+import org.mp3transform.PcmCache;
+import org.mp3transform.Resampler;
+import org.mp3transform.SilenceDetector;
 
 public class WavConverter extends Decoder {
+
+    private static final int MAX_FAILURES = 1000;
+
     public static void main(String[] args) throws Exception {
-        String in = "in.mp3";
+        ArrayList<String> inputs = new ArrayList<String>();
         String out = "out.wav";
+        String cacheDir = null;
+        long cacheSize = 256;
+        String type = "wav", bits = "16";
+        boolean mono = false, loudness = false, truePeak = true;
+        double silence = Double.NaN;
+        int downsampling = 1, rate = 0;
+        int concealment = -1;
+        boolean crc = false;
         for (int i = 0; i < args.length; i++) {
             if ("-in".equals(args[i])) {
-                in = args[++i];
-            } else if ("-in".equals(args[i])) {
+                inputs.add(args[++i]);
+            } else if ("-out".equals(args[i])) {
                 out = args[++i];
+            } else if ("-format".equals(args[i])) {
+                type = args[++i];
+            } else if ("-bits".equals(args[i])) {
+                bits = args[++i];
+            } else if ("-mono".equals(args[i])) {
+                mono = true;
+            } else if ("-downsample".equals(args[i])) {
+                downsampling = Integer.parseInt(args[++i]);
+            } else if ("-rate".equals(args[i])) {
+                rate = Integer.parseInt(args[++i]);
+            } else if ("-loudness".equals(args[i])) {
+                loudness = true;
+            } else if ("-samplePeak".equals(args[i])) {
+                truePeak = false;
+            } else if ("-trimSilence".equals(args[i])) {
+                silence = Double.parseDouble(args[++i]);
+            } else if ("-crc".equals(args[i])) {
+                crc = true;
+            } else if ("-conceal".equals(args[i])) {
+                concealment = "mute".equals(args[++i]) ? CONCEAL_MUTE : CONCEAL_REPEAT;
+            } else if ("-cache".equals(args[i])) {
+                cacheDir = args[++i];
+            } else if ("-cacheSize".equals(args[i])) {
+                cacheSize = Long.parseLong(args[++i]);
             } else {
-                System.out.println("Options: -in <input.mp3> -out <output.wav>");
+                System.out.println("Options: -in <input.mp3> [-in <input2.mp3> ...] "
+                        + "-out <output.wav | - | directory> "
+                        + "[-format wav|aiff|raw|rawbe] [-bits 16|24|32f] [-mono] [-downsample 2|4] "
+                        + "[-rate <Hz>] [-loudness [-samplePeak]] [-trimSilence <dB>] [-crc] [-conceal repeat|mute] "
+                        + "[-cache <dir>] [-cacheSize <MB>]");
             }
         }
-        WavConverter.convert(in, out);
+        if (inputs.isEmpty()) {
+            inputs.add("in.mp3");
+        }
+        OutputFormat format = OutputFormat.parse(type, bits);
+        if (cacheDir != null
+                && (format.bitsPerSample != 16 || format.floating || mono || downsampling != 1 || rate != 0)) {
+            // the cache only keeps 16 bit samples of all channels at the full rate
+            System.err.println("The cache is only used for 16 bit output without -mono, -downsample and -rate");
+            cacheDir = null;
+        }
+        PcmCache cache = null;
+        if (cacheDir != null) {
+            cache = new PcmCache(new File(cacheDir), cacheSize * 1024 * 1024, false);
+        }
+        ArrayList<String> outputs = new ArrayList<String>();
+        ArrayList<LoudnessMeter> meters = new ArrayList<LoudnessMeter>();
+        PrintStream log = "-".equals(out) ? System.err : System.out;
+        if (inputs.size() > 1) {
+            new File(out).mkdirs();
+        }
+        for (String in : inputs) {
+            String dest = out;
+            if (inputs.size() > 1) {
+                // several files are converted into a directory
+                String name = new File(in).getName();
+                int dot = name.lastIndexOf('.');
+                name = (dot > 0 ? name.substring(0, dot) : name) + format.getExtension();
+                dest = new File(out, name).getPath();
+            }
+            WavConverter converter = new WavConverter(format);
+            converter.setMono(mono);
+            converter.setDownsampling(downsampling);
+            converter.setOutputFrequency(rate);
+            converter.setCheckCrc(crc);
+            if (!Double.isNaN(silence)) {
+                converter.setTrimSilence(silence);
+            }
+            if (loudness) {
+                converter.meter = new LoudnessMeter();
+                converter.meter.setTruePeak(truePeak);
+            }
+            DecodeReport report = null;
+            if (concealment >= 0) {
+                // in resilient mode, a file that can't be converted is
+                // reported, and the next file is converted
+                report = new DecodeReport(in);
+                converter.setResilient(report, concealment);
+            }
+            try {
+                if (cache == null) {
+                    converter.convert(in, dest);
+                } else {
+                    converter.convert(new File(in), dest, cache);
+                }
+            } catch (IOException e) {
+                if (report == null) {
+                    throw e;
+                }
+                report.addError(DecodeReport.FAILED, e.toString());
+                log.println(report);
+                continue;
+            }
+            if (report != null && !report.isClean()) {
+                log.println(report);
+            }
+            if (loudness) {
+                meters.add(converter.meter);
+                outputs.add(dest);
+            }
+        }
+        if (cache != null) {
+            log.println(cache);
+        }
+        if (loudness) {
+            writeLoudness(outputs, meters);
+        }
     }
 
-    private static void convert(String sourceFileName, String destFileName)
+    /**
+     * Write the loudness and ReplayGain values of each file into a
+     * properties file next to it (or to standard error, if the output is
+     * standard output). If several files were converted, they are also
+     * measured as one album.
+     */
+    private static void writeLoudness(ArrayList<String> outputs, ArrayList<LoudnessMeter> meters)
             throws IOException {
-        InputStream fileIn = new FileInputStream(sourceFileName);
-        BufferedInputStream in = new BufferedInputStream(fileIn, 128 * 1024);
-        convert(in, destFileName);
-        in.close();
+        LoudnessMeter.Blocks album = new LoudnessMeter.Blocks();
+        for (LoudnessMeter m : meters) {
+            album.add(m);
+        }
+        for (int i = 0; i < outputs.size(); i++) {
+            LoudnessMeter m = meters.get(i);
+            Properties prop = new Properties();
+            prop.setProperty("LOUDNESS_INTEGRATED", format("%.2f LUFS", m.getIntegratedLoudness()));
+            if (m.isTruePeak()) {
+                prop.setProperty("TRUE_PEAK", format("%.2f dBTP", m.getTruePeak()));
+            } else {
+                prop.setProperty("SAMPLE_PEAK", format("%.2f dBFS", m.getTruePeak()));
+            }
+            prop.setProperty("REPLAYGAIN_TRACK_GAIN", format("%.2f dB", m.getTrackGain()));
+            prop.setProperty("REPLAYGAIN_TRACK_PEAK", format("%.6f", Math.pow(10, m.getTruePeak() / 20)));
+            if (meters.size() > 1) {
+                prop.setProperty("REPLAYGAIN_ALBUM_GAIN", format("%.2f dB", album.getGain()));
+                prop.setProperty("REPLAYGAIN_ALBUM_PEAK", format("%.6f", album.getPeak()));
+            }
+            String dest = outputs.get(i);
+            if ("-".equals(dest)) {
+                prop.store(System.err, null);
+            } else {
+                OutputStream out = new FileOutputStream(dest + ".loudness");
+                try {
+                    prop.store(out, null);
+                } finally {
+                    out.close();
+                }
+            }
+        }
     }
 
-    private static void convert(InputStream sourceStream, String destFileName)
+    private static String format(String pattern, double x) {
+        return String.format(Locale.ENGLISH, pattern, x);
+    }
+
+    /**
+     * Remove the silence at the start and the end of the output.
+     *
+     * @param thresholdDb the level below which audio is silent, in dB
+     *            relative to full scale
+     */
+    public void setTrimSilence(double thresholdDb) {
+        trimSilence = true;
+        silenceThreshold = thresholdDb;
+    }
+
+    /**
+     * Find the silence with a quick pass over the file (without synthesis),
+     * and set the number of samples to skip and to write.
+     */
+    private void detectSilence(File source) throws IOException {
+        if (!trimSilence) {
+            return;
+        }
+        InputStream in = AudioRange.open(source);
+        try {
+            SilenceDetector d = SilenceDetector.detect(in, silenceThreshold, getDownsampling());
+            setSilence(d.getSampleCount(), d.getLeadingSilence(), d.getTrailingSilence());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void setSilence(long sampleCount, long leading, long trailing) {
+        leadingSilence = leading;
+        trailingSilence = trailing;
+        skipSamples = leading;
+        remainingSamples = sampleCount - leading - trailing;
+    }
+
+    /**
+     * Convert a file.
+     */
+    public void convert(String sourceFileName, String destFileName) throws IOException {
+        detectSilence(new File(sourceFileName));
+        InputStream in = AudioRange.open(new File(sourceFileName));
+        try {
+            convert(in, destFileName, null);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Convert a file, using the decoded audio from the cache if possible. A
+     * file that is not in the cache is added. The silence is only detected
+     * if the entry doesn't contain it for the same threshold.
+     */
+    public void convert(File source, String destFileName, PcmCache cache)
             throws IOException {
+        PcmCache.Entry entry = cache.get(source);
+        if (entry != null) {
+            if (trimSilence && entry.getSilenceThreshold() == silenceThreshold) {
+                long samples = entry.getLength() / 2 / entry.getChannels();
+                setSilence(samples, entry.getLeadingSilence(), entry.getTrailingSilence());
+            } else {
+                detectSilence(source);
+            }
+            copy(entry, destFileName);
+            return;
+        }
+        detectSilence(source);
+        PcmCache.Writer writer = cache.create(source);
+        if (trimSilence) {
+            writer.setSilence(silenceThreshold, leadingSilence, trailingSilence);
+        }
+        InputStream in = AudioRange.open(source);
+        try {
+            convert(in, destFileName, writer);
+            if (getReport() == null || getReport().isClean()) {
+                writer.commit();
+            }
+        } finally {
+            in.close();
+            writer.close();
+        }
+    }
+
+    private void copy(PcmCache.Entry entry, String destFileName) throws IOException {
+        InputStream in = entry.openData();
+        try {
+            initOutputBuffer(entry.getChannels(), entry.getFrequency(), destFileName);
+            byte[] bytes = new byte[BUFFER_SIZE * 2];
+            while (true) {
+                int len = in.read(bytes);
+                if (len < 0) {
+                    break;
+                }
+                if ((len & 1) != 0) {
+                    int b = in.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    bytes[len++] = (byte) b;
+                }
+                for (int i = 0, j = 0; j < len; i++, j += 2) {
+                    putSample(i, (short) ((bytes[j] << 8) | (bytes[j + 1] & 0xff)));
+                }
+                writeSamples(len / 2);
+            }
+        } finally {
+            in.close();
+            close();
+        }
+    }
+
+    private void convert(InputStream sourceStream, String destFileName,
+            PcmCache.Writer cacheWriter) throws IOException {
         int frameCount = Integer.MAX_VALUE;
-        WavConverter decoder = new WavConverter();
+        int failures = 0;
+        this.cacheWriter = cacheWriter;
         Bitstream stream = new Bitstream(sourceStream);
         frameCount = Integer.MAX_VALUE;
         try {
             for (int frame = 0; frame < frameCount; frame++) {
-                Header header = stream.readFrame();
+                Header header;
+                try {
+                    header = stream.readFrame();
+                } catch (IOException e) {
+                    // an invalid header (for example a false sync)
+                    if (getReport() == null || ++failures > MAX_FAILURES) {
+                        throw e;
+                    }
+                    getReport().addError(DecodeReport.FAILED, e.toString());
+                    stream.closeFrame();
+                    continue;
+                }
                 if (header == null) {
                     break;
                 }
-                if (decoder.channels == 0) {
-                    int channels = (header.mode() == Header.MODE_SINGLE_CHANNEL) ? 1
+                if (channels == 0) {
+                    int channels = (isMono() || header.mode() == Header.MODE_SINGLE_CHANNEL) ? 1
                             : 2;
-                    int freq = header.frequency();
-                    decoder.initOutputBuffer(channels, freq, destFileName);
+                    int freq = header.frequency() / getDownsampling();
+                    initOutputBuffer(channels, freq, destFileName);
+                    if (cacheWriter != null) {
+                        cacheWriter.open(freq, channels);
+                    }
                 }
-                decoder.decodeFrame(header, stream);
+                decodeFrame(header, stream);
                 stream.closeFrame();
             }
         } finally {
-            decoder.close();
+            close();
         }
     }
 
-    private short[] buffer;
-    private WaveFileWriter outWave;
+    private final BufferPool pool = BufferPool.getDefault();
+    private final OutputFormat format;
+    private final int bytesPerSample;
+    private ByteBuffer buffer;
+    private PcmFileWriter outFile;
+    private PcmCache.Writer cacheWriter;
+    private LoudnessMeter meter;
+    private Resampler resampler;
+    private byte[] pcmBuffer;
+    private double[] sampleBuffer, meterBuffer;
+    private boolean trimSilence;
+    private double silenceThreshold;
+    private long leadingSilence, trailingSilence;
+    private long skipSamples, remainingSamples = -1;
+
+    public WavConverter() {
+        this(OutputFormat.WAV_16);
+    }
+
+    public WavConverter(OutputFormat format) {
+        this.format = format;
+        bytesPerSample = format.getBytesPerSample();
+    }
 
     public void initOutputBuffer(int numberOfChannels, int freq, String fileName)
             throws IOException {
         super.initOutputBuffer(null, numberOfChannels);
-        buffer = new short[BUFFER_SIZE];
+        buffer = pool.acquire(BUFFER_SIZE * bytesPerSample);
+        buffer.order(format.getByteOrder());
         for (int i = 0; i < numberOfChannels; ++i) {
             bufferPointer[i] = (short) i;
         }
-        outWave = new WaveFileWriter(fileName, freq, (short) 16,
-                (short) numberOfChannels);
+        int rate = getOutputFrequency() > 0 ? getOutputFrequency() : freq;
+        outFile = format.open(fileName, rate, numberOfChannels);
+        if (rate != freq) {
+            resampler = new Resampler(new ResampledOutput(), freq, rate, numberOfChannels);
+        }
+        skipSamples *= numberOfChannels;
+        if (remainingSamples > 0) {
+            remainingSamples *= numberOfChannels;
+        }
+        if (cacheWriter != null) {
+            pcmBuffer = new byte[BUFFER_SIZE * 2];
+        }
+        if (resampler != null) {
+            sampleBuffer = new double[BUFFER_SIZE];
+        }
+        if (meter != null) {
+            meterBuffer = new double[BUFFER_SIZE];
+            meter.open(freq, numberOfChannels);
+        }
     }
-    
+
     public void appendSamples(int channel, double[] f) {
         int p = bufferPointer[channel];
-        for (int i = 0; i < 32; i++) {
-            double sample = f[i];
-            short s = ((sample > 32767.0f) ? 32767
-                    : ((sample < -32768.0f) ? -32768 : (short) sample));
-            buffer[p] = s;
-            p += 2;
+        for (int i = 0; i < f.length; i++) {
+            putSample(p, f[i]);
+            p += channels;
         }
         bufferPointer[channel] = p;
-    }    
+    }
+
+    /**
+     * Convert a sample to the output format. Only 16 bit integer samples are
+     * clipped; float samples are scaled to -1..1, but not clipped. The cache
+     * gets 16 bit samples. The resampler and the loudness meter get the
+     * samples before clipping, so that the peaks are not cut, and the
+     * resampled samples are converted to the output format afterwards.
+     */
+    private void putSample(int p, double sample) {
+        if (sampleBuffer != null) {
+            sampleBuffer[p] = sample;
+        } else {
+            putOutput(p, sample);
+        }
+        if (meterBuffer != null) {
+            meterBuffer[p] = sample / 32768;
+        }
+        if (pcmBuffer != null) {
+            short s = toShort(sample);
+            pcmBuffer[p + p] = (byte) (s >> 8);
+            pcmBuffer[p + p + 1] = (byte) s;
+        }
+    }
+
+    private void putOutput(int p, double sample) {
+        int pos = p * bytesPerSample;
+        if (format.floating) {
+            buffer.putFloat(pos, (float) (sample / 32768));
+        } else if (bytesPerSample == 3) {
+            double x = sample * 256;
+            int v = ((x > 8388607.0) ? 8388607
+                    : ((x < -8388608.0) ? -8388608 : (int) Math.round(x)));
+            if (format.bigEndian) {
+                buffer.put(pos, (byte) (v >> 16));
+                buffer.put(pos + 1, (byte) (v >> 8));
+                buffer.put(pos + 2, (byte) v);
+            } else {
+                buffer.put(pos, (byte) v);
+                buffer.put(pos + 1, (byte) (v >> 8));
+                buffer.put(pos + 2, (byte) (v >> 16));
+            }
+        } else {
+            buffer.putShort(pos, toShort(sample));
+        }
+    }
+
+    private static short toShort(double sample) {
+        return ((sample > 32767.0f) ? 32767
+                : ((sample < -32768.0f) ? -32768 : (short) sample));
+    }
+
+    /**
+     * Write the samples of the buffer. The cache gets all samples, the file
+     * (and the loudness meter) only the samples that are not trimmed.
+     */
+    private void writeSamples(int len) throws IOException {
+        if (cacheWriter != null) {
+            cacheWriter.write(pcmBuffer, 0, len * 2);
+        }
+        int start = 0;
+        if (skipSamples > 0) {
+            start = (int) Math.min(skipSamples, len);
+            skipSamples -= start;
+        }
+        if (remainingSamples >= 0) {
+            len = start + (int) Math.min(len - start, remainingSamples);
+            remainingSamples -= len - start;
+        }
+        if (len > start) {
+            if (resampler != null) {
+                resampler.write(sampleBuffer, start, len - start);
+            } else {
+                buffer.limit(len * bytesPerSample).position(start * bytesPerSample);
+                outFile.writeData(buffer);
+            }
+            if (meter != null) {
+                meter.write(meterBuffer, start, len - start);
+            }
+        }
+        buffer.clear();
+    }
 
     public void writeBuffer() throws IOException {
-        outWave.writeData(buffer, bufferPointer[0]);
+        writeSamples(bufferPointer[0]);
         for (int i = 0; i < channels; ++i) {
             bufferPointer[i] = i;
         }
     }
 
     public void close() throws IOException {
-        outWave.close();
+        if (resampler != null) {
+            resampler.flush();
+            resampler = null;
+        }
+        if (outFile != null) {
+            outFile.close();
+            outFile = null;
+        }
+        pool.release(buffer);
+        buffer = null;
     }
+
+    /**
+     * Writes the output of the resampler to the file, in the output format.
+     */
+    private class ResampledOutput implements Resampler.SampleOutput {
+
+        public void write(double[] data, int offset, int length) throws IOException {
+            int end = offset + length;
+            while (offset < end) {
+                int len = Math.min(end - offset, BUFFER_SIZE);
+                for (int i = 0; i < len; i++) {
+                    putOutput(i, data[offset++]);
+                }
+                buffer.limit(len * bytesPerSample).position(0);
+                outFile.writeData(buffer);
+                buffer.clear();
+            }
+        }
+
+    }
+
 }
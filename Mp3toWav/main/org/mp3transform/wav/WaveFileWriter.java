@@ -1,179 +1,117 @@
 package org.mp3transform.wav;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a WAV file with integer or floating point samples. The chunk sizes
+ * of a file are patched at close. If the data gets larger than 4 GB, the
+ * file is converted to RF64: the JUNK chunk that is reserved after the RIFF
+ * header is replaced with a ds64 chunk. When writing to a stream, the sizes
+ * are unknown and set to 0xffffffff.
+ */
+public class WaveFileWriter extends PcmFileWriter {
+
+    private static final short FORMAT_PCM = 1, FORMAT_IEEE_FLOAT = 3;
+    private static final int DS64_POS = 12;
+    private static final long MAX_RIFF_SIZE = 0xffffffffL;
+    private static final int UNKNOWN_SIZE = 0xffffffff;
+
+    private final int blockAlign;
+    private final int headerSize, factPos, dataPos;
 
-public class WaveFileWriter {
-    static class WaveFormatChunkData {
-        short formatTag = 0; 
-        short channels = 0; 
-        int samplesPerSec = 0; 
-        int avgBytesPerSec = 0;
-        short blockAlign = 0;
-        short bitsPerSample = 0;
-
-        WaveFormatChunkData() {
-            formatTag = 1; 
-            config(44100, (short) 16, (short) 1);
-        }
-
-        void config(int samplingRate, short bitsPerSample,
-                short channels) {
-            samplesPerSec = samplingRate;
-            this.channels = channels;
-            this.bitsPerSample = bitsPerSample;
-            avgBytesPerSec = (channels * samplesPerSec * bitsPerSample) / 8;
-            blockAlign = (short) ((channels * bitsPerSample) / 8);
-        }
+    WaveFileWriter(String fileName, int samplingRate, short bitsPerSample,
+            short channels) throws IOException {
+        this(openFile(fileName), samplingRate, bitsPerSample, channels, false);
     }
 
-    static class WaveFormatChunk {
-        RiffChunkHeader header;
-        WaveFormatChunkData data;
-
-        WaveFormatChunk() {
-            header = new RiffChunkHeader();
-            data = new WaveFormatChunkData();
-            header.ckID = fourCC("fmt ");
-            header.ckSize = 16;
+    WaveFileWriter(WritableByteChannel channel, int samplingRate, short bitsPerSample,
+            short channels, boolean floating) throws IOException {
+        super(check(channel, bitsPerSample, channels, floating), ByteOrder.LITTLE_ENDIAN);
+        blockAlign = channels * bitsPerSample / 8;
+        int unknown = file == null ? UNKNOWN_SIZE : 0;
+        putFourCC("RIFF");
+        buffer.putInt(unknown);
+        putFourCC("WAVE");
+        putFourCC("JUNK");
+        buffer.putInt(28);
+        for (int i = 0; i < 28; i++) {
+            buffer.put((byte) 0);
         }
+        putFourCC("fmt ");
+        buffer.putInt(floating ? 18 : 16);
+        buffer.putShort(floating ? FORMAT_IEEE_FLOAT : FORMAT_PCM);
+        buffer.putShort(channels);
+        buffer.putInt(samplingRate);
+        buffer.putInt(samplingRate * blockAlign);
+        buffer.putShort((short) blockAlign);
+        buffer.putShort(bitsPerSample);
+        if (floating) {
+            buffer.putShort((short) 0);
+            putFourCC("fact");
+            buffer.putInt(4);
+            factPos = buffer.position();
+            buffer.putInt(unknown);
+        } else {
+            factPos = -1;
+        }
+        putFourCC("data");
+        dataPos = buffer.position();
+        buffer.putInt(unknown);
+        headerSize = buffer.position();
     }
 
-    static class RiffChunkHeader {
-        int ckID = 0; 
-        int ckSize = 0; 
-    }
-
-    private final RiffChunkHeader riffHeader = new RiffChunkHeader();
-    private final RandomAccessFile file; 
-    private final WaveFormatChunk waveFormat = new WaveFormatChunk();
-    private final RiffChunkHeader pcmData = new RiffChunkHeader();
-    private long pcmDataOffset = 0; 
-
-    WaveFileWriter(String fileName, int samplingRate, short bitsPerSample,
-            short channels) throws IOException {
-        riffHeader.ckID = fourCC("RIFF");
-        pcmData.ckID = fourCC("data");
-        if (bitsPerSample != 8 && bitsPerSample != 16) {
+    private static WritableByteChannel check(WritableByteChannel channel, short bitsPerSample,
+            short channels, boolean floating) throws IOException {
+        if (floating ? bitsPerSample != 32 : bitsPerSample != 8 && bitsPerSample != 16 && bitsPerSample != 24) {
+            channel.close();
             throw new IOException("Unsupported bitsPerSample: " + bitsPerSample);
         }
         if (channels < 1 || channels > 2) {
+            channel.close();
             throw new IOException("Unsupported channels: " + channels);
         }
-        waveFormat.data.config(samplingRate, bitsPerSample, channels);
-        file = new RandomAccessFile(fileName, "rw");
-
-        byte[] br = new byte[8];
-        br[0] = (byte) ((riffHeader.ckID >>> 24) & 0x000000FF);
-        br[1] = (byte) ((riffHeader.ckID >>> 16) & 0x000000FF);
-        br[2] = (byte) ((riffHeader.ckID >>> 8) & 0x000000FF);
-        br[3] = (byte) (riffHeader.ckID & 0x000000FF);
-        int ckSize = riffHeader.ckSize;
-        byte br4 = (byte) ((ckSize >>> 24) & 0x000000FF);
-        byte br5 = (byte) ((ckSize >>> 16) & 0x000000FF);
-        byte br6 = (byte) ((ckSize >>> 8) & 0x000000FF);
-        byte br7 = (byte) (ckSize & 0x000000FF);
-        br[4] = br7;
-        br[5] = br6;
-        br[6] = br5;
-        br[7] = br4;
-        file.write(br, 0, 8);
-        byte[] theWave = { (byte) 'W', (byte) 'A', (byte) 'V', (byte) 'E' };
-        write(theWave, 4);
-        write(waveFormat.header, 8);
-        writeShort(waveFormat.data.formatTag);
-        writeShort(waveFormat.data.channels);
-        writeInt(waveFormat.data.samplesPerSec);
-        writeInt(waveFormat.data.avgBytesPerSec);
-        writeShort(waveFormat.data.blockAlign);
-        writeShort(waveFormat.data.bitsPerSample);
-        pcmDataOffset = file.getFilePointer();
-        write(pcmData, 8);
-    }
-
-    private void writeShort(short data) throws IOException {
-        short theData = (short) (((data >>> 8) & 0x00FF) | ((data << 8) & 0xFF00));
-        file.writeShort(theData);
-        riffHeader.ckSize += 2;
+        return channel;
     }
 
-    void writeData(short[] data, int numData) throws IOException {
-        int extraBytes = numData * 2;
-        pcmData.ckSize += extraBytes;
-        writeRiff(data, extraBytes);
+    boolean isPadded() {
+        return true;
     }
 
-    private void writeRiff(short[] data, int numBytes) throws IOException {
-        byte[] theData = new byte[numBytes];
-        int yc = 0;
-        for (int y = 0; y < numBytes; y = y + 2) {
-            theData[y] = (byte) (data[yc] & 0x00FF);
-            theData[y + 1] = (byte) ((data[yc++] >>> 8) & 0x00FF);
+    void patchHeader() throws IOException {
+        long riffSize = headerSize - 8 + dataSize + (dataSize & 1);
+        long samples = dataSize / blockAlign;
+        if (riffSize <= MAX_RIFF_SIZE) {
+            patchInt(4, (int) riffSize);
+            patchInt(dataPos, (int) dataSize);
+            if (factPos >= 0) {
+                patchInt(factPos, (int) samples);
+            }
+        } else {
+            buffer.clear();
+            putFourCC("RF64");
+            buffer.putInt(UNKNOWN_SIZE).flip();
+            writeFully(buffer, 0);
+            buffer.clear();
+            putFourCC("ds64");
+            buffer.putInt(28);
+            buffer.putLong(riffSize);
+            buffer.putLong(dataSize);
+            buffer.putLong(samples);
+            buffer.putInt(0).flip();
+            writeFully(buffer, DS64_POS);
+            patchInt(dataPos, UNKNOWN_SIZE);
+            if (factPos >= 0) {
+                patchInt(factPos, UNKNOWN_SIZE);
+            }
         }
-        file.write(theData, 0, numBytes);
-        riffHeader.ckSize += numBytes;
-    }
-
-    private void writeInt(int data) throws IOException {
-        short theDataL = (short) ((data >>> 16) & 0x0000FFFF);
-        short theDataR = (short) (data & 0x0000FFFF);
-        short theDataLI = (short) (((theDataL >>> 8) & 0x00FF) | ((theDataL << 8) & 0xFF00));
-        short theDataRI = (short) (((theDataR >>> 8) & 0x00FF) | ((theDataR << 8) & 0xFF00));
-        int theData = ((theDataRI << 16) & 0xFFFF0000)
-                | (theDataLI & 0x0000FFFF);
-        file.writeInt(theData);
-        riffHeader.ckSize += 4;
-    }
-
-    private void write(RiffChunkHeader header, int numBytes) throws IOException {
-        byte[] br = new byte[8];
-        br[0] = (byte) ((header.ckID >>> 24) & 0x000000FF);
-        br[1] = (byte) ((header.ckID >>> 16) & 0x000000FF);
-        br[2] = (byte) ((header.ckID >>> 8) & 0x000000FF);
-        br[3] = (byte) (header.ckID & 0x000000FF);
-        byte br4 = (byte) ((header.ckSize >>> 24) & 0x000000FF);
-        byte br5 = (byte) ((header.ckSize >>> 16) & 0x000000FF);
-        byte br6 = (byte) ((header.ckSize >>> 8) & 0x000000FF);
-        byte br7 = (byte) (header.ckSize & 0x000000FF);
-        br[4] = br7;
-        br[5] = br6;
-        br[6] = br5;
-        br[7] = br4;
-        file.write(br, 0, numBytes);
-        riffHeader.ckSize += numBytes;
-    }
-
-    void close() throws IOException {
-        backpatch(pcmDataOffset, pcmData, 8);
-        file.seek(0);
-        byte[] br = new byte[8];
-        br[0] = (byte) ((riffHeader.ckID >>> 24) & 0x000000FF);
-        br[1] = (byte) ((riffHeader.ckID >>> 16) & 0x000000FF);
-        br[2] = (byte) ((riffHeader.ckID >>> 8) & 0x000000FF);
-        br[3] = (byte) (riffHeader.ckID & 0x000000FF);
-        br[7] = (byte) ((riffHeader.ckSize >>> 24) & 0x000000FF);
-        br[6] = (byte) ((riffHeader.ckSize >>> 16) & 0x000000FF);
-        br[5] = (byte) ((riffHeader.ckSize >>> 8) & 0x000000FF);
-        br[4] = (byte) (riffHeader.ckSize & 0x000000FF);
-        file.write(br, 0, 8);
-        file.close();
     }
 
-    private void backpatch(long fileOffset, RiffChunkHeader data, int numBytes)
-            throws IOException {
-        file.seek(fileOffset);
-        write(data, numBytes);
+    private void patchInt(int pos, int x) throws IOException {
+        buffer.clear();
+        buffer.putInt(x).flip();
+        writeFully(buffer, pos);
     }
 
-    private void write(byte[] data, int numBytes) throws IOException {
-        file.write(data, 0, numBytes);
-        riffHeader.ckSize += numBytes;
-    }
-
-    static int fourCC(String chunkName) {
-        byte[] p = chunkName.getBytes();
-        int ret = (((p[0] << 24) & 0xFF000000) | ((p[1] << 16) & 0x00FF0000)
-                | ((p[2] << 8) & 0x0000FF00) | (p[3] & 0x000000FF));
-        return ret;
-    }
 }
@@ -0,0 +1,164 @@
+package org.mp3transform.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.mp3transform.AudioRange;
+import org.mp3transform.Bitstream;
+import org.mp3transform.ID3v2Header;
+
+/**
+ * Test that the tags at the start and the end of a file are skipped. The tags
+ * contain data that looks like frame headers. Also tests the ID3v2 header.
+ */
+public class TestAudioRange {
+
+    private static final int FRAMES = 50;
+    private static final int FRAME_SIZE = 417;
+
+    public static void main(String... args) throws Exception {
+        testHeader();
+        testTags();
+    }
+
+    private static void testHeader() {
+        byte[] b = { 'I', 'D', '3', 4, 0, 0x50, 0x7f, 0x7f, 0x7f, 0x7f };
+        ID3v2Header h = ID3v2Header.parseHeader(b, 0);
+        if (h.getBodySize() != 0xfffffff || h.getTagSize() != 0xfffffff + 20 || !h.hasExtendedHeader()) {
+            throw new Error();
+        }
+        b[9] = (byte) 0x80;
+        if (ID3v2Header.parseHeader(b, 0) != null) {
+            throw new Error();
+        }
+        b[3] = 3;
+        b[9] = 1;
+        // no footer before version 2.4
+        if (ID3v2Header.parseHeader(b, 0).getTagSize() != 0xfffff81 + 10) {
+            throw new Error();
+        }
+        b = new byte[] { 1, (byte) 0xff, 0, 0, (byte) 0xff, 0, (byte) 0xff };
+        if (ID3v2Header.resynchronize(b, 0, b.length) != 5 || b[1] != (byte) 0xff || b[2] != 0
+                || b[3] != (byte) 0xff || b[4] != (byte) 0xff) {
+            throw new Error();
+        }
+    }
+
+    private static void testTags() throws Exception {
+        Random r = new Random(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeID3v2(out, junk(r, 100000), false);
+        writeID3v2(out, junk(r, 1000), false);
+        long start = out.size();
+        for (int i = 0; i < FRAMES; i++) {
+            // MPEG 1 layer III, 128 kbit/s, 44.1 kHz, stereo, silent
+            byte[] frame = new byte[FRAME_SIZE];
+            frame[0] = (byte) 0xff;
+            frame[1] = (byte) 0xfb;
+            frame[2] = (byte) 0x90;
+            out.write(frame);
+        }
+        long end = out.size();
+        writeID3v2(out, junk(r, 500), true);
+        // APEv2 with header (flags: has header, is header)
+        writeAPE(out, 0xa0000000);
+        out.write(junk(r, 100));
+        writeAPE(out, 0x80000000);
+        String lyrics = "LYRICSBEGININD0000210";
+        out.write(lyrics.getBytes());
+        out.write(String.format("%06d", lyrics.length()).getBytes());
+        out.write("LYRICS200".getBytes());
+        byte[] id3v1 = new byte[128];
+        System.arraycopy("TAGTitle".getBytes(), 0, id3v1, 0, 8);
+        id3v1[127] = (byte) 0xff;
+        out.write(id3v1);
+        File file = File.createTempFile("test", ".mp3");
+        try {
+            FileOutputStream f = new FileOutputStream(file);
+            out.writeTo(f);
+            f.close();
+            AudioRange range = AudioRange.scan(file);
+            if (range.getStart() != start || range.getEnd() != end) {
+                throw new Error(range.getStart() + "-" + range.getEnd() + ", expected " + start + "-" + end);
+            }
+            count(AudioRange.open(file), 0);
+            // without the range, the ID3v2 and APE tags are skipped while
+            // reading, but not the lyrics and what follows
+            count(new BufferedInputStream(new FileInputStream(file)), lyrics.length() + 15 + 128);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void count(InputStream in, long maxSkipped) throws IOException {
+        try {
+            Bitstream stream = new Bitstream(in);
+            int frames = 0;
+            while (stream.readFrame() != null) {
+                frames++;
+                stream.closeFrame();
+            }
+            if (frames != FRAMES || stream.getSkippedBytes() > maxSkipped) {
+                throw new Error("frames: " + frames + " skipped: " + stream.getSkippedBytes());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Random data with many frame headers.
+     */
+    private static byte[] junk(Random r, int len) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i += 4) {
+            int x = r.nextInt(4) == 0 ? 0xfffb9064 : r.nextInt();
+            for (int j = 0; j < 4 && i + j < len; j++) {
+                data[i + j] = (byte) (x >> (24 - 8 * j));
+            }
+        }
+        return data;
+    }
+
+    private static void writeID3v2(ByteArrayOutputStream out, byte[] body, boolean footer) {
+        byte[] head = new byte[10];
+        head[0] = 'I';
+        head[1] = 'D';
+        head[2] = '3';
+        head[3] = 4;
+        head[5] = (byte) (footer ? 0x10 : 0);
+        for (int i = 0; i < 4; i++) {
+            head[9 - i] = (byte) ((body.length >> (7 * i)) & 0x7f);
+        }
+        out.write(head, 0, 10);
+        out.write(body, 0, body.length);
+        if (footer) {
+            head[0] = '3';
+            head[1] = 'D';
+            head[2] = 'I';
+            out.write(head, 0, 10);
+        }
+    }
+
+    private static void writeAPE(ByteArrayOutputStream out, int flags) throws IOException {
+        out.write("APETAGEX".getBytes());
+        writeIntLE(out, 2000);
+        writeIntLE(out, 100 + 32);
+        writeIntLE(out, 1);
+        writeIntLE(out, flags);
+        out.write(new byte[8]);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int x) {
+        for (int i = 0; i < 4; i++) {
+            out.write(x >> (8 * i));
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.mp3transform.catalog.Catalog;
+import org.mp3transform.catalog.CatalogEntry;
+
+/**
+ * Test the catalog: scanning, the lookups, and that only changed files are
+ * scanned again after the catalog was stored.
+ */
+public class TestCatalog {
+
+    private static final int FRAMES = 100;
+
+    public static void main(String... args) throws Exception {
+        File root = Files.createTempDirectory("library").toFile();
+        try {
+            byte[] picture = { 1, 2, 3, 4 };
+            File a1 = new File(root, "Artist/Album/1.mp3");
+            File a2 = new File(root, "Artist/Album/2.mp3");
+            File b1 = new File(root, "Band/Live/1.mp3");
+            write(a1, "One", "Artist", picture);
+            write(a2, "Two", "Artist", null);
+            write(b1, "Three", null, null);
+            Catalog catalog = Catalog.open(root);
+            if (catalog.update() != 3 || catalog.size() != 3) {
+                throw new Error();
+            }
+            CatalogEntry e = catalog.get(a1.getAbsolutePath());
+            assertEquals("One", e.getTitle());
+            assertEquals("Artist", e.getArtist());
+            assertEquals("Album", Catalog.getAlbum(e));
+            // 100 frames of 1152 samples at 44.1 kHz, 128 kbit/s
+            if (Math.abs(e.getDuration() - 2612) > 10 || Math.abs(e.getBitrate() - 128000) > 1000
+                    || e.getFrequency() != 44100) {
+                throw new Error(e.getDuration() + " " + e.getBitrate());
+            }
+            byte[] cover = new byte[e.getCoverLength()];
+            RandomAccessFile f = new RandomAccessFile(a1, "r");
+            f.seek(e.getCoverOffset());
+            f.readFully(cover);
+            f.close();
+            if (!Arrays.equals(picture, cover)) {
+                throw new Error();
+            }
+            assertEquals("[" + new File(root, "Artist") + ", " + new File(root, "Band") + "]",
+                    catalog.list(root).toString());
+            assertEquals("[" + a1 + ", " + a2 + "]", catalog.list(a1.getParentFile()).toString());
+            assertEquals("[" + a1.getParentFile() + ", " + b1.getParentFile() + "]",
+                    catalog.getAlbumDirectories().toString());
+            if (catalog.findArtist("art").size() != 2 || catalog.findArtist("band").size() != 1
+                    || catalog.findAlbum("LI").size() != 1 || catalog.findAlbum("x").size() != 0) {
+                throw new Error();
+            }
+            catalog.save();
+            catalog = Catalog.open(root);
+            if (catalog.size() != 3 || catalog.update() != 0) {
+                throw new Error();
+            }
+            write(a2, "Two (Remix)", "Artist", null);
+            a2.setLastModified(a2.lastModified() + 2000);
+            b1.delete();
+            Set<File> dirs = new HashSet<File>();
+            if (catalog.update(root, dirs) != 2 || catalog.size() != 2 || catalog.findArtist("band").size() != 0) {
+                throw new Error();
+            }
+            if (!dirs.equals(new HashSet<File>(Arrays.asList(a2.getParentFile(), b1.getParentFile())))) {
+                throw new Error();
+            }
+            assertEquals("Two (Remix)", catalog.get(a2.getAbsolutePath()).getTitle());
+            // an album with tracks before and after a subdirectory
+            File cd2 = new File(root, "Artist/Album/CD2/1.mp3");
+            write(cd2, "Four", "Artist", null);
+            write(new File(root, "Artist/Album/Z.mp3"), "Five", "Artist", null);
+            if (catalog.update() != 2) {
+                throw new Error();
+            }
+            assertEquals("[" + a1.getParentFile() + ", " + cd2.getParentFile() + "]",
+                    catalog.getAlbumDirectories().toString());
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void write(File file, String title, String artist, byte[] picture) throws IOException {
+        file.getParentFile().mkdirs();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        TestID3v2Reader.writeFrame(body, 3, "TIT2", 0, TestID3v2Reader.text(0, title));
+        if (artist != null) {
+            TestID3v2Reader.writeFrame(body, 3, "TPE1", 0, TestID3v2Reader.text(1, artist));
+        }
+        if (picture != null) {
+            TestID3v2Reader.writeFrame(body, 3, "APIC", 0, TestID3v2Reader.apic(0, picture));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(TestID3v2Reader.tag(3, 0, body.toByteArray()));
+        for (int i = 0; i < FRAMES; i++) {
+            // MPEG 1 layer III, 128 kbit/s, 44.1 kHz, stereo, silent
+            byte[] frame = new byte[417];
+            frame[0] = (byte) 0xff;
+            frame[1] = (byte) 0xfb;
+            frame[2] = (byte) 0x90;
+            out.write(frame);
+        }
+        Files.write(file.toPath(), out.toByteArray());
+    }
+
+    private static void assertEquals(String expected, String got) {
+        if (!expected.equals(got)) {
+            throw new Error("expected: " + expected + " got: " + got);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File x : list) {
+                delete(x);
+            }
+        }
+        f.delete();
+    }
+
+}
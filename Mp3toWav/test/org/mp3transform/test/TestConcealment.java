@@ -0,0 +1,90 @@
+package org.mp3transform.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.mp3transform.DecodeReport;
+import org.mp3transform.Decoder;
+
+/**
+ * Test the resilient decoding mode: a copy of a stream with a corrupt side
+ * information and a corrupt main_data_begin must decode without exception,
+ * to the same number of samples, and the errors and concealed granules must
+ * be reported.
+ */
+public class TestConcealment {
+
+    private static final int FRAMES = 40, FRAME_SIZE = 417;
+    private static final int BAD_SIDE_INFO = 10, MISSING_MAIN_DATA = 20;
+
+    public static void main(String... args) throws Exception {
+        byte[] mp3 = TestSilenceDetector.createStream(0, FRAMES, 190);
+        byte[] clean = TestSilenceDetector.decode(mp3);
+        DecodeReport report = new DecodeReport("clean");
+        if (!Arrays.equals(clean, decode(mp3, report, Decoder.CONCEAL_REPEAT)) || !report.isClean()
+                || report.getFrames() != FRAMES) {
+            throw new Error(report.toString());
+        }
+        byte[] corrupt = mp3.clone();
+        // big_values of the first granule (after main_data_begin, private
+        // bits, scfsi and part2_3_length)
+        setBits(corrupt, BAD_SIDE_INFO * FRAME_SIZE + 4, 9 + 5 + 4 + 12, 9, 400);
+        // more than the bit reservoir can contain
+        setBits(corrupt, MISSING_MAIN_DATA * FRAME_SIZE + 4, 0, 9, 511);
+        for (int concealment = Decoder.CONCEAL_MUTE; concealment <= Decoder.CONCEAL_REPEAT; concealment++) {
+            report = new DecodeReport("corrupt");
+            byte[] pcm = decode(corrupt, report, concealment);
+            if (pcm.length != clean.length || report.getFrames() != FRAMES || report.getErrorCount() != 2
+                    || report.getConcealed() != 4) {
+                throw new Error(report.toString());
+            }
+            DecodeReport.FrameError e1 = report.getErrors().get(0), e2 = report.getErrors().get(1);
+            if (e1.getFrame() != BAD_SIDE_INFO || !DecodeReport.BAD_SIDE_INFO.equals(e1.getType())
+                    || e2.getFrame() != MISSING_MAIN_DATA
+                    || !DecodeReport.MISSING_MAIN_DATA.equals(e2.getType())) {
+                throw new Error(report.toString());
+            }
+            // the other frames are not changed (the frame after a
+            // concealed frame contains the overlap of the replacement)
+            for (int f = 0; f < FRAMES; f++) {
+                boolean changed = !sameFrame(clean, pcm, f);
+                boolean expected = f == BAD_SIDE_INFO || f == BAD_SIDE_INFO + 1 || f == MISSING_MAIN_DATA
+                        || f == MISSING_MAIN_DATA + 1;
+                if (changed && !expected) {
+                    throw new Error("frame " + f + " changed");
+                }
+            }
+        }
+    }
+
+    private static byte[] decode(byte[] mp3, DecodeReport report, int concealment) throws IOException {
+        Decoder decoder = new Decoder();
+        decoder.setResilient(report, concealment);
+        return TestSilenceDetector.decode(mp3, decoder);
+    }
+
+    /**
+     * Whether the samples of a frame are the same (mono 16 bit).
+     */
+    private static boolean sameFrame(byte[] a, byte[] b, int frame) {
+        for (int i = frame * 1152 * 2; i < (frame + 1) * 1152 * 2; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void setBits(byte[] data, int offset, int bit, int bits, int value) {
+        for (int i = 0; i < bits; i++, bit++) {
+            int mask = 0x80 >> (bit & 7);
+            int pos = offset + (bit >> 3);
+            if (((value >> (bits - 1 - i)) & 1) != 0) {
+                data[pos] |= mask;
+            } else {
+                data[pos] &= ~mask;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.mp3transform.Bitstream;
+import org.mp3transform.Crc16;
+import org.mp3transform.DecodeReport;
+import org.mp3transform.Decoder;
+import org.mp3transform.Header;
+import org.mp3transform.PcmOutput;
+
+/**
+ * Test the CRC check of protected frames, and measure its cost. The stream
+ * is generated: MPEG 1 layer III, 128 kbit/s, stereo, with random side
+ * information and main data.
+ */
+public class TestCrc {
+
+    private static final int FRAME_SIZE = 417;
+
+    private long bits;
+    private int bitCount;
+    private ByteArrayOutputStream out;
+
+    public static void main(String... args) throws Exception {
+        testTable();
+        int frames = 2000, corrupt = 20;
+        byte[] data = new TestCrc().createStream(frames, corrupt, new Random(1));
+        int[] errors = decode(data, true);
+        if (errors[0] != frames || errors[1] != corrupt || errors[2] != corrupt) {
+            throw new Error("checked: " + errors[0] + " crc errors: " + errors[1] + " reported: " + errors[2]);
+        }
+        errors = decode(data, false);
+        if (errors[0] != 0 || errors[1] != 0) {
+            throw new Error("checked without checkCrc");
+        }
+        int loops = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        benchmark(data, frames, loops);
+    }
+
+    private static void testTable() {
+        byte[] check = "123456789".getBytes();
+        int crc = Crc16.update(Crc16.INIT, check, 0, check.length);
+        if (crc != 0xaee7) {
+            throw new Error(Integer.toHexString(crc));
+        }
+        Random r = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            byte[] data = new byte[r.nextInt(40)];
+            r.nextBytes(data);
+            int slow = Crc16.INIT;
+            for (byte b : data) {
+                for (int j = 7; j >= 0; j--) {
+                    boolean bit = ((slow >> 15) & 1) != ((b >> j) & 1);
+                    slow = (slow << 1) & 0xffff;
+                    if (bit) {
+                        slow ^= 0x8005;
+                    }
+                }
+            }
+            if (Crc16.update(Crc16.INIT, data, 0, data.length) != slow) {
+                throw new Error("table");
+            }
+        }
+    }
+
+    /**
+     * Decode the stream in resilient mode.
+     *
+     * @return the number of frames with a CRC, the CRC errors of the
+     *         bitstream, and the CRC errors of the report
+     */
+    static int[] decode(byte[] data, boolean checkCrc) throws Exception {
+        Decoder decoder = new Decoder();
+        DecodeReport report = new DecodeReport("test");
+        decoder.setResilient(report, Decoder.CONCEAL_MUTE);
+        decoder.setCheckCrc(checkCrc);
+        decoder.initOutput(new PcmOutput() {
+            public void open(int frequency, int channels) {
+            }
+
+            public void write(byte[] b, int offset, int length) {
+            }
+
+            public void close() {
+            }
+        }, 2);
+        Bitstream stream = new Bitstream(new ByteArrayInputStream(data));
+        while (true) {
+            Header header = stream.readFrame();
+            if (header == null) {
+                break;
+            }
+            decoder.decodeFrame(header, stream);
+            stream.closeFrame();
+        }
+        int reported = 0;
+        for (DecodeReport.FrameError e : report.getErrors()) {
+            if (DecodeReport.CRC_ERROR.equals(e.getType())) {
+                reported++;
+            }
+        }
+        return new int[] { stream.getCrcFrames(), stream.getCrcErrors(), reported };
+    }
+
+    private static void benchmark(byte[] data, int frames, int loops) throws Exception {
+        long[] time = new long[2];
+        for (int i = 0; i < loops; i++) {
+            for (int j = 0; j < 2; j++) {
+                long start = System.nanoTime();
+                decode(data, j == 1);
+                time[j] += System.nanoTime() - start;
+            }
+        }
+        byte[] frame = new byte[34];
+        long start = System.nanoTime();
+        int crc = 0;
+        for (int i = 0; i < frames * loops; i++) {
+            crc += Crc16.update(Crc16.INIT, frame, 0, frame.length);
+        }
+        long crcTime = System.nanoTime() - start + (crc & 1);
+        long n = (long) frames * loops;
+        System.out.println("decode without CRC check: " + time[0] / n + " ns/frame, with: " + time[1] / n
+                + " ns/frame; CRC only: " + crcTime / n + " ns/frame");
+    }
+
+    byte[] createStream(int frames, int corrupt, Random r) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = createFrame(r);
+            if (corrupt > 0 && i % (frames / corrupt) == frames / corrupt / 2) {
+                // a bit error in the side information
+                frame[6 + r.nextInt(32)] ^= 1 << r.nextInt(8);
+            }
+            stream.write(frame, 0, frame.length);
+        }
+        return stream.toByteArray();
+    }
+
+    private byte[] createFrame(Random r) {
+        out = new ByteArrayOutputStream();
+        // header: sync, MPEG 1, layer III, protected, 128 kbit/s, 44.1 kHz,
+        // stereo
+        put(0xfffa, 16);
+        put(0x90, 8);
+        put(0x00, 8);
+        put(0, 16);
+        // side info: main_data_begin, private bits, scfsi
+        put(0, 9);
+        put(0, 3);
+        put(0, 8);
+        for (int gr = 0; gr < 2; gr++) {
+            for (int ch = 0; ch < 2; ch++) {
+                put(300 + r.nextInt(400), 12);
+                put(r.nextInt(289), 9);
+                put(110 + r.nextInt(40), 8);
+                put(r.nextInt(16), 4);
+                boolean windowSwitching = r.nextInt(3) == 0;
+                put(windowSwitching ? 1 : 0, 1);
+                if (windowSwitching) {
+                    put(1 + r.nextInt(3), 2);
+                    put(r.nextInt(4) == 0 ? 1 : 0, 1);
+                    put(table(r), 5);
+                    put(table(r), 5);
+                    for (int i = 0; i < 3; i++) {
+                        put(r.nextInt(3), 3);
+                    }
+                } else {
+                    for (int i = 0; i < 3; i++) {
+                        put(table(r), 5);
+                    }
+                    put(r.nextInt(16), 4);
+                    put(r.nextInt(8), 3);
+                }
+                put(r.nextInt(8), 3);
+            }
+        }
+        byte[] frame = new byte[FRAME_SIZE];
+        byte[] head = out.toByteArray();
+        System.arraycopy(head, 0, frame, 0, head.length);
+        for (int i = head.length; i < FRAME_SIZE; i++) {
+            frame[i] = (byte) r.nextInt(256);
+        }
+        int crc = Crc16.update(Crc16.INIT, frame, 2, 2);
+        crc = Crc16.update(crc, frame, 6, 32);
+        frame[4] = (byte) (crc >> 8);
+        frame[5] = (byte) crc;
+        return frame;
+    }
+
+    private static int table(Random r) {
+        while (true) {
+            int t = r.nextInt(32);
+            if (t != 4 && t != 14) {
+                return t;
+            }
+        }
+    }
+
+    private void put(int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            bits = (bits << 1) | ((value >> i) & 1);
+            if (++bitCount == 8) {
+                out.write((int) bits);
+                bits = 0;
+                bitCount = 0;
+            }
+        }
+    }
+
+}
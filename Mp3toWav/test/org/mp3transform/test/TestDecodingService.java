@@ -0,0 +1,122 @@
+package org.mp3transform.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mp3transform.PcmOutput;
+import org.mp3transform.service.DecodingService;
+
+/**
+ * Load test for the decoding service. A local server socket stands in for
+ * the remote stream sources; each connection sends silent frames, optionally
+ * paced to real time.
+ */
+public class TestDecodingService {
+
+    // MPEG-1 layer III, 128 kbit/s, 44100 Hz, stereo, no CRC
+    private static final byte[] FRAME_HEADER = { (byte) 0xff, (byte) 0xfb, (byte) 0x90, 0x00 };
+    private static final int FRAME_SIZE = 417;
+
+    public static void main(String... args) throws Exception {
+        int streams = 200, frames = 200;
+        boolean realTime = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("-streams".equals(args[i])) {
+                streams = Integer.parseInt(args[++i]);
+            } else if ("-frames".equals(args[i])) {
+                frames = Integer.parseInt(args[++i]);
+            } else if ("-realTime".equals(args[i])) {
+                realTime = true;
+            }
+        }
+        new TestDecodingService().test(streams, frames, realTime);
+    }
+
+    private void test(int streams, final int frames, final boolean realTime) throws Exception {
+        final ServerSocket server = new ServerSocket(0, streams, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket s = server.accept();
+                        new Thread() {
+                            public void run() {
+                                serve(s, frames, realTime);
+                            }
+                        } .start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        DecodingService service = new DecodingService();
+        final AtomicLong bytes = new AtomicLong();
+        long start = System.currentTimeMillis();
+        ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < streams; i++) {
+            Socket s = new Socket(server.getInetAddress(), server.getLocalPort());
+            results.add(service.submit("stream" + i, s, new PcmOutput() {
+                public void open(int frequency, int channels) {
+                }
+
+                public void write(byte[] data, int offset, int length) {
+                    bytes.addAndGet(length);
+                }
+
+                public void close() {
+                }
+            }));
+        }
+        for (int i = 0; i < streams; i++) {
+            int decoded = results.get(i).get().intValue();
+            if (decoded != frames) {
+                throw new Error("stream" + i + " expected: " + frames + " frames, got: " + decoded);
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+        service.shutdown();
+        server.close();
+        long expected = (long) streams * frames * 1152 * 2 * 2;
+        if (bytes.get() != expected) {
+            throw new Error("expected: " + expected + " bytes, got: " + bytes.get());
+        }
+        System.out.println("streams: " + streams + " frames: " + frames + " virtual: " + service.isVirtual()
+                + " time: " + time + " ms; " + (streams * (long) frames * 1000 / Math.max(1, time)) + " frames/s");
+    }
+
+    static void serve(Socket s, int frames, boolean realTime) {
+        try {
+            OutputStream out = s.getOutputStream();
+            byte[] frame = new byte[FRAME_SIZE];
+            System.arraycopy(FRAME_HEADER, 0, frame, 0, FRAME_HEADER.length);
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < frames; i++) {
+                out.write(frame);
+                if (realTime) {
+                    long wait = start + i * 1152L * 1000 / 44100 - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+            }
+            out.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.mp3transform.tools.ExtractMeta;
+
+/**
+ * Test the cover extraction, that a second run only reads the albums that
+ * changed, and that processing some albums only appends to the index.
+ */
+public class TestExtractMeta {
+
+    public static void main(String... args) throws Exception {
+        File root = Files.createTempDirectory("library").toFile();
+        try {
+            byte[] front = { 1, 2, 3 }, back = { 4, 5, 6 };
+            File a = new File(root, "Artist/A");
+            File b = new File(root, "Artist/B");
+            File c = new File(root, "Other/C");
+            write(new File(a, "1.mp3"), null, 0);
+            write(new File(a, "2.mp3"), front, 3);
+            write(new File(b, "1.mp3"), back, 4);
+            write(new File(c, "1.mp3"), front, 3);
+            Files.write(new File(c, "cover.jpg").toPath(), back);
+            run(root, 3, 2, 2);
+            checkCover(a, front);
+            checkCover(b, back);
+            // not replaced
+            checkCover(c, back);
+            run(root, 3, 0, 0);
+            // the same picture
+            write(new File(b, "2.mp3"), back, 3);
+            run(root, 3, 1, 0);
+            new File(a, "cover.jpg").delete();
+            run(root, 3, 1, 1);
+            checkCover(a, front);
+            new File(b, "2.mp3").delete();
+            run(root, 3, 1, 0);
+            // without the index, the existing covers are kept
+            new File(root, ExtractMeta.INDEX_FILE).delete();
+            write(new File(a, "2.mp3"), back, 3);
+            run(root, 3, 0, 0);
+            checkCover(a, front);
+            // a removed album is appended to the index
+            File index = new File(root, ExtractMeta.INDEX_FILE);
+            String before = new String(Files.readAllBytes(index.toPath()), "UTF-8");
+            delete(c);
+            new ExtractMeta(4).extract(root, Arrays.asList(c));
+            String after = new String(Files.readAllBytes(index.toPath()), "UTF-8");
+            if (!after.startsWith(before) || !after.substring(before.length()).trim().equals(c.getAbsolutePath())) {
+                throw new Error(after);
+            }
+            // read, and compacted after a full run
+            run(root, 2, 0, 0);
+            after = new String(Files.readAllBytes(index.toPath()), "UTF-8");
+            if (after.contains(c.getAbsolutePath()) || after.split("\n").length != 2) {
+                throw new Error(after);
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void run(File root, int albums, int changed, int written) throws IOException {
+        ExtractMeta tool = new ExtractMeta(4);
+        tool.extract(root);
+        if (tool.getAlbums() != albums || tool.getChanged() != changed || tool.getWritten() != written) {
+            throw new Error("albums: " + tool.getAlbums() + " changed: " + tool.getChanged() + " written: "
+                    + tool.getWritten());
+        }
+    }
+
+    private static void checkCover(File dir, byte[] expected) throws IOException {
+        if (!Arrays.equals(expected, Files.readAllBytes(new File(dir, "cover.jpg").toPath()))) {
+            throw new Error(dir.toString());
+        }
+    }
+
+    static void write(File file, byte[] picture, int type) throws IOException {
+        file.getParentFile().mkdirs();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        TestID3v2Reader.writeFrame(body, 3, "TIT2", 0, TestID3v2Reader.text(0, file.getName()));
+        if (picture != null) {
+            byte[] apic = TestID3v2Reader.apic(0, picture);
+            // the picture type follows the MIME type
+            apic["image/jpeg".length() + 2] = (byte) type;
+            TestID3v2Reader.writeFrame(body, 3, "APIC", 0, apic);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(TestID3v2Reader.tag(3, 0, body.toByteArray()));
+        // a frame header
+        out.write(new byte[] { (byte) 0xff, (byte) 0xfb, (byte) 0x90, 0 });
+        Files.write(file.toPath(), out.toByteArray());
+    }
+
+    private static void delete(File f) {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File x : list) {
+                delete(x);
+            }
+        }
+        f.delete();
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.mp3transform.Bitstream;
+import org.mp3transform.Header;
+
+/**
+ * Test free format streams: the same audio is coded with a standard bitrate
+ * and as free format with large frames, and must decode to the same samples.
+ * The free format frames contain a false header, which must not be used to
+ * measure the frame size.
+ */
+public class TestFreeFormat {
+
+    private static final int FRAMES = 30;
+
+    public static void main(String... args) throws Exception {
+        // 417 bytes is 128 kbit/s; 2880 bytes would be 640 kbit/s at 32 kHz
+        for (int size : new int[] { 417, 1000, 2100, 2880 }) {
+            test(size);
+        }
+    }
+
+    private static void test(int frameSize) throws Exception {
+        ByteArrayOutputStream standard = new ByteArrayOutputStream();
+        ByteArrayOutputStream free = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            int line = i % 5 == 0 ? -1 : 2 * (i % 40);
+            byte[] frame = TestSilenceDetector.createFrame(9, 417, line, 180 + i % 20);
+            standard.write(frame, 0, frame.length);
+            frame = TestSilenceDetector.createFrame(0, frameSize, line, 180 + i % 20);
+            // a false header in the unused part of the frame
+            int pos = frameSize * 3 / 4;
+            if (frameSize > 200) {
+                System.arraycopy(frame, 0, frame, pos, 4);
+            }
+            free.write(frame, 0, frame.length);
+        }
+        // each frame is found directly, no data is skipped
+        Bitstream stream = new Bitstream(new ByteArrayInputStream(free.toByteArray()));
+        int count = 0;
+        for (Header h = stream.readFrame(); h != null; h = stream.readFrame()) {
+            stream.closeFrame();
+            count++;
+        }
+        if (count != FRAMES || stream.getSkippedBytes() != 0) {
+            throw new Error("frame size " + frameSize + ": frames: " + count + " skipped: "
+                    + stream.getSkippedBytes());
+        }
+        byte[] expected = TestSilenceDetector.decode(standard.toByteArray());
+        byte[] got = TestSilenceDetector.decode(free.toByteArray());
+        if (expected.length != FRAMES * 1152 * 2 || !Arrays.equals(expected, got)) {
+            throw new Error("frame size " + frameSize + ": " + got.length / 2 + " samples");
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mp3transform.ID3v2Reader;
+
+/**
+ * Test the ID3v2 frame reader with versions 2.2, 2.3 and 2.4, and check that
+ * only a few bytes are read to get the title of a file with a large picture.
+ */
+public class TestID3v2Reader {
+
+    public static void main(String... args) throws Exception {
+        Random r = new Random(1);
+        byte[] picture = new byte[5 * 1024 * 1024];
+        r.nextBytes(picture);
+        testVersion3(picture);
+        testVersion4(Arrays.copyOf(picture, 1000));
+        testVersion2(Arrays.copyOf(picture, 1000));
+        testUnsynchronised(Arrays.copyOf(picture, 1000));
+    }
+
+    private static void testVersion3(byte[] picture) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeFrame(body, 3, "APIC", 0, apic(0, picture));
+        writeFrame(body, 3, "TIT2", 0, text(0, "Title"));
+        writeFrame(body, 3, "TPE1", 0, text(1, "Artist \u00e9"));
+        body.write(new byte[100]);
+        byte[] tag = tag(3, 0, body.toByteArray());
+        CountingChannel channel = new CountingChannel(tag);
+        ID3v2Reader reader = ID3v2Reader.open(channel, 0);
+        String title = null, artist = null;
+        while (reader.next()) {
+            if (reader.getId().equals("TIT2")) {
+                title = reader.getText();
+            } else if (reader.getId().equals("TPE1")) {
+                artist = reader.getText();
+            }
+        }
+        assertEquals("Title", title);
+        assertEquals("Artist \u00e9", artist);
+        if (channel.read > 500) {
+            throw new Error("read " + channel.read);
+        }
+        File file = File.createTempFile("test", ".mp3");
+        File cover = File.createTempFile("cover", ".jpg");
+        try {
+            Files.write(file.toPath(), tag);
+            FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(cover.toPath(), StandardOpenOption.WRITE);
+            reader = ID3v2Reader.open(in, 0);
+            reader.next();
+            reader.transferData(reader.getPictureOffset(), out);
+            in.close();
+            out.close();
+            if (!Arrays.equals(picture, Files.readAllBytes(cover.toPath()))) {
+                throw new Error();
+            }
+        } finally {
+            file.delete();
+            cover.delete();
+        }
+    }
+
+    private static void testVersion4(byte[] picture) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        // extended header: size 6, one flag byte, no flags
+        body.write(new byte[] { 0, 0, 0, 6, 1, 0 });
+        byte[] title = text(3, "T\u00eftle\u0000Second");
+        byte[] unsync = unsynchronise(title);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        // data length indicator
+        data.write(new byte[] { 0, 0, 0, (byte) title.length });
+        data.write(unsync);
+        writeFrame(body, 4, "TIT2", 0x03, data.toByteArray());
+        writeFrame(body, 4, "APIC", 0, apic(2, picture));
+        byte[] tag = tag(4, 0x50, body.toByteArray());
+        tag = Arrays.copyOf(tag, tag.length + 10);
+        System.arraycopy(tag, 0, tag, tag.length - 10, 10);
+        tag[tag.length - 10] = '3';
+        tag[tag.length - 9] = 'D';
+        tag[tag.length - 8] = 'I';
+        ID3v2Reader reader = ID3v2Reader.open(new CountingChannel(tag), 0);
+        if (reader.getHeader().getTagSize() != tag.length) {
+            throw new Error();
+        }
+        reader.next();
+        assertEquals("TIT2", reader.getId());
+        assertEquals("T\u00eftle", reader.getText());
+        reader.next();
+        checkPicture(reader, picture);
+        if (reader.next()) {
+            throw new Error();
+        }
+    }
+
+    private static void testVersion2(byte[] picture) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeFrame(body, 2, "TT2", 0, text(0, "Title"));
+        ByteArrayOutputStream pic = new ByteArrayOutputStream();
+        pic.write(0);
+        pic.write("JPG".getBytes());
+        // picture type "other"
+        pic.write(0);
+        pic.write("Cover\u0000".getBytes());
+        pic.write(picture);
+        writeFrame(body, 2, "PIC", 0, pic.toByteArray());
+        ID3v2Reader reader = ID3v2Reader.open(new CountingChannel(tag(2, 0, body.toByteArray())), 0);
+        reader.next();
+        assertEquals("Title", reader.getText());
+        reader.next();
+        checkPicture(reader, picture);
+        if (reader.getPictureType() != 0) {
+            throw new Error();
+        }
+    }
+
+    private static void testUnsynchronised(byte[] picture) throws IOException {
+        for (int i = 0; i < picture.length; i += 7) {
+            // many false syncs
+            picture[i] = (byte) 0xff;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeFrame(body, 3, "TIT2", 0, text(0, "Title"));
+        writeFrame(body, 3, "APIC", 0, apic(0, picture));
+        ID3v2Reader reader = ID3v2Reader.open(new CountingChannel(tag(3, 0x80,
+                unsynchronise(body.toByteArray()))), 0);
+        reader.next();
+        assertEquals("Title", reader.getText());
+        reader.next();
+        checkPicture(reader, picture);
+    }
+
+    private static void checkPicture(ID3v2Reader reader, byte[] picture) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.transferData(reader.getPictureOffset(), Channels.newChannel(out));
+        if (!Arrays.equals(picture, out.toByteArray())) {
+            throw new Error(reader.getId());
+        }
+    }
+
+    static byte[] apic(int encoding, byte[] picture) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encoding);
+        out.write("image/jpeg\u0000".getBytes());
+        out.write(3);
+        out.write(encodeText(encoding, "Front cover\u0000"));
+        out.write(picture);
+        return out.toByteArray();
+    }
+
+    static byte[] text(int encoding, String s) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encoding);
+        out.write(encodeText(encoding, s));
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeText(int encoding, String s) throws IOException {
+        String[] charsets = { "ISO-8859-1", "UTF-16", "UTF-16BE", "UTF-8" };
+        return s.getBytes(charsets[encoding]);
+    }
+
+    static void writeFrame(ByteArrayOutputStream out, int version, String id, int flags, byte[] data)
+            throws IOException {
+        out.write(id.getBytes());
+        int len = data.length;
+        if (version == 2) {
+            out.write(new byte[] { (byte) (len >> 16), (byte) (len >> 8), (byte) len });
+        } else {
+            out.write(size(len, version == 4));
+            out.write(new byte[] { 0, (byte) flags });
+        }
+        out.write(data);
+    }
+
+    static byte[] tag(int version, int flags, byte[] body) {
+        byte[] tag = new byte[10 + body.length];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = (byte) version;
+        tag[5] = (byte) flags;
+        System.arraycopy(size(body.length, true), 0, tag, 6, 4);
+        System.arraycopy(body, 0, tag, 10, body.length);
+        return tag;
+    }
+
+    private static byte[] size(int x, boolean syncsafe) {
+        int shift = syncsafe ? 7 : 8, mask = syncsafe ? 0x7f : 0xff;
+        byte[] b = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            b[3 - i] = (byte) ((x >> (shift * i)) & mask);
+        }
+        return b;
+    }
+
+    private static byte[] unsynchronise(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < data.length; i++) {
+            out.write(data[i]);
+            if (data[i] == (byte) 0xff && (i + 1 == data.length || (data[i + 1] & 0xe0) == 0xe0
+                    || data[i + 1] == 0)) {
+                out.write(0);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertEquals(String expected, String got) {
+        if (!expected.equals(got)) {
+            throw new Error("expected: " + expected + " got: " + got);
+        }
+    }
+
+    /**
+     * A channel over a byte array that counts the bytes that are read.
+     */
+    static class CountingChannel implements SeekableByteChannel {
+
+        long read;
+        private final byte[] data;
+        private int pos;
+
+        CountingChannel(byte[] data) {
+            this.data = data;
+        }
+
+        public int read(ByteBuffer dst) {
+            if (pos >= data.length) {
+                return -1;
+            }
+            int len = Math.min(dst.remaining(), data.length - pos);
+            dst.put(data, pos, len);
+            pos += len;
+            read += len;
+            return len;
+        }
+
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long position() {
+            return pos;
+        }
+
+        public SeekableByteChannel position(long newPosition) {
+            pos = (int) newPosition;
+            return this;
+        }
+
+        public long size() {
+            return data.length;
+        }
+
+        public SeekableByteChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+            // nothing to do
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mp3transform.Bitstream;
+import org.mp3transform.Crc16;
+import org.mp3transform.DecodeReport;
+import org.mp3transform.Decoder;
+import org.mp3transform.Header;
+import org.mp3transform.PcmOutput;
+
+/**
+ * Test the layer I and layer II decoders, and compare their speed with layer
+ * III. The same random subband samples are coded as layer II (384 kbit/s),
+ * and as layer I (448 kbit/s, three frames for each layer II frame), in joint
+ * stereo and with CRC. Only quantizations that exist in both layers are
+ * used, so both streams must decode to exactly the same audio.
+ */
+public class TestLayers {
+
+    private static final int LAYER1_FRAME_SIZE = 484;
+    private static final int LAYER2_FRAME_SIZE = 1253;
+    private static final int LAYER2_LIMIT = 30;
+
+    /**
+     * The layer II allocation (minus one) for each number of bits (the levels
+     * are 2^bits - 1), in subbands 0-2, 3-10, 11-22 and 23-29 of ISO/IEC
+     * 11172-3 table B.2b.
+     */
+    private static final int[][] LAYER2_ALLOCATION = {
+            { -1, -1, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13 },
+            { -1, -1, 0, 2, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13 },
+            { -1, -1, 0, 2, 4, 5 },
+            { -1, -1, 0 } };
+
+    private final ByteArrayOutputStream layer1 = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream layer2 = new ByteArrayOutputStream();
+    private final int[][] bits = new int[2][32];
+    private final int[][][] scaleFactors = new int[2][32][3];
+    private final int[][] scfsi = new int[2][32];
+    private final int[][][] codes = new int[36][2][32];
+    private int bound;
+    private ByteArrayOutputStream out;
+    private long buffer;
+    private int bufferBits;
+
+    public static void main(String... args) throws Exception {
+        int frames = 400;
+        TestLayers t = new TestLayers();
+        Random r = new Random(1);
+        for (int i = 0; i < frames; i++) {
+            t.createFrames(r);
+        }
+        byte[] l1 = t.layer1.toByteArray();
+        byte[] l2 = t.layer2.toByteArray();
+        byte[] pcm1 = decode(l1, 1, null);
+        byte[] pcm2 = decode(l2, 2, null);
+        if (pcm1.length != frames * 1152 * 4 || !Arrays.equals(pcm1, pcm2)) {
+            throw new Error("layer I: " + pcm1.length + " layer II: " + pcm2.length + " bytes");
+        }
+        // a bit error in the bit allocation of one frame
+        byte[] corrupt = l2.clone();
+        corrupt[LAYER2_FRAME_SIZE * 10 + 7] ^= 4;
+        DecodeReport report = new DecodeReport("test");
+        byte[] pcm = decode(corrupt, 2, report);
+        if (report.getErrorCount() != 1 || !DecodeReport.CRC_ERROR.equals(report.getErrors().get(0).getType())
+                || pcm.length != pcm2.length) {
+            throw new Error(report.toString());
+        }
+        int loops = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        benchmark(l1, l2, frames, loops);
+    }
+
+    private static byte[] decode(byte[] data, int layer, DecodeReport report) throws IOException {
+        final ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        Decoder decoder = new Decoder();
+        if (report != null) {
+            decoder.setResilient(report, Decoder.CONCEAL_MUTE);
+        }
+        decoder.setCheckCrc(true);
+        decoder.initOutput(new PcmOutput() {
+            public void open(int frequency, int channels) {
+            }
+
+            public void write(byte[] b, int offset, int length) {
+                pcm.write(b, offset, length);
+            }
+
+            public void close() {
+            }
+        }, 2);
+        Bitstream stream = new Bitstream(new ByteArrayInputStream(data));
+        while (true) {
+            Header header = stream.readFrame();
+            if (header == null) {
+                break;
+            }
+            if (header.layer() != layer) {
+                throw new Error("layer " + header.layer());
+            }
+            decoder.decodeFrame(header, stream);
+            stream.closeFrame();
+        }
+        return pcm.toByteArray();
+    }
+
+    private static void benchmark(byte[] l1, byte[] l2, int frames, int loops) throws Exception {
+        byte[] l3 = new TestCrc().createStream(frames, 0, new Random(1));
+        long[] time = new long[3];
+        for (int i = 0; i < loops; i++) {
+            long start = System.nanoTime();
+            decode(l1, 1, null);
+            time[0] += System.nanoTime() - start;
+            start = System.nanoTime();
+            decode(l2, 2, null);
+            time[1] += System.nanoTime() - start;
+            start = System.nanoTime();
+            TestCrc.decode(l3, false);
+            time[2] += System.nanoTime() - start;
+        }
+        long n = (long) frames * loops;
+        System.out.println("decode per 1152 samples: layer I: " + time[0] / n + " ns, layer II: " + time[1] / n
+                + " ns, layer III: " + time[2] / n + " ns");
+    }
+
+    private void createFrames(Random r) {
+        int modeExtension = r.nextInt(4);
+        bound = 4 + 4 * modeExtension;
+        for (int sb = 0; sb < 32; sb++) {
+            for (int ch = 0; ch < 2; ch++) {
+                scfsi[ch][sb] = r.nextInt(4);
+                if (sb >= LAYER2_LIMIT || (ch == 1 && sb >= bound)) {
+                    bits[ch][sb] = sb < LAYER2_LIMIT ? bits[0][sb] : 0;
+                    continue;
+                }
+                int[] allocation = LAYER2_ALLOCATION[range(sb)];
+                bits[ch][sb] = r.nextInt(4) == 0 ? 0 : 2 + r.nextInt(Math.min(8, allocation.length - 2));
+            }
+        }
+        while (layer1Bits() > LAYER1_FRAME_SIZE * 8 || layer2Bits() > LAYER2_FRAME_SIZE * 8) {
+            int sb = r.nextInt(LAYER2_LIMIT);
+            bits[0][sb] = bits[1][sb] = 0;
+        }
+        for (int sb = 0; sb < 32; sb++) {
+            for (int ch = 0; ch < 2; ch++) {
+                int[] sf = scaleFactors[ch][sb];
+                for (int i = 0; i < 3; i++) {
+                    sf[i] = r.nextInt(63);
+                }
+                switch (scfsi[ch][sb]) {
+                case 1:
+                    sf[1] = sf[0];
+                    break;
+                case 2:
+                    sf[1] = sf[2] = sf[0];
+                    break;
+                case 3:
+                    sf[2] = sf[1];
+                    break;
+                default:
+                }
+                for (int row = 0; row < 36; row++) {
+                    if (ch == 0 || sb < bound) {
+                        codes[row][ch][sb] = bits[ch][sb] == 0 ? 0 : r.nextInt((1 << bits[ch][sb]) - 1);
+                    } else {
+                        codes[row][ch][sb] = codes[row][0][sb];
+                    }
+                }
+            }
+        }
+        writeLayer2(modeExtension);
+        for (int part = 0; part < 3; part++) {
+            writeLayer1(modeExtension, part);
+        }
+    }
+
+    private static int range(int sb) {
+        return sb < 3 ? 0 : sb < 11 ? 1 : sb < 23 ? 2 : 3;
+    }
+
+    private static int allocationBits(int sb) {
+        return sb < 11 ? 4 : sb < 23 ? 3 : 2;
+    }
+
+    private int layer1Bits() {
+        int count = 48;
+        for (int sb = 0; sb < 32; sb++) {
+            for (int ch = 0; ch < 2; ch++) {
+                if (ch == 0 || sb < bound) {
+                    count += 4 + 12 * bits[ch][sb];
+                }
+                count += bits[ch][sb] == 0 ? 0 : 6;
+            }
+        }
+        return count;
+    }
+
+    private int layer2Bits() {
+        int count = 48;
+        for (int sb = 0; sb < LAYER2_LIMIT; sb++) {
+            for (int ch = 0; ch < 2; ch++) {
+                if (ch == 0 || sb < bound) {
+                    count += allocationBits(sb) + 36 * bits[ch][sb];
+                }
+                count += bits[ch][sb] == 0 ? 0 : 2 + 18;
+            }
+        }
+        return count;
+    }
+
+    private void writeLayer2(int modeExtension) {
+        startFrame(0xfffc, modeExtension);
+        for (int sb = 0; sb < LAYER2_LIMIT; sb++) {
+            for (int ch = 0; ch < (sb < bound ? 2 : 1); ch++) {
+                int b = bits[ch][sb];
+                put(b == 0 ? 0 : LAYER2_ALLOCATION[range(sb)][b] + 1, allocationBits(sb));
+            }
+        }
+        for (int sb = 0; sb < LAYER2_LIMIT; sb++) {
+            for (int ch = 0; ch < 2; ch++) {
+                if (bits[ch][sb] != 0) {
+                    put(scfsi[ch][sb], 2);
+                }
+            }
+        }
+        int protectedBits = out.size() * 8 + bufferBits - 48;
+        for (int sb = 0; sb < LAYER2_LIMIT; sb++) {
+            for (int ch = 0; ch < 2; ch++) {
+                if (bits[ch][sb] != 0) {
+                    int[] sf = scaleFactors[ch][sb];
+                    switch (scfsi[ch][sb]) {
+                    case 0:
+                        put(sf[0], 6);
+                        put(sf[1], 6);
+                        put(sf[2], 6);
+                        break;
+                    case 1:
+                    case 3:
+                        put(sf[0], 6);
+                        put(sf[2], 6);
+                        break;
+                    default:
+                        put(sf[0], 6);
+                    }
+                }
+            }
+        }
+        for (int row = 0; row < 36; row += 3) {
+            for (int sb = 0; sb < LAYER2_LIMIT; sb++) {
+                for (int ch = 0; ch < (sb < bound ? 2 : 1); ch++) {
+                    int b = bits[ch][sb];
+                    if (b == 2) {
+                        // three levels: grouped
+                        put(codes[row][ch][sb] + 3 * (codes[row + 1][ch][sb] + 3 * codes[row + 2][ch][sb]), 5);
+                    } else if (b != 0) {
+                        for (int i = 0; i < 3; i++) {
+                            put(codes[row + i][ch][sb], b);
+                        }
+                    }
+                }
+            }
+        }
+        endFrame(layer2, LAYER2_FRAME_SIZE, protectedBits);
+    }
+
+    private void writeLayer1(int modeExtension, int part) {
+        startFrame(0xfffe, modeExtension);
+        for (int sb = 0; sb < 32; sb++) {
+            for (int ch = 0; ch < (sb < bound ? 2 : 1); ch++) {
+                put(bits[ch][sb] == 0 ? 0 : bits[ch][sb] - 1, 4);
+            }
+        }
+        int protectedBits = out.size() * 8 + bufferBits - 48;
+        for (int sb = 0; sb < 32; sb++) {
+            for (int ch = 0; ch < 2; ch++) {
+                if (bits[ch][sb] != 0) {
+                    put(scaleFactors[ch][sb][part], 6);
+                }
+            }
+        }
+        for (int row = part * 12; row < part * 12 + 12; row++) {
+            for (int sb = 0; sb < 32; sb++) {
+                for (int ch = 0; ch < (sb < bound ? 2 : 1); ch++) {
+                    if (bits[ch][sb] != 0) {
+                        put(codes[row][ch][sb], bits[ch][sb]);
+                    }
+                }
+            }
+        }
+        endFrame(layer1, LAYER1_FRAME_SIZE, protectedBits);
+    }
+
+    /**
+     * Write the header (MPEG 1, protected, 44.1 kHz, joint stereo, the
+     * highest bitrate) and a placeholder for the CRC.
+     */
+    private void startFrame(int sync, int modeExtension) {
+        out = new ByteArrayOutputStream();
+        put(sync, 16);
+        put(0xe0, 8);
+        put(0x40 | (modeExtension << 4), 8);
+        put(0, 16);
+    }
+
+    private void endFrame(ByteArrayOutputStream target, int frameSize, int protectedBits) {
+        while (bufferBits != 0) {
+            put(0, 1);
+        }
+        byte[] frame = Arrays.copyOf(out.toByteArray(), frameSize);
+        int crc = Crc16.update(Crc16.INIT, frame, 2, 2);
+        crc = Crc16.update(crc, frame, 6, protectedBits / 8);
+        crc = Crc16.updateBits(crc, (frame[6 + protectedBits / 8] & 0xff) >> (8 - protectedBits % 8),
+                protectedBits % 8);
+        frame[4] = (byte) (crc >> 8);
+        frame[5] = (byte) crc;
+        target.write(frame, 0, frame.length);
+    }
+
+    private void put(int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            buffer = (buffer << 1) | ((value >> i) & 1);
+            if (++bufferBits == 8) {
+                out.write((int) buffer);
+                buffer = 0;
+                bufferBits = 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package org.mp3transform.test;
+
+import org.mp3transform.LoudnessMeter;
+
+/**
+ * Test the loudness meter with the reference signals of ITU-R BS.1770, the
+ * gating, the true peak, and the album values; and measure its cost.
+ */
+public class TestLoudnessMeter {
+
+    private static final int RATE = 48000;
+
+    public static void main(String... args) throws Exception {
+        testReference();
+        testTruePeak();
+        testGating();
+        testAlbum();
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        benchmark(seconds);
+    }
+
+    /**
+     * A full scale 997 Hz sine is -3.01 LUFS in one channel, and 0 LUFS in
+     * both channels.
+     */
+    private static void testReference() {
+        for (int channels = 1; channels <= 2; channels++) {
+            LoudnessMeter m = new LoudnessMeter();
+            m.open(RATE, channels);
+            write(m, channels, 1.0, 10);
+            double expected = channels == 1 ? -3.01 : 0.0;
+            assertNear(expected, m.getIntegratedLoudness(), 0.01, channels + " channels");
+            assertNear(-18 - expected, m.getTrackGain(), 0.01, "track gain");
+            assertNear(0, m.getTruePeak(), 0.01, "true peak");
+        }
+    }
+
+    /**
+     * A sine at a quarter of the sample rate, at 45 degrees: the samples are
+     * at 0.707, but the signal between them reaches full scale.
+     */
+    private static void testTruePeak() {
+        double[] data = new double[RATE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = Math.sin(Math.PI / 2 * i + Math.PI / 4);
+        }
+        LoudnessMeter m = new LoudnessMeter();
+        m.open(RATE, 1);
+        m.write(data, 0, data.length);
+        assertNear(Math.sqrt(0.5), m.getSamplePeak(), 1e-6, "sample peak");
+        assertNear(0, m.getTruePeak(), 0.2, "true peak");
+        m = new LoudnessMeter();
+        m.setTruePeak(false);
+        m.open(RATE, 1);
+        m.write(data, 0, data.length);
+        assertNear(-3.01, m.getTruePeak(), 0.01, "sample peak only");
+    }
+
+    /**
+     * Silence is below the absolute gate, and a section 40 dB below the tone
+     * is below the relative gate; neither lowers the loudness. The blocks at
+     * the boundaries lower it slightly.
+     */
+    private static void testGating() {
+        LoudnessMeter m = new LoudnessMeter();
+        m.open(RATE, 1);
+        write(m, 1, 0.1, 5);
+        write(m, 1, 0, 5);
+        write(m, 1, 0.1, 5);
+        write(m, 1, 0.001, 5);
+        double loudness = m.getIntegratedLoudness();
+        if (loudness > -23.0 || loudness < -23.5) {
+            throw new Error("gated loudness: " + loudness);
+        }
+        m = new LoudnessMeter();
+        m.open(RATE, 1);
+        write(m, 1, 0, 5);
+        assertNear(-70, m.getIntegratedLoudness(), 0, "silence");
+    }
+
+    /**
+     * Two tracks of the same length, 3 dB apart, are 1.25 dB below the
+     * louder one; a track 20 dB below the others is gated.
+     */
+    private static void testAlbum() {
+        LoudnessMeter.Blocks album = new LoudnessMeter.Blocks();
+        double[] levels = { 0.1, 0.1 / Math.sqrt(2), 0.01 };
+        for (int i = 0; i < levels.length; i++) {
+            LoudnessMeter m = new LoudnessMeter();
+            m.open(RATE, 1);
+            write(m, 1, levels[i], 10);
+            album.add(m);
+            if (i == 1) {
+                double expected = -23.01 + 10 * Math.log10(0.75);
+                assertNear(expected, album.getIntegratedLoudness(), 0.01, "album");
+                assertNear(-18 - expected, album.getGain(), 0.01, "album gain");
+            }
+        }
+        assertNear(-23.01 + 10 * Math.log10(0.75), album.getIntegratedLoudness(), 0.01, "album, gated");
+        assertNear(0.1, album.getPeak(), 0.001, "album peak");
+    }
+
+    private static void benchmark(int seconds) {
+        int channels = 2;
+        double[] data = new double[1152 * channels];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = 0.5 * Math.sin(i * 0.1);
+        }
+        int frames = seconds * 44100 / 1152;
+        long[] time = new long[2];
+        for (int loop = 0; loop < 3; loop++) {
+            for (int j = 0; j < 2; j++) {
+                LoudnessMeter m = new LoudnessMeter();
+                m.setTruePeak(j == 1);
+                m.open(44100, channels);
+                long start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    m.write(data, 0, data.length);
+                }
+                time[j] = System.nanoTime() - start;
+            }
+        }
+        long n = (long) frames * 1152 * channels;
+        System.out.println(seconds + " s of stereo audio: loudness " + time[0] / 1000000 + " ms ("
+                + time[0] / n + " ns/sample), with true peak " + time[1] / 1000000 + " ms ("
+                + time[1] / n + " ns/sample)");
+    }
+
+    /**
+     * Write a 997 Hz sine to all channels.
+     */
+    private static void write(LoudnessMeter m, int channels, double amplitude, int seconds) {
+        double[] data = new double[RATE * channels];
+        for (int s = 0; s < seconds; s++) {
+            for (int i = 0; i < RATE; i++) {
+                double x = amplitude * Math.sin(2 * Math.PI * 997 * i / RATE);
+                for (int ch = 0; ch < channels; ch++) {
+                    data[i * channels + ch] = x;
+                }
+            }
+            m.write(data, 0, data.length);
+        }
+    }
+
+    private static void assertNear(double expected, double got, double delta, String message) {
+        if (Math.abs(expected - got) > delta) {
+            throw new Error(message + ": expected " + expected + " got " + got);
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+package org.mp3transform.test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mp3transform.PcmCache;
+
+/**
+ * Test the decoded audio cache: the least recently used entries are evicted,
+ * the key changes with the source file, the counters, and that truncated and
+ * older spill files are not used.
+ */
+public class TestPcmCache {
+
+    private static final int DATA = 1000, HEADER_SIZE = 44, ENTRY = HEADER_SIZE + DATA;
+
+    public static void main(String... args) throws Exception {
+        File root = Files.createTempDirectory("cache").toFile();
+        try {
+            File dir = new File(root, "cache");
+            File a = source(root, "a"), b = source(root, "b"), c = source(root, "c"), d = source(root, "d");
+            PcmCache cache = new PcmCache(dir, 3 * ENTRY, false);
+            put(cache, a, 1);
+            put(cache, b, 2);
+            put(cache, c, 3);
+            check(cache, a, 1);
+            // b is the least recently used entry
+            put(cache, d, 4);
+            if (cache.get(b) != null) {
+                throw new Error();
+            }
+            check(cache, c, 3);
+            check(cache, d, 4);
+            checkCounters(cache, 3, 1, 1, 3 * ENTRY);
+
+            // a writer that is not committed doesn't add an entry
+            PcmCache.Writer writer = cache.create(b);
+            writer.open(44100, 2);
+            writer.write(new byte[DATA], 0, DATA);
+            writer.close();
+            if (cache.get(b) != null || dir.listFiles().length != 3) {
+                throw new Error();
+            }
+            checkCounters(cache, 3, 2, 1, 3 * ENTRY);
+
+            // the key changes with the modification time and the size
+            a.setLastModified(a.lastModified() + 2000);
+            if (cache.get(a) != null) {
+                throw new Error();
+            }
+            long time = c.lastModified();
+            Files.write(c.toPath(), new byte[11]);
+            c.setLastModified(time);
+            if (cache.get(c) != null) {
+                throw new Error();
+            }
+            // the last use is the modification time of the spill file
+            Thread.sleep(10);
+            check(cache, d, 4);
+            checkCounters(cache, 4, 4, 1, 3 * ENTRY);
+
+            // when the cache is opened again, the entries are kept, and the
+            // least recently used ones are evicted if it is too large
+            cache = new PcmCache(dir, 2 * ENTRY, false);
+            checkCounters(cache, 0, 0, 1, 2 * ENTRY);
+            check(cache, d, 4);
+
+            // truncated, and an older format
+            File spill = put(cache, dir, a, 5);
+            RandomAccessFile f = new RandomAccessFile(spill, "rw");
+            f.setLength(spill.length() - 10);
+            f.close();
+            if (cache.get(a) != null || spill.exists()) {
+                throw new Error();
+            }
+            checkCounters(cache, 1, 1, 2, ENTRY);
+            spill = put(cache, dir, a, 6);
+            f = new RandomAccessFile(spill, "rw");
+            f.writeInt(0x50434d32);
+            f.close();
+            if (cache.get(a) != null || spill.exists()) {
+                throw new Error();
+            }
+            checkCounters(cache, 1, 2, 2, ENTRY);
+            check(cache, d, 4);
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static File source(File dir, String name) throws IOException {
+        File f = new File(dir, name + ".mp3");
+        Files.write(f.toPath(), name.getBytes());
+        return f;
+    }
+
+    private static void put(PcmCache cache, File source, int value) throws IOException {
+        byte[] data = new byte[DATA];
+        Arrays.fill(data, (byte) value);
+        PcmCache.Writer writer = cache.create(source);
+        writer.setSilence(-60, value, value * 2);
+        writer.open(44100, 2);
+        writer.write(data, 0, DATA);
+        writer.commit();
+        writer.close();
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @return the new spill file
+     */
+    private static File put(PcmCache cache, File dir, File source, int value) throws IOException {
+        List<File> before = Arrays.asList(dir.listFiles());
+        put(cache, source, value);
+        for (File f : dir.listFiles()) {
+            if (!before.contains(f)) {
+                return f;
+            }
+        }
+        throw new Error();
+    }
+
+    private static void check(PcmCache cache, File source, int value) throws IOException {
+        PcmCache.Entry entry = cache.get(source);
+        if (entry == null) {
+            throw new Error(source.toString());
+        }
+        if (entry.getFrequency() != 44100 || entry.getChannels() != 2 || entry.getLength() != DATA
+                || entry.getSilenceThreshold() != -60 || entry.getLeadingSilence() != value
+                || entry.getTrailingSilence() != value * 2) {
+            throw new Error(source.toString());
+        }
+        byte[] data = new byte[DATA];
+        DataInputStream in = new DataInputStream(entry.openData());
+        try {
+            in.readFully(data);
+            if (in.read() != -1) {
+                throw new Error();
+            }
+        } finally {
+            in.close();
+        }
+        for (byte x : data) {
+            if (x != value) {
+                throw new Error(source.toString());
+            }
+        }
+    }
+
+    private static void checkCounters(PcmCache cache, int hits, int misses, int evictions, long size) {
+        if (cache.getHits() != hits || cache.getMisses() != misses || cache.getEvictions() != evictions
+                || cache.getSize() != size) {
+            throw new Error(cache.toString());
+        }
+    }
+
+    private static void delete(File f) {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File x : list) {
+                delete(x);
+            }
+        }
+        f.delete();
+    }
+
+}
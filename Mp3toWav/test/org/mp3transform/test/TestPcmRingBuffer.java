@@ -0,0 +1,85 @@
+package org.mp3transform.test;
+
+import org.mp3transform.PcmRingBuffer;
+
+public class TestPcmRingBuffer {
+
+    public static void main(String... args) throws Exception {
+        testOrder(5000, 4608, 3528);
+        testOrder(1 << 16, 4608, 3528);
+        testOrder(4608, 4608, 100);
+        testCancel();
+    }
+
+    private static void testOrder(int capacity, final int writeSize, int readSize) throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(capacity);
+        if (ring.capacity() != capacity) {
+            throw new Error("capacity: " + ring.capacity());
+        }
+        final int count = 2000;
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    byte[] data = new byte[writeSize];
+                    for (int i = 0; i < count; i++) {
+                        for (int j = 0; j < data.length; j++) {
+                            data[j] = (byte) (i * 7 + j);
+                        }
+                        ring.write(data, 0, data.length);
+                    }
+                    ring.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+        byte[] data = new byte[readSize];
+        long pos = 0;
+        while (true) {
+            if (ring.available() > capacity) {
+                throw new Error("available: " + ring.available());
+            }
+            int len = ring.read(data, 0, data.length);
+            if (len < 0) {
+                break;
+            }
+            for (int k = 0; k < len; k++, pos++) {
+                int i = (int) (pos / writeSize), j = (int) (pos % writeSize);
+                if (data[k] != (byte) (i * 7 + j)) {
+                    throw new Error("mismatch at " + pos);
+                }
+            }
+        }
+        writer.join();
+        if (pos != (long) count * writeSize) {
+            throw new Error("expected: " + count * writeSize + " got: " + pos);
+        }
+    }
+
+    private static void testCancel() throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(4096);
+        final boolean[] result = new boolean[] { true };
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    byte[] data = new byte[4096];
+                    while (ring.write(data, 0, data.length)) {
+                        // until cancelled
+                    }
+                    result[0] = false;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(100);
+        ring.cancel();
+        writer.join(10000);
+        if (result[0] || ring.read(new byte[10], 0, 10) != -1) {
+            throw new Error("not cancelled");
+        }
+    }
+
+}
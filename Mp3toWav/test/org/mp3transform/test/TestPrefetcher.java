@@ -0,0 +1,64 @@
+package org.mp3transform.test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.mp3transform.io.Prefetcher;
+
+/**
+ * Test that prefetched files that are not opened don't keep the memory.
+ */
+public class TestPrefetcher {
+
+    private static final int WINDOW = 2 * 1024;
+
+    public static void main(String... args) throws Exception {
+        File dir = Files.createTempDirectory("prefetch").toFile();
+        try {
+            File[] files = new File[5];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new File(dir, i + ".mp3");
+                byte[] data = new byte[3000];
+                data[0] = (byte) i;
+                Files.write(files[i].toPath(), data);
+            }
+            // room for two windows
+            Prefetcher prefetcher = new Prefetcher(1024, 2, 2 * WINDOW);
+            prefetcher.prefetch(files[0]);
+            prefetcher.prefetch(files[1]);
+            // the oldest is closed
+            prefetcher.prefetch(files[2]);
+            if (prefetcher.getUsedMemory() != 2 * WINDOW) {
+                throw new Error("used: " + prefetcher.getUsedMemory());
+            }
+            prefetcher.discard(files[1]);
+            if (prefetcher.getUsedMemory() != WINDOW) {
+                throw new Error("used: " + prefetcher.getUsedMemory());
+            }
+            // an open file is not closed
+            InputStream in = prefetcher.open(files[2]);
+            prefetcher.prefetch(files[3]);
+            prefetcher.prefetch(files[4]);
+            if (prefetcher.getUsedMemory() != 2 * WINDOW || in.read() != 2) {
+                throw new Error("used: " + prefetcher.getUsedMemory());
+            }
+            in.close();
+            InputStream in4 = prefetcher.open(files[4]);
+            if (in4.read() != 4) {
+                throw new Error();
+            }
+            in4.close();
+            prefetcher.clear();
+            if (prefetcher.getUsedMemory() != 0) {
+                throw new Error("used: " + prefetcher.getUsedMemory());
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package org.mp3transform.test;
+
+import org.mp3transform.PcmOutput;
+import org.mp3transform.Resampler;
+
+/**
+ * Quality and throughput test for the resampler. A sine wave is converted
+ * from each MPEG sample rate to 48 kHz and compared with the ideal result.
+ */
+public class TestResampler {
+
+    private static final int[] RATES = { 8000, 11025, 12000, 16000, 22050, 24000, 32000, 44100, 48000 };
+    private static final int TARGET = 48000;
+
+    public static void main(String... args) throws Exception {
+        for (int rate : RATES) {
+            testQuality(rate, 1000);
+            testQuality(rate, rate * 0.35);
+        }
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        benchmark(44100, seconds);
+        benchmark(22050, seconds);
+    }
+
+    private static void testQuality(int source, double tone) throws Exception {
+        int channels = 2;
+        int samples = source;
+        Sink sink = new Sink((TARGET + 64) * 2 * channels);
+        Resampler r = new Resampler(sink, source, TARGET, channels);
+        r.open(source, channels);
+        byte[] block = new byte[1152 * 2 * channels];
+        int pos = 0;
+        while (pos < samples) {
+            int len = Math.min(1152, samples - pos);
+            for (int i = 0; i < len; i++) {
+                short s = (short) Math.round(16000 * Math.sin(2 * Math.PI * tone * (pos + i) / source));
+                for (int ch = 0; ch < channels; ch++) {
+                    block[(i * channels + ch) * 2] = (byte) (s >> 8);
+                    block[(i * channels + ch) * 2 + 1] = (byte) s;
+                }
+            }
+            r.write(block, 0, len * 2 * channels);
+            pos += len;
+        }
+        r.close();
+        int got = sink.length / 2 / channels;
+        long expected = (long) samples * TARGET / source;
+        if (Math.abs(got - expected) > 1) {
+            throw new Error(source + ": expected " + expected + " samples, got " + got);
+        }
+        double signal = 0, noise = 0;
+        for (int i = Resampler.TAPS * 4; i < got - Resampler.TAPS * 4; i++) {
+            double ideal = 16000 * Math.sin(2 * Math.PI * tone * i / TARGET);
+            int p = i * channels * 2;
+            double x = (short) ((sink.data[p] << 8) | (sink.data[p + 1] & 0xff));
+            signal += ideal * ideal;
+            noise += (x - ideal) * (x - ideal);
+        }
+        double snr = 10 * Math.log10(signal / noise);
+        System.out.println(source + " Hz, tone " + tone + " Hz: SNR " + Math.round(snr) + " dB");
+        if (snr < 70) {
+            throw new Error(source + " Hz, tone " + tone + " Hz: SNR " + snr);
+        }
+    }
+
+    private static void benchmark(int source, int seconds) throws Exception {
+        int channels = 2;
+        Sink sink = new Sink(0);
+        Resampler r = new Resampler(sink, source, TARGET, channels);
+        byte[] block = new byte[1152 * 2 * channels];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) (i * 31);
+        }
+        int frames = seconds * source / 1152;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            r.write(block, 0, block.length);
+        }
+        r.close();
+        long time = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println(source + " to " + TARGET + " Hz: " + seconds + " s of audio in " + time + " ms; "
+                + (seconds * 1000 / time) + "x real time");
+    }
+
+    /**
+     * Collects the output (or only counts it, if the capacity is 0).
+     */
+    static class Sink implements PcmOutput {
+        byte[] data;
+        int length;
+
+        Sink(int capacity) {
+            data = new byte[capacity];
+        }
+
+        public void open(int frequency, int channels) {
+        }
+
+        public void write(byte[] buff, int offset, int len) {
+            if (data.length > 0) {
+                System.arraycopy(buff, offset, data, length, len);
+            }
+            length += len;
+        }
+
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,328 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mp3transform.Bitstream;
+import org.mp3transform.Decoder;
+import org.mp3transform.Header;
+import org.mp3transform.PcmCache;
+import org.mp3transform.PcmOutput;
+import org.mp3transform.SilenceDetector;
+import org.mp3transform.wav.OutputFormat;
+import org.mp3transform.wav.WavConverter;
+
+/**
+ * Test the silence detection and trimming. Streams with sound between silent
+ * frames are created: layer III with one spectral line per granule, and
+ * layer II with random subband samples. The level of the decoded sound is
+ * measured, and the detector must find the sound at a threshold a bit below
+ * that level, and not at a threshold a bit above (this checks the full
+ * scale constants).
+ */
+public class TestSilenceDetector {
+
+    private static final int SILENT_FRAMES = 10, TONE_FRAMES = 20;
+    private static final int FRAME_SAMPLES = 1152, GRANULE_SAMPLES = 576;
+
+    public static void main(String... args) throws Exception {
+        byte[] layer3 = createStream(SILENT_FRAMES, TONE_FRAMES, 190);
+        // the overlap of the last granule, and the delay of the synthesis
+        check(layer3, 2 * GRANULE_SAMPLES);
+        Random r = new Random(1);
+        ByteArrayOutputStream layer2 = new ByteArrayOutputStream();
+        for (int i = 0; i < SILENT_FRAMES * 2 + TONE_FRAMES; i++) {
+            byte[] frame = createLayer2Frame(i >= SILENT_FRAMES && i < SILENT_FRAMES + TONE_FRAMES, r);
+            layer2.write(frame, 0, frame.length);
+        }
+        // the delay of the synthesis (two blocks of 384 samples)
+        check(layer2.toByteArray(), 2 * 384);
+        testTrim(layer3);
+    }
+
+    /**
+     * Check the detected silence at thresholds around the level of the
+     * sound, and that the sound is within the detected range.
+     *
+     * @param mp3 the stream
+     * @param margin the number of samples that are kept after the end of
+     *            the sound
+     */
+    private static void check(byte[] mp3, int margin) throws IOException {
+        byte[] pcm = decode(mp3);
+        int total = (2 * SILENT_FRAMES + TONE_FRAMES) * FRAME_SAMPLES;
+        if (pcm.length != total * 2) {
+            throw new Error("samples: " + pcm.length / 2);
+        }
+        double level = level(pcm);
+        SilenceDetector d = detect(mp3, level - 2);
+        if (d.isSilent() || d.getSampleCount() != total) {
+            throw new Error("level: " + level);
+        }
+        if (!detect(mp3, level + 2).isSilent()) {
+            throw new Error("level: " + level);
+        }
+        long start = d.getLeadingSilence();
+        long end = total - d.getTrailingSilence();
+        if (start != SILENT_FRAMES * FRAME_SAMPLES || end != (SILENT_FRAMES + TONE_FRAMES) * FRAME_SAMPLES + margin) {
+            throw new Error("start: " + start + " end: " + end);
+        }
+        // nothing is cut
+        for (int i = 0; i < total; i++) {
+            if ((i < start || i >= end) && (pcm[i * 2] != 0 || pcm[i * 2 + 1] != 0)) {
+                throw new Error("sound at " + i);
+            }
+        }
+    }
+
+    /**
+     * Trim the silence when converting, with and without the cache.
+     */
+    private static void testTrim(byte[] mp3) throws IOException {
+        byte[] pcm = decode(mp3);
+        double threshold = level(pcm) - 10;
+        SilenceDetector d = detect(mp3, threshold);
+        int start = (int) d.getLeadingSilence();
+        int end = (int) (d.getSampleCount() - d.getTrailingSilence());
+        byte[] expected = Arrays.copyOfRange(pcm, start * 2, end * 2);
+        File dir = Files.createTempDirectory("silence").toFile();
+        try {
+            File source = new File(dir, "in.mp3");
+            Files.write(source.toPath(), mp3);
+            byte[] got = convert(source, dir, threshold, null);
+            if (!Arrays.equals(expected, got)) {
+                throw new Error("trimmed: " + got.length / 2);
+            }
+            // the silence is kept in the cache, the source is not read again
+            PcmCache cache = new PcmCache(new File(dir, "cache"), 1 << 24, false);
+            got = convert(source, dir, threshold, cache);
+            long lastModified = source.lastModified();
+            Files.write(source.toPath(), new byte[mp3.length]);
+            source.setLastModified(lastModified);
+            byte[] cached = convert(source, dir, threshold, cache);
+            if (cache.getHits() != 1 || !Arrays.equals(expected, got) || !Arrays.equals(expected, cached)) {
+                throw new Error(cache + " " + got.length / 2 + " " + cached.length / 2);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static SilenceDetector detect(byte[] mp3, double thresholdDb) throws IOException {
+        return SilenceDetector.detect(new ByteArrayInputStream(mp3), thresholdDb, 1);
+    }
+
+    private static byte[] convert(File source, File dir, double thresholdDb, PcmCache cache)
+            throws IOException {
+        File out = new File(dir, "out.raw");
+        WavConverter converter = new WavConverter(OutputFormat.parse("rawbe", "16"));
+        converter.setTrimSilence(thresholdDb);
+        if (cache == null) {
+            converter.convert(source.getPath(), out.getPath());
+        } else {
+            converter.convert(source, out.getPath(), cache);
+        }
+        return Files.readAllBytes(out.toPath());
+    }
+
+    /**
+     * The level of the sound (mono 16 bit samples), in dB relative to a full
+     * scale sine. The first and last two frames of the sound are not
+     * measured.
+     */
+    private static double level(byte[] pcm) {
+        int start = (SILENT_FRAMES + 2) * FRAME_SAMPLES;
+        int end = (SILENT_FRAMES + TONE_FRAMES - 2) * FRAME_SAMPLES;
+        double sum = 0;
+        for (int i = start; i < end; i++) {
+            double x = (short) ((pcm[i * 2] << 8) | (pcm[i * 2 + 1] & 0xff));
+            sum += x * x;
+        }
+        return 10 * Math.log10(sum / (end - start) / (32768.0 * 32768.0 / 2));
+    }
+
+    /**
+     * Decode a stream to signed 16 bit big endian samples.
+     */
+    static byte[] decode(byte[] mp3) throws IOException {
+        return decode(mp3, null);
+    }
+
+    /**
+     * Decode a stream to signed 16 bit big endian samples.
+     *
+     * @param decoder the decoder, or null to use a new one
+     */
+    static byte[] decode(byte[] mp3, Decoder decoder) throws IOException {
+        final ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        if (decoder == null) {
+            decoder = new Decoder();
+        }
+        decoder.initOutput(new PcmOutput() {
+            public void open(int frequency, int channels) {
+            }
+
+            public void write(byte[] b, int offset, int length) {
+                pcm.write(b, offset, length);
+            }
+
+            public void close() {
+            }
+        }, 1);
+        Bitstream stream = new Bitstream(new ByteArrayInputStream(mp3));
+        while (true) {
+            Header header = stream.readFrame();
+            if (header == null) {
+                break;
+            }
+            decoder.decodeFrame(header, stream);
+            stream.closeFrame();
+        }
+        return pcm.toByteArray();
+    }
+
+    /**
+     * Create a stream of 128 kbit/s frames: silence, a tone, and silence.
+     */
+    static byte[] createStream(int silentFrames, int toneFrames, int globalGain) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < silentFrames * 2 + toneFrames; i++) {
+            boolean tone = i >= silentFrames && i < silentFrames + toneFrames;
+            byte[] frame = createFrame(9, 417, tone ? 20 : -1, globalGain);
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Create a mono MPEG 1 layer III frame at 44.1 kHz without CRC. Each
+     * granule contains at most one spectral line with the value 1, coded
+     * with Huffman table 1. The main data is in the frame itself (the bit
+     * reservoir is not used).
+     *
+     * @param bitrateIndex the bitrate index, or 0 for free format
+     * @param frameSize the frame size in bytes (without padding)
+     * @param line the index of the spectral line (must be even), or -1 for
+     *            silence
+     * @param globalGain the global gain
+     * @return the frame
+     */
+    static byte[] createFrame(int bitrateIndex, int frameSize, int line, int globalGain) {
+        BitWriter w = new BitWriter();
+        // sync, MPEG 1, layer III, no CRC
+        w.write(0xfffb, 16);
+        // bitrate, 44.1 kHz, no padding, private bit
+        w.write(bitrateIndex, 4);
+        w.write(0, 4);
+        // mono, no copyright, original, no emphasis
+        w.write(0xc0, 8);
+        // main_data_begin, private bits, scfsi
+        w.write(0, 9 + 5 + 4);
+        int pairs = line < 0 ? 0 : line / 2 + 1;
+        // (0, 0) is coded as 1, (1, 0) as 01, followed by the sign
+        int bits = pairs == 0 ? 0 : pairs - 1 + 3;
+        for (int gr = 0; gr < 2; gr++) {
+            w.write(bits, 12);
+            w.write(pairs, 9);
+            w.write(globalGain, 8);
+            // scalefac_compress, window_switching_flag
+            w.write(0, 4 + 1);
+            // table_select
+            w.write(1, 5);
+            w.write(1, 5);
+            w.write(1, 5);
+            // region0_count, region1_count
+            w.write(15, 4);
+            w.write(7, 3);
+            // preflag, scalefac_scale, count1table_select
+            w.write(0, 3);
+        }
+        for (int gr = 0; gr < 2; gr++) {
+            for (int i = 1; i < pairs; i++) {
+                w.write(1, 1);
+            }
+            if (pairs > 0) {
+                w.write(1, 2);
+                w.write(0, 1);
+            }
+        }
+        byte[] data = w.toByteArray();
+        if (data.length > frameSize) {
+            throw new IllegalArgumentException("frame size: " + frameSize);
+        }
+        return Arrays.copyOf(data, frameSize);
+    }
+
+    /**
+     * Create a mono MPEG 1 layer II frame at 44.1 kHz, 192 kbit/s without
+     * CRC. If there is sound, subbands 0 to 10 contain random samples with
+     * 15 levels and the same scale factor.
+     */
+    private static byte[] createLayer2Frame(boolean sound, Random r) {
+        BitWriter w = new BitWriter();
+        w.write(0xfffd, 16);
+        w.write(0xa0, 8);
+        w.write(0xc0, 8);
+        for (int sb = 0; sb < 30; sb++) {
+            // allocation: 15 levels (table B.2b)
+            int a = !sound || sb > 10 ? 0 : sb < 3 ? 3 : 5;
+            w.write(a, sb < 11 ? 4 : sb < 23 ? 3 : 2);
+        }
+        if (sound) {
+            for (int sb = 0; sb < 11; sb++) {
+                // one scale factor for all three parts
+                w.write(2, 2);
+            }
+            for (int sb = 0; sb < 11; sb++) {
+                w.write(12, 6);
+            }
+            for (int row = 0; row < 36; row++) {
+                for (int sb = 0; sb < 11; sb++) {
+                    w.write(r.nextInt(15), 4);
+                }
+            }
+        }
+        return Arrays.copyOf(w.toByteArray(), 626);
+    }
+
+    /**
+     * Writes bits, most significant bit first.
+     */
+    static class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int buffer, bufferBits;
+
+        void write(int value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                buffer = (buffer << 1) | ((value >>> i) & 1);
+                if (++bufferBits == 8) {
+                    out.write(buffer);
+                    buffer = bufferBits = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (bufferBits > 0) {
+                write(0, 8 - bufferBits);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File x : list) {
+                delete(x);
+            }
+        }
+        f.delete();
+    }
+
+}
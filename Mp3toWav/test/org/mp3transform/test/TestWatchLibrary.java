@@ -0,0 +1,96 @@
+package org.mp3transform.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.mp3transform.tools.WatchLibrary;
+
+/**
+ * Test that changes in the library are found and processed: the catalog,
+ * the covers and the index.
+ */
+public class TestWatchLibrary {
+
+    public static void main(String... args) throws Exception {
+        File root = Files.createTempDirectory("library").toFile();
+        WatchLibrary library = null;
+        try {
+            byte[] picture = { 1, 2, 3 };
+            File a = new File(root, "Artist/A");
+            TestExtractMeta.write(new File(a, "1.mp3"), picture, 3);
+            library = new WatchLibrary(root);
+            if (library.start() != 1 || library.getCatalog().size() != 1) {
+                throw new Error();
+            }
+            checkCover(a, picture);
+            checkIndex(root, "Artist/A", true);
+            library.close();
+
+            // changes while not running
+            File b = new File(root, "Artist/B");
+            TestExtractMeta.write(new File(b, "1.mp3"), picture, 3);
+            library = new WatchLibrary(root);
+            if (library.start() != 1 || library.getCatalog().size() != 2) {
+                throw new Error();
+            }
+            checkIndex(root, "Artist/B", true);
+
+            // changes while running
+            File c = new File(root, "Other/C");
+            TestExtractMeta.write(new File(c, "1.mp3"), picture, 3);
+            TestExtractMeta.write(new File(c, "2.mp3"), null, 0);
+            delete(b);
+            if (poll(library) != 2 || library.getCatalog().size() != 3) {
+                throw new Error();
+            }
+            checkCover(c, picture);
+            checkIndex(root, "Other/C", true);
+            checkIndex(root, "Artist/B", false);
+            // own changes (cover, index) are ignored
+            if (library.poll(3, TimeUnit.SECONDS) != 0) {
+                throw new Error();
+            }
+        } finally {
+            if (library != null) {
+                library.close();
+            }
+            delete(root);
+        }
+    }
+
+    private static int poll(WatchLibrary library) throws Exception {
+        for (int i = 0; i < 10; i++) {
+            int count = library.poll(1, TimeUnit.SECONDS);
+            if (count > 0) {
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    private static void checkCover(File dir, byte[] expected) throws Exception {
+        if (!Arrays.equals(expected, Files.readAllBytes(new File(dir, "cover.jpg").toPath()))) {
+            throw new Error(dir.toString());
+        }
+    }
+
+    private static void checkIndex(File root, String album, boolean expected) throws Exception {
+        String html = new String(Files.readAllBytes(new File(root, "index.html").toPath()), "UTF-8");
+        if (html.contains("'" + album + "'") != expected) {
+            throw new Error(album);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File x : list) {
+                delete(x);
+            }
+        }
+        f.delete();
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import org.mp3transform.wav.OutputFormat;
+import org.mp3transform.wav.WavConverter;
+
+/**
+ * Test converting to a different sample rate: the rate in the header, the
+ * number of samples, and that 24 bit output keeps more than 16 bits.
+ */
+public class TestWavConverter {
+
+    private static final int FRAMES = 100;
+
+    public static void main(String... args) throws Exception {
+        File dir = Files.createTempDirectory("convert").toFile();
+        try {
+            File mp3 = new File(dir, "in.mp3");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < FRAMES; i++) {
+                // MPEG 1 layer III, 128 kbit/s, 44.1 kHz, stereo, silent
+                byte[] frame = new byte[417];
+                frame[0] = (byte) 0xff;
+                frame[1] = (byte) 0xfb;
+                frame[2] = (byte) 0x90;
+                out.write(frame);
+            }
+            Files.write(mp3.toPath(), out.toByteArray());
+            int samples = FRAMES * 1152;
+            check(convert(mp3, dir, OutputFormat.WAV_16, 0), 44100, 2, samples);
+            check(convert(mp3, dir, OutputFormat.WAV_16, 44100), 44100, 2, samples);
+            int expected = (int) ((long) samples * 48000 / 44100);
+            check(convert(mp3, dir, OutputFormat.WAV_16, 48000), 48000, 2, expected);
+            check(convert(mp3, dir, OutputFormat.parse("wav", "24"), 48000), 48000, 3, expected);
+            check(convert(mp3, dir, OutputFormat.parse("wav", "32f"), 48000), 48000, 4, expected);
+            expected = (int) ((long) samples * 22050 / 44100);
+            check(convert(mp3, dir, OutputFormat.WAV_16, 22050), 22050, 2, expected);
+            // a tone, mono
+            Files.write(mp3.toPath(), TestSilenceDetector.createStream(0, 40, 190));
+            testResolution(mp3, dir, 0);
+            testResolution(mp3, dir, 48000);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static byte[] convert(File mp3, File dir, OutputFormat format, int rate) throws Exception {
+        File wav = new File(dir, "out.wav");
+        WavConverter converter = new WavConverter(format);
+        converter.setOutputFrequency(rate);
+        converter.convert(mp3.getPath(), wav.getPath());
+        return Files.readAllBytes(wav.toPath());
+    }
+
+    /**
+     * The low byte of 24 bit samples is used, also when resampling.
+     */
+    private static void testResolution(File mp3, File dir, int rate) throws Exception {
+        byte[] wav = convert(mp3, dir, OutputFormat.parse("wav", "24"), rate);
+        int start = dataStart(wav);
+        int samples = (wav.length - start) / 3, nonZero = 0, loud = 0;
+        for (int i = 0, p = start; i < samples; i++, p += 3) {
+            if (wav[p] != 0) {
+                nonZero++;
+            }
+            if (Math.abs(wav[p + 2]) > 2) {
+                loud++;
+            }
+        }
+        if (loud < samples / 2 || nonZero < loud * 9 / 10) {
+            throw new Error("rate " + rate + ": samples: " + samples + " loud: " + loud
+                    + " low byte not zero: " + nonZero);
+        }
+    }
+
+    private static int dataStart(byte[] wav) {
+        ByteBuffer buff = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        for (int pos = 12; pos + 8 <= wav.length;) {
+            if (new String(wav, pos, 4).equals("data")) {
+                return pos + 8;
+            }
+            pos += 8 + buff.getInt(pos + 4);
+        }
+        throw new Error("no data chunk");
+    }
+
+    private static void check(byte[] wav, int rate, int bytesPerSample, int samples) {
+        ByteBuffer buff = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        int gotRate = 0;
+        long dataSize = -1;
+        for (int pos = 12; pos + 8 <= wav.length;) {
+            String id = new String(wav, pos, 4);
+            int size = buff.getInt(pos + 4);
+            if (id.equals("fmt ")) {
+                gotRate = buff.getInt(pos + 12);
+            } else if (id.equals("data")) {
+                dataSize = wav.length - pos - 8;
+                if (size != dataSize) {
+                    throw new Error("data size: " + size + " file: " + dataSize);
+                }
+                break;
+            }
+            pos += 8 + size;
+        }
+        long got = dataSize / 2 / bytesPerSample;
+        if (gotRate != rate || Math.abs(got - samples) > 1) {
+            throw new Error("rate: " + gotRate + " samples: " + got + " expected: " + rate + " " + samples);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.mp3transform.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.mp3transform.Waveform;
+
+/**
+ * Test the waveform builder: each level must be consistent with level 0,
+ * and the waveform must be the same after writing and reading it.
+ */
+public class TestWaveform {
+
+    public static void main(String... args) throws Exception {
+        int channels = 2, samples = 100000;
+        Waveform.Builder builder = new Waveform.Builder(100, 4);
+        builder.open(44100, channels);
+        byte[] block = new byte[1000 * channels * 2];
+        for (int pos = 0; pos < samples; pos += 1000) {
+            for (int i = 0; i < 1000; i++) {
+                double amp = 30000.0 * (pos + i) / samples;
+                for (int ch = 0; ch < channels; ch++) {
+                    short s = (short) (amp * Math.sin((pos + i) * (0.01 + ch * 0.003)));
+                    block[(i * channels + ch) * 2] = (byte) (s >> 8);
+                    block[(i * channels + ch) * 2 + 1] = (byte) s;
+                }
+            }
+            builder.write(block, 0, block.length);
+        }
+        builder.close();
+        Waveform w = builder.getWaveform();
+        check(w, samples);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w.write(out);
+        Waveform w2 = Waveform.read(new ByteArrayInputStream(out.toByteArray()));
+        check(w2, samples);
+        for (int level = 0; level < w.getLevelCount(); level++) {
+            for (int i = 0; i < w.getPointCount(level); i++) {
+                if (w.getMin(level, i) != w2.getMin(level, i) || w.getMax(level, i) != w2.getMax(level, i)
+                        || w.getRms(level, i) != w2.getRms(level, i)) {
+                    throw new Error("level " + level + " point " + i);
+                }
+            }
+        }
+        if (w.getLevel(1000) != 0 || w.getLevel(250) != 1 || w.getLevel(1) != 3) {
+            throw new Error("getLevel");
+        }
+        System.out.println(out.size() + " bytes");
+    }
+
+    private static void check(Waveform w, int samples) {
+        if (w.getSampleCount() != samples || w.getFrequency() != 44100 || w.getChannels() != 2) {
+            throw new Error("header");
+        }
+        for (int level = 0; level < w.getLevelCount(); level++) {
+            int spp = w.getSamplesPerPoint(level);
+            if (w.getPointCount(level) != (samples + spp - 1) / spp) {
+                throw new Error("level " + level + " points " + w.getPointCount(level));
+            }
+            if (level == 0) {
+                continue;
+            }
+            for (int i = 0; i < w.getPointCount(level); i++) {
+                int min = 127, max = -128, rms = 0;
+                for (int j = i * 4; j < Math.min(i * 4 + 4, w.getPointCount(level - 1)); j++) {
+                    min = Math.min(min, w.getMin(level - 1, j));
+                    max = Math.max(max, w.getMax(level - 1, j));
+                    rms = Math.max(rms, w.getRms(level - 1, j));
+                }
+                if (w.getMin(level, i) != min || w.getMax(level, i) != max || w.getRms(level, i) > rms) {
+                    throw new Error("level " + level + " point " + i);
+                }
+            }
+        }
+    }
+
+}